@@ -11,3 +11,8 @@ class BadRequestError(Error):
 class NotFoundError(Error):
     """Exception raised for resources not found."""
     pass
+
+
+class NotModifiedError(Error):
+    """Exception raised for conditional requests on resources not modified."""
+    pass
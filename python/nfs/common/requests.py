@@ -2,22 +2,27 @@ from enum import Enum, unique
 from typing import List
 
 from nfs.common.serialize import BUF_SIZE, ByteBuffer
-from nfs.common.values import Bytes, Int64, Str, Value
+from nfs.common.values import Bytes, CompressedBytes, Int32, Int64, Str, Value
 
 
 class Request():
     def __init__(self, id: int, name: 'RequestName'):
         """
         Server only constructs request from the parser,
-        except for FileUpdatedCallback
+        except for FileUpdatedCallback and FileDeltaCallback
         """
         self.req_id: int = id
+        # Session epoch of the client; 0 is reserved for server-originated requests.
+        self.epoch: int = 0
         self.name: 'RequestName' = name
         self.__params: List[Value] = []
 
     def get_id(self) -> int:
         return self.req_id
 
+    def get_epoch(self) -> int:
+        return self.epoch
+
     def get_name(self) -> 'RequestName':
         return self.name
 
@@ -33,29 +38,42 @@ class Request():
     def set_param(self, pos, val):
         self.__params[pos] = val
 
-    def to_bytes(self) -> bytes:
+    def to_bytes(self, pad: bool = True) -> bytes:
+        """
+        Marshal the request, padded to BUF_SIZE unless pad is False.
+        """
         if len(self.__params) != self.name.num_params:
             raise ValueError('Unable to marshal request {}: wrong number of parameters. Expected: {}, Actual: {}.'.format(
                 self.name.name, self.name.num_params, len(self.__params)))
         payload = ByteBuffer.allocate(BUF_SIZE)
         payload.put_request_header(
-            self.req_id, self.name.value, self.name.num_params)
+            self.epoch, self.req_id, self.name.value, self.name.num_params)
         for val in self.__params:
             if not isinstance(val, Value):
                 raise TypeError('Illegal value type for marshalling.')
             payload.put_bytes(val.to_bytes())
-        return payload.to_bytes()
+        return payload.to_bytes() if pad else payload.written_bytes()
 
     @staticmethod
     def from_bytes(data: bytes) -> 'Request':
-        buf = ByteBuffer.wrap(data)
-        req_id, req_name_ind, num_params = buf.get_request_header()
+        return Request.from_buffer(ByteBuffer.wrap(data))
+
+    @staticmethod
+    def from_buffer(buf: ByteBuffer) -> 'Request':
+        """
+        Parse a request from a buffer, starting at its current offset.
+        """
+        epoch, req_id, req_name_ind, num_params = buf.get_request_header()
         if req_name_ind < 0 or req_name_ind >= len(RequestName):
             raise ValueError("Unable to parse request: unknown request name")
         if req_name_ind == 8:
             raise NotImplementedError(
                 "Server does not handle FileUpdatedCallback.")
+        if req_name_ind == 12:
+            raise NotImplementedError(
+                "Server does not handle FileDeltaCallback.")
         req = RequestName(req_name_ind).req_cls(req_id)
+        req.epoch = epoch
 
         if num_params != req.get_name().num_params:
             raise ValueError('Unable to parse request {}: wrong number of parameters. Expected: {}, Actual: {}.'.format(
@@ -139,10 +157,83 @@ class RegisterRequest(Request):
         return self.get_param(1).get_val()
 
 
+class ReadRangeRequest(Request):
+    def __init__(self, id: int):
+        super().__init__(id, RequestName.READ_RANGE)
+
+    def get_offset(self) -> int:
+        return self.get_param(0).get_val()
+
+    def get_count(self) -> int:
+        return self.get_param(1).get_val()
+
+    def get_path(self) -> str:
+        return self.get_param(2).get_val()
+
+
+class ReadIfModifiedRequest(Request):
+    def __init__(self, id: int):
+        super().__init__(id, RequestName.READ_IF_MODIFIED)
+
+    def get_mtime(self) -> int:
+        return self.get_param(0).get_val()
+
+    def get_offset(self) -> int:
+        return self.get_param(1).get_val()
+
+    def get_count(self) -> int:
+        return self.get_param(2).get_val()
+
+    def get_path(self) -> str:
+        return self.get_param(3).get_val()
+
+
+class ListDirPageRequest(Request):
+    def __init__(self, id: int):
+        super().__init__(id, RequestName.LIST_DIR_PAGE)
+
+    def get_max_entries(self) -> int:
+        return self.get_param(0).get_val()
+
+    def get_start(self) -> str:
+        return self.get_param(1).get_val()
+
+    def get_path(self) -> str:
+        return self.get_param(2).get_val()
+
+
+class NegotiateRequest(Request):
+    # Feature flag for values sent as CompressedBytes.
+    COMPRESSION = 1
+    # Feature flag for CompoundRequest.
+    COMPOUND = 2
+
+    def __init__(self, id: int):
+        super().__init__(id, RequestName.NEGOTIATE)
+
+    def get_features(self) -> int:
+        return self.get_param(0).get_val()
+
+
+class CompoundRequest(Request):
+    def __init__(self, id: int):
+        super().__init__(id, RequestName.COMPOUND)
+
+    def get_num_requests(self) -> int:
+        return self.get_param(0).get_val()
+
+    def get_requests(self) -> List[Request]:
+        """
+        Parse the sub-requests, which are serialized one after another.
+        """
+        buf = ByteBuffer.wrap(self.get_param(1).get_val())
+        return [Request.from_buffer(buf) for _ in range(self.get_num_requests())]
+
+
 class FileUpdatedCallback(Request):
     def __init__(self, path: str, mtime: int, data: bytes):
         """
-        Callbacks uses static id 0, since no response is needed.
+        Callbacks uses static epoch 0 and id 0, since no response is needed.
         """
         super().__init__(id=0, name=RequestName.FILE_UPDATED)
         self.add_param(Str(path))
@@ -159,6 +250,42 @@ class FileUpdatedCallback(Request):
         return self.get_param(2).get_val()
 
 
+class FileDeltaCallback(Request):
+    def __init__(self, path: str, offset: int, data: bytes, length: int, base_mtime: int, mtime: int,
+                 compress: bool = False):
+        """
+        Callbacks uses static epoch 0 and id 0, since no response is needed.
+        The file has changed from base_mtime to mtime by inserting data at offset,
+        and is now length bytes long. An append inserts data at the previous length.
+        The data is sent compressed if compress is set and it is worth it.
+        """
+        super().__init__(id=0, name=RequestName.FILE_DELTA)
+        self.add_param(Str(path))
+        self.add_param(Int32(offset))
+        self.add_param(CompressedBytes.of(data) if compress else Bytes(data))
+        self.add_param(Int64(length))
+        self.add_param(Int64(base_mtime))
+        self.add_param(Int64(mtime))
+
+    def get_path(self) -> str:
+        return self.get_param(0).get_val()
+
+    def get_offset(self) -> int:
+        return self.get_param(1).get_val()
+
+    def get_data(self) -> bytes:
+        return self.get_param(2).get_val()
+
+    def get_length(self) -> int:
+        return self.get_param(3).get_val()
+
+    def get_base_mtime(self) -> int:
+        return self.get_param(4).get_val()
+
+    def get_mtime(self) -> int:
+        return self.get_param(5).get_val()
+
+
 @unique
 class RequestName(bytes, Enum):
     def __new__(cls, value, num_params, req_cls):
@@ -187,3 +314,10 @@ class RequestName(bytes, Enum):
 
     # FileUpdatedCallback does not construct from parser.
     FILE_UPDATED = (8, 3, None)
+    READ_RANGE = (9, 3, ReadRangeRequest)
+    READ_IF_MODIFIED = (10, 4, ReadIfModifiedRequest)
+    LIST_DIR_PAGE = (11, 3, ListDirPageRequest)
+    # FileDeltaCallback does not construct from parser.
+    FILE_DELTA = (12, 6, None)
+    NEGOTIATE = (13, 1, NegotiateRequest)
+    COMPOUND = (14, 2, CompoundRequest)
@@ -12,6 +12,7 @@ class ResponseStatus(Enum):
     NOT_FOUND = 2
     INTERNAL_ERROR = 3
     UNKNOWN = 4
+    NOT_MODIFIED = 5
 
 
 class Response():
@@ -32,7 +33,10 @@ class Response():
     def get_py_values(self) -> List[Any]:
         return [v.get_val() for v in self.values]
 
-    def to_bytes(self) -> bytes:
+    def to_bytes(self, pad: bool = True) -> bytes:
+        """
+        Marshal the response, padded to BUF_SIZE unless pad is False.
+        """
         num_values = len(self.values)
         payload = ByteBuffer.allocate(BUF_SIZE)
         payload.put_response_header(self.req_id, self.status.value, num_values)
@@ -40,13 +44,13 @@ class Response():
             if not isinstance(val, Value):
                 raise TypeError('Illegal value type for marshalling.')
             payload.put_bytes(val.to_bytes())
-        return payload.to_bytes()
+        return payload.to_bytes() if pad else payload.written_bytes()
 
     @classmethod
     def from_bytes(cls, data: bytes) -> 'Response':
         buf = ByteBuffer.wrap(data)
         req_id, status, num_values = buf.get_response_header()
-        if status < 0 or status >= 5:
+        if status < 0 or status >= 6:
             status = ResponseStatus.UNKNOWN
         else:
             status = ResponseStatus(status)
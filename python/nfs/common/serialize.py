@@ -2,6 +2,10 @@ from struct import pack_into, unpack_from
 from typing import Tuple
 
 BUF_SIZE = 4096
+# Maximum number of file bytes carried in a response, leaving room for the headers.
+MAX_DATA_SIZE = BUF_SIZE - 64
+# Maximum number of bytes of the sub-requests of a compound request, and of the sub-responses of its response.
+MAX_COMPOUND_SIZE = BUF_SIZE - 64
 INTEGER_BYTES = 4
 LONG_BYTES = 8
 
@@ -23,6 +27,12 @@ class ByteBuffer():
     def to_bytes(self) -> bytes:
         return bytes(self.buf)
 
+    def written_bytes(self) -> bytes:
+        """
+        Returns the bytes before the current offset.
+        """
+        return bytes(self.buf[:self.offset])
+
     def put(self, v: int):
         pack_into('>b', self.buf, self.offset, v)
         self.offset += 1
@@ -43,14 +53,14 @@ class ByteBuffer():
         self.offset += len(v)
         return self
 
-    def put_request_header(self, req_id: int, name_id: int, num_params: int):
-        pack_into('>ibi', self.buf, self.offset, req_id, name_id, num_params)
-        self.offset += INTEGER_BYTES * 2 + 1
+    def put_request_header(self, epoch: int, req_id: int, name_id: int, num_params: int):
+        pack_into('>qqbi', self.buf, self.offset, epoch, req_id, name_id, num_params)
+        self.offset += LONG_BYTES * 2 + 1 + INTEGER_BYTES
         return self
 
     def put_response_header(self, req_id: int, status_id: int, num_values: int):
-        pack_into('>ibi', self.buf, self.offset, req_id, status_id, num_values)
-        self.offset += INTEGER_BYTES * 2 + 1
+        pack_into('>qbi', self.buf, self.offset, req_id, status_id, num_values)
+        self.offset += LONG_BYTES + 1 + INTEGER_BYTES
         return self
 
     def get(self) -> int:
@@ -73,12 +83,12 @@ class ByteBuffer():
         self.offset += size
         return v
 
-    def get_request_header(self) -> Tuple[int, int, int]:
-        v = unpack_from('>ibi', self.buf, self.offset)
-        self.offset += INTEGER_BYTES * 2 + 1
+    def get_request_header(self) -> Tuple[int, int, int, int]:
+        v = unpack_from('>qqbi', self.buf, self.offset)
+        self.offset += LONG_BYTES * 2 + 1 + INTEGER_BYTES
         return v
 
     def get_response_header(self) -> Tuple[int, int, int]:
-        v = unpack_from('>ibi', self.buf, self.offset)
-        self.offset += INTEGER_BYTES * 2 + 1
+        v = unpack_from('>qbi', self.buf, self.offset)
+        self.offset += LONG_BYTES + 1 + INTEGER_BYTES
         return v
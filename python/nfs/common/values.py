@@ -1,3 +1,4 @@
+import zlib
 from enum import Enum, unique
 from struct import pack
 
@@ -47,6 +48,54 @@ class Bytes(Value):
                     ValueType.BYTES.value, size, self.val)
 
 
+class CompressedBytes(Value):
+    """
+    Bytes sent compressed in the zlib format. The value is the uncompressed bytes.
+    """
+    # Payloads shorter than this are not worth compressing.
+    COMPRESSION_THRESHOLD = 256
+    # Longest payload sent compressed. Longer sizes read from the wire are rejected before inflating.
+    MAX_SIZE = 1 << 16
+
+    def __init__(self, val):
+        super().__init__(val)
+        self.compressed = None
+
+    @classmethod
+    def from_bytes(cls, buffer: ByteBuffer) -> 'CompressedBytes':
+        size = buffer.get_int()
+        if size < 0 or size > cls.MAX_SIZE:
+            raise ValueError("Size {} of compressed bytes is out of range".format(size))
+        compressed_size = buffer.get_int()
+        try:
+            # Inflate one byte more than expected at most, to detect a longer payload.
+            val = zlib.decompressobj().decompress(buffer.get_bytes(compressed_size), size + 1)
+        except zlib.error as e:
+            raise ValueError("Corrupted compressed bytes: {}".format(e))
+        if len(val) != size:
+            raise ValueError("Corrupted compressed bytes: expected {} bytes, got {}".format(
+                size, len(val)))
+        return cls(val)
+
+    def to_bytes(self) -> bytes:
+        if self.compressed is None:
+            self.compressed = zlib.compress(self.val, 1)
+        return pack('>bii{}s'.format(len(self.compressed)),
+                    ValueType.COMPRESSED_BYTES.value, len(self.val), len(self.compressed), self.compressed)
+
+    @classmethod
+    def of(cls, val: bytes) -> Value:
+        """
+        Wrap a payload into a value, compressed if it is long enough and compression makes it shorter.
+        """
+        if len(val) < cls.COMPRESSION_THRESHOLD or len(val) > cls.MAX_SIZE:
+            return Bytes(val)
+        compressed = cls(val)
+        if len(compressed.to_bytes()) < 5 + len(val):
+            return compressed
+        return Bytes(val)
+
+
 class Int32(Value):
     @classmethod
     def from_bytes(cls, buffer: ByteBuffer) -> 'Int32':
@@ -76,3 +125,4 @@ class ValueType(bytes, Enum):
     BYTES = (1, Bytes)
     INT32 = (2, Int32)
     INT64 = (3, Int64)
+    COMPRESSED_BYTES = (4, CompressedBytes)
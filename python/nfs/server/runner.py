@@ -4,7 +4,8 @@ import random
 import socket
 from os.path import abspath, isdir
 
-from nfs.common.exceptions import BadRequestError, NotFoundError
+from nfs.common.exceptions import (BadRequestError, NotFoundError,
+                                   NotModifiedError)
 from nfs.common.requests import Request
 from nfs.common.responses import Response, ResponseStatus
 from nfs.common.serialize import BUF_SIZE
@@ -90,6 +91,11 @@ def main():
                 vals = servicer.handle(req, addr)
                 res = Response(req.get_id(), ResponseStatus.OK, vals)
                 send_response(sock, addr, res, LOSS_PROB)
+            except NotModifiedError as e:
+                logger.info('Not modified for %s: %s',
+                            req.get_name().name, e)
+                res = Response(req.get_id(), ResponseStatus.NOT_MODIFIED)
+                send_response(sock, addr, res, LOSS_PROB)
             except BadRequestError as e:
                 logger.warning('Bad request for %s: %s',
                                req.get_name().name, e)
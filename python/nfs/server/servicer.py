@@ -1,27 +1,50 @@
 import logging
 import os
 import socket
+import struct
 import time
 from pathlib import Path
 from typing import List, Optional
 
-from nfs.common.exceptions import BadRequestError, NotFoundError
-from nfs.common.requests import (AppendRequest, EmptyRequest,
-                                 FileUpdatedCallback, GetAttrRequest,
-                                 InsertRequest, ListDirRequest, ReadRequest,
-                                 RegisterRequest, Request, RequestName,
-                                 TouchRequest)
-from nfs.common.values import Bytes, Int64, Str, Value
+from nfs.common.exceptions import (BadRequestError, NotFoundError,
+                                   NotModifiedError)
+from nfs.common.requests import (AppendRequest, CompoundRequest,
+                                 EmptyRequest, FileDeltaCallback,
+                                 GetAttrRequest,
+                                 InsertRequest, ListDirPageRequest,
+                                 ListDirRequest, NegotiateRequest,
+                                 ReadIfModifiedRequest, ReadRangeRequest,
+                                 ReadRequest, RegisterRequest, Request,
+                                 RequestName, TouchRequest)
+from nfs.common.responses import Response, ResponseStatus
+from nfs.common.serialize import MAX_COMPOUND_SIZE, MAX_DATA_SIZE
+from nfs.common.values import Bytes, CompressedBytes, Int32, Int64, Str, Value
 
 logger = logging.getLogger(__name__)
 
 
+def compress_to_fit(content: bytes) -> Value:
+    """
+    Compress the longest prefix of the content that fits in a response, which is at least MAX_DATA_SIZE bytes.
+    """
+    length = len(content)
+    while True:
+        data = CompressedBytes.of(content[:length])
+        size = len(data.to_bytes()) - 1
+        if size <= MAX_DATA_SIZE or length <= MAX_DATA_SIZE:
+            return data
+        # Shrink in proportion to the excess, with a margin as the ratio varies along the content.
+        length = max(MAX_DATA_SIZE, length * MAX_DATA_SIZE // size * 9 // 10)
+
+
 class ALOServicer:
     def __init__(self, root_dir: str, sock: socket.socket):
         self.root_dir = root_dir
         self.sock = sock
         # file_path --> Dict<client_addr, { time_of_register, monitor_interval }>
         self.file_subscribers = {}
+        # client_addr --> features negotiated with the client
+        self.client_features = {}
 
     def get_current_timestamp_millisecond(self):
         return int(time.time() * 1000)
@@ -43,6 +66,9 @@ class ALOServicer:
             "monitor_interval": monitor_interval
         }
 
+    def supports(self, client_addr, feature: int) -> bool:
+        return self.client_features.get(client_addr, 0) & feature != 0
+
     def validate_file_path(self, path: str, combined_path: str):
         """
         Verify that the file exists and is not a directory.
@@ -55,7 +81,12 @@ class ALOServicer:
         if os.path.isdir(combined_path):
             raise BadRequestError('{} is a directory'.format(path))
 
-    def send_update(self, path_to_file: str, mtime: int, data: bytes):
+    def send_update(self, path_to_file: str, offset: int, data: bytes, length: int,
+                    base_mtime: int, mtime: int):
+        """
+        Send the change of a file to its subscribers as a delta: the data inserted at offset.
+        A delta that does not fit in a datagram is sent without its data, which invalidates the cached file.
+        """
         if path_to_file not in self.file_subscribers:
             # No client subscribed to this file
             return
@@ -68,10 +99,18 @@ class ALOServicer:
                 del subscriber_map[client_addr]
             else:
                 # Send update
-                callback_req = FileUpdatedCallback(
-                    path=path_to_file, mtime=mtime, data=data)
+                callback_req = FileDeltaCallback(
+                    path=path_to_file, offset=offset, data=data, length=length,
+                    base_mtime=base_mtime, mtime=mtime,
+                    compress=self.supports(client_addr, NegotiateRequest.COMPRESSION))
                 try:
-                    self.sock.sendto(callback_req.to_bytes(), client_addr)
+                    payload = callback_req.to_bytes()
+                except struct.error:
+                    payload = FileDeltaCallback(
+                        path=path_to_file, offset=offset, data=b'', length=length,
+                        base_mtime=mtime, mtime=mtime).to_bytes()
+                try:
+                    self.sock.sendto(payload, client_addr)
                 except OSError as e:
                     logger.warning(
                         "Error sending callback to %s: %s", client_addr, e)
@@ -94,6 +133,16 @@ class ALOServicer:
             return self.handle_register(req, addr)
         if req_name == RequestName.APPEND:
             return self.handle_append(req)
+        if req_name == RequestName.READ_RANGE:
+            return self.handle_read_range(req, addr)
+        if req_name == RequestName.READ_IF_MODIFIED:
+            return self.handle_read_if_modified(req, addr)
+        if req_name == RequestName.LIST_DIR_PAGE:
+            return self.handle_list_dir_page(req)
+        if req_name == RequestName.NEGOTIATE:
+            return self.handle_negotiate(req, addr)
+        if req_name == RequestName.COMPOUND:
+            return self.handle_compound(req, addr)
         raise BadRequestError('Request name not found.')
 
     def handle_empty(self, req: EmptyRequest):
@@ -107,6 +156,50 @@ class ALOServicer:
             content = f.read()
         return [Bytes(content)]
 
+    def handle_read_range(self, req: ReadRangeRequest, client_addr=None):
+        path = req.get_path()
+        offset = req.get_offset()
+        count = req.get_count()
+        logger.debug(
+            "Arguments - path: {}, offset: {}, count: {}".format(path, offset, count))
+        return self.read_range(path, offset, count,
+                               self.supports(client_addr, NegotiateRequest.COMPRESSION))
+
+    def handle_read_if_modified(self, req: ReadIfModifiedRequest, client_addr=None):
+        path = req.get_path()
+        mtime = req.get_mtime()
+        offset = req.get_offset()
+        count = req.get_count()
+        logger.debug(
+            "Arguments - path: {}, mtime: {}, offset: {}, count: {}".format(path, mtime, offset, count))
+        combined_path = os.path.join(self.root_dir, path)
+        self.validate_file_path(path, combined_path)
+        if int(os.path.getmtime(combined_path) * 1000) == mtime:
+            raise NotModifiedError(
+                "{} has not been modified since {}".format(path, mtime))
+        return self.read_range(path, offset, count,
+                               self.supports(client_addr, NegotiateRequest.COMPRESSION))
+
+    def read_range(self, path: str, offset: int, count: int, compress: bool = False) -> List[Value]:
+        if offset < 0:
+            raise BadRequestError("offset < 0")
+        if count < 0:
+            raise BadRequestError("count < 0")
+        combined_path = os.path.join(self.root_dir, path)
+        self.validate_file_path(path, combined_path)
+        with open(combined_path, 'rb') as f:
+            file_size = os.fstat(f.fileno()).st_size
+            if offset > file_size:
+                raise BadRequestError(
+                    "Offset {} exceeds the file length {}".format(offset, file_size))
+            f.seek(offset)
+            # A single response carries at most MAX_DATA_SIZE bytes, after compression if negotiated;
+            # the client continues from where this range ends.
+            content = f.read(min(count, CompressedBytes.MAX_SIZE if compress else MAX_DATA_SIZE))
+        mtime = int(os.path.getmtime(combined_path) * 1000)
+        data = compress_to_fit(content) if compress else Bytes(content)
+        return [data, Int64(mtime), Int64(file_size)]
+
     def handle_insert(self, req: InsertRequest):
         path = req.get_path()
         offset = req.get_offset()
@@ -122,6 +215,7 @@ class ALOServicer:
         if offset > file_size:
             raise BadRequestError(
                 "Offset {} exceeds the file length {}".format(offset, file_size))
+        prev_mtime = int(os.path.getmtime(combined_path) * 1000)
         with open(combined_path, "ab+") as f:
             f.seek(offset)
             remaining_content = f.read()  # Save the content after offset
@@ -129,14 +223,13 @@ class ALOServicer:
             f.truncate()  # Remove the content after offset
             f.write(data)  # Append the data
             f.write(remaining_content)  # Append the remaining content
-            f.seek(0)
-            file_content = f.read()
         # Update subscribers
         mtime = int(os.path.getmtime(combined_path) * 1000)
-        self.send_update(path_to_file=path,
-                         mtime=mtime, data=file_content)
-        # Returns an acknowledgement to the client upon successful write
-        return []
+        self.send_update(path_to_file=path, offset=offset, data=data,
+                         length=file_size + len(data), base_mtime=prev_mtime, mtime=mtime)
+        # Returns the modified time after and before the write to the client,
+        # so that it can apply the write to its cached copy of the file
+        return [Int64(mtime), Int64(prev_mtime)]
 
     def handle_append(self, req: AppendRequest):
         path = req.get_path()
@@ -145,15 +238,15 @@ class ALOServicer:
             "Arguments - path: {}, data: {}".format(path, data))
         combined_path = os.path.join(self.root_dir, path)
         self.validate_file_path(path, combined_path)
+        prev_mtime = int(os.path.getmtime(combined_path) * 1000)
+        file_size = os.path.getsize(combined_path)
         with open(combined_path, "ab+") as f:
             f.write(data)  # Append the data
-            f.seek(0)
-            file_content = f.read()
         # Update subscribers
         mtime = int(os.path.getmtime(combined_path) * 1000)
-        self.send_update(path_to_file=path,
-                         mtime=mtime, data=file_content)
-        return []
+        self.send_update(path_to_file=path, offset=file_size, data=data,
+                         length=file_size + len(data), base_mtime=prev_mtime, mtime=mtime)
+        return [Int64(mtime), Int64(prev_mtime)]
 
     def handle_get_attr(self, req: GetAttrRequest):
         path = req.get_path()
@@ -165,15 +258,40 @@ class ALOServicer:
         mtime = int(os.path.getmtime(combined_path) * 1000)
         return [Int64(mtime), Int64(atime)]
 
-    def handle_list_dir(self, req: ListDirRequest):
-        path = req.get_path()
+    def list_dir(self, path: str) -> List[str]:
         combined_path = os.path.join(self.root_dir, path)
-        if not os.path.isdir(path):
+        if not os.path.isdir(combined_path):
             raise NotFoundError('{} is not a directory'.format(path))
         with os.scandir(combined_path) as it:
-            files = [Str(entry.name + '/') if entry.is_dir()
-                     else Str(entry.name) for entry in it]
-        return files
+            return [entry.name + '/' if entry.is_dir()
+                    else entry.name for entry in it]
+
+    def handle_list_dir(self, req: ListDirRequest):
+        return [Str(name) for name in self.list_dir(req.get_path())]
+
+    def handle_list_dir_page(self, req: ListDirPageRequest):
+        path = req.get_path()
+        start = req.get_start()
+        max_entries = req.get_max_entries()
+        logger.debug("Arguments - path: {}, start: {}, max_entries: {}".format(
+            path, start, max_entries))
+        if max_entries <= 0:
+            raise BadRequestError("max_entries <= 0")
+        # Names are listed in order, so that a page continues after the last name
+        # of the previous one even if the directory has changed in between.
+        names = sorted(name for name in self.list_dir(path) if name > start)
+        page = []
+        size = 0
+        for name in names[:max_entries]:
+            # Each name is sent as a Str value: a type tag and a length before the encoded name.
+            # The last name of the page is sent twice, as the token to continue from.
+            name_size = 5 + len(name.encode('utf-8'))
+            if page and size + 2 * name_size > MAX_DATA_SIZE:
+                break
+            size += name_size
+            page.append(name)
+        next_start = page[-1] if len(page) < len(names) else ''
+        return [Str(next_start)] + [Str(name) for name in page]
 
     def handle_touch(self, req: TouchRequest):
         path = req.get_path()
@@ -185,6 +303,53 @@ class ALOServicer:
         # Returns access time (timestamp) to the client upon successful touch
         return [Int64(atime)]
 
+    def handle_negotiate(self, req: NegotiateRequest, client_addr):
+        features = req.get_features()
+        logger.debug("Arguments - features: {}".format(features))
+        # Only the features known to the server are accepted, and used for the client from now on.
+        accepted = features & (NegotiateRequest.COMPRESSION | NegotiateRequest.COMPOUND)
+        self.client_features[client_addr] = accepted
+        return [Int32(accepted)]
+
+    def handle_compound(self, req: CompoundRequest, client_addr):
+        try:
+            sub_requests = req.get_requests()
+        except (ValueError, NotImplementedError) as e:
+            raise BadRequestError("Unable to parse sub-requests: {}".format(e))
+        logger.debug("Arguments - {} sub-requests".format(len(sub_requests)))
+        # Each sub-request is handled on its own, and its response is sent as a Bytes value.
+        values = []
+        size = 0
+        for sub_req in sub_requests:
+            res = self.handle_sub_request(sub_req, client_addr)
+            res_bytes = res.to_bytes(pad=False)
+            if size + 5 + len(res_bytes) > MAX_COMPOUND_SIZE:
+                # The client sizes compound requests so that the responses fit, except for error messages.
+                # A response that does not fit is sent without its values, as an error.
+                status = ResponseStatus.INTERNAL_ERROR if res.get_status() == ResponseStatus.OK \
+                    else res.get_status()
+                res_bytes = Response(sub_req.get_id(), status, []).to_bytes(pad=False)
+            size += 5 + len(res_bytes)
+            values.append(Bytes(res_bytes))
+        return values
+
+    def handle_sub_request(self, req: Request, client_addr) -> Response:
+        req_name = req.get_name()
+        if req_name in (RequestName.COMPOUND, RequestName.REGISTER):
+            return Response(req.get_id(), ResponseStatus.BAD_REQUEST,
+                            [Str('{} is not allowed in a compound request'.format(req_name.name))])
+        try:
+            return Response(req.get_id(), ResponseStatus.OK, self.handle(req, client_addr))
+        except NotModifiedError:
+            return Response(req.get_id(), ResponseStatus.NOT_MODIFIED, [])
+        except BadRequestError as e:
+            return Response(req.get_id(), ResponseStatus.BAD_REQUEST, [Str(str(e))])
+        except NotFoundError as e:
+            return Response(req.get_id(), ResponseStatus.NOT_FOUND, [Str(str(e))])
+        except Exception as e:
+            logger.exception('Error handling %s', req_name.name)
+            return Response(req.get_id(), ResponseStatus.INTERNAL_ERROR, [Str(str(e))])
+
     def handle_register(self, req: RegisterRequest, client_addr: str):
         monitor_interval = req.get_monitor_interval()
         if monitor_interval < 0:
@@ -204,7 +369,7 @@ class AMOServicer(ALOServicer):
         self.history_map = {}
 
     def create_identifier(self, req: Request, addr: any) -> str:
-        return str(req.get_id()) + ":" + str(addr)
+        return "{}:{}:{}".format(req.get_epoch(), req.get_id(), addr)
 
     def _is_duplicate_request(self, req: Request, addr: any) -> Optional[List[Value]]:
         identifier = self.create_identifier(req, addr)
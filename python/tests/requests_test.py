@@ -1,14 +1,18 @@
+import os
 from struct import pack_into
 
 import pytest
 
-from nfs.common.requests import (AppendRequest, EmptyRequest,
-                                 FileUpdatedCallback, GetAttrRequest,
-                                 InsertRequest, ListDirRequest, ReadRequest,
-                                 RegisterRequest, Request, RequestName,
-                                 TouchRequest)
+from nfs.common.requests import (AppendRequest, CompoundRequest, EmptyRequest,
+                                 FileDeltaCallback, FileUpdatedCallback,
+                                 GetAttrRequest,
+                                 InsertRequest, ListDirPageRequest,
+                                 ListDirRequest, NegotiateRequest,
+                                 ReadRangeRequest,
+                                 ReadRequest, RegisterRequest, Request,
+                                 RequestName, TouchRequest)
 from nfs.common.serialize import ByteBuffer
-from nfs.common.values import Bytes, Int32, Str, Value
+from nfs.common.values import Bytes, CompressedBytes, Int32, Str, Value
 
 
 def test_should_not_marshall_mismatched_param():
@@ -31,7 +35,7 @@ def test_should_not_unmarshal_mismatched_param():
     serialized = expected.to_bytes()
     buf = bytearray(serialized)
     # Sets numParams to 2 in serialized message.
-    pack_into('>i', buf, 5, 2)
+    pack_into('>i', buf, 17, 2)
     with pytest.raises(ValueError) as excinfo:
         Request.from_bytes(buf)
     assert 'wrong number of parameters' in str(excinfo.value)
@@ -54,7 +58,8 @@ def test_marshall_FileUpdatedCallback():
     data = b'password'
     expected = FileUpdatedCallback(path, mtime, data)
     buf = ByteBuffer.wrap(expected.to_bytes())
-    assert buf.get_int() == 0
+    assert buf.get_long() == 0
+    assert buf.get_long() == 0
     assert buf.get() == RequestName.FILE_UPDATED.value
     assert buf.get_int() == RequestName.FILE_UPDATED.num_params
     assert Value.from_bytes(buf).get_val() == path
@@ -62,6 +67,20 @@ def test_marshall_FileUpdatedCallback():
     assert Value.from_bytes(buf).get_val() == data
 
 
+def test_marshall_FileDeltaCallback():
+    path = 'log.txt'
+    data = b'record'
+    expected = FileDeltaCallback(path, 10, data, 16, 123, 456)
+    buf = ByteBuffer.wrap(expected.to_bytes())
+    assert buf.get_long() == 0
+    assert buf.get_long() == 0
+    assert buf.get() == RequestName.FILE_DELTA.value
+    assert buf.get_int() == RequestName.FILE_DELTA.num_params
+    assert [Value.from_bytes(buf).get_val() for _ in range(6)] == [path, 10, data, 16, 123, 456]
+    with pytest.raises(NotImplementedError):
+        Request.from_bytes(expected.to_bytes())
+
+
 def test_unmarshal_EmptyRequest():
     req_id = -(1 >> 31)
     expected = EmptyRequest(req_id)
@@ -70,6 +89,16 @@ def test_unmarshal_EmptyRequest():
     assert actual.get_name() == RequestName.EMPTY
 
 
+def test_unmarshal_epoch():
+    epoch = -(1 << 63)
+    req_id = (1 << 63) - 1
+    expected = EmptyRequest(req_id)
+    expected.epoch = epoch
+    actual = Request.from_bytes(expected.to_bytes())
+    assert actual.get_epoch() == epoch
+    assert actual.get_id() == req_id
+
+
 def test_unmarshal_ReadRequest():
     req_id = 1
     path = 'abc.txt'
@@ -81,6 +110,23 @@ def test_unmarshal_ReadRequest():
     assert actual.get_path() == path
 
 
+def test_unmarshal_ReadRangeRequest():
+    req_id = 2
+    offset = 4096
+    count = 2048
+    path = 'abc.txt'
+    expected = ReadRangeRequest(req_id)
+    expected.add_param(Int32(offset))
+    expected.add_param(Int32(count))
+    expected.add_param(Str(path))
+    actual = Request.from_bytes(expected.to_bytes())
+    assert actual.get_id() == req_id
+    assert actual.get_name() == RequestName.READ_RANGE
+    assert actual.get_path() == path
+    assert actual.get_offset() == offset
+    assert actual.get_count() == count
+
+
 def test_unmarshal_InsertRequest():
     req_id = 4
     offset = 5
@@ -98,6 +144,64 @@ def test_unmarshal_InsertRequest():
     assert actual.get_data() == data
 
 
+def test_unmarshal_compressed_InsertRequest():
+    req_id = 4
+    offset = 5
+    path = 'abc.txt'
+    data = b'0123456789' * 100
+    expected = InsertRequest(req_id)
+    expected.add_param(Int32(offset))
+    expected.add_param(Str(path))
+    expected.add_param(CompressedBytes.of(data))
+    assert len(expected.get_param(2).to_bytes()) < len(data)
+    actual = Request.from_bytes(expected.to_bytes())
+    assert actual.get_offset() == offset
+    assert actual.get_data() == data
+
+
+def test_should_not_unmarshal_compressed_size_out_of_range():
+    # A small zlib payload that inflates far beyond the size it claims.
+    bomb = CompressedBytes(b'x' * (CompressedBytes.MAX_SIZE + 1)).to_bytes()
+    for size in (CompressedBytes.MAX_SIZE + 1, -1, 10):
+        buf = bytearray(bomb)
+        pack_into('>i', buf, 1, size)
+        with pytest.raises(ValueError):
+            CompressedBytes.from_bytes(ByteBuffer(buf[1:]))
+
+
+def test_compress_only_large_payloads():
+    assert isinstance(CompressedBytes.of(b'x' * 100), Bytes)
+    assert isinstance(CompressedBytes.of(os.urandom(1024)), Bytes)
+    assert isinstance(CompressedBytes.of(b'x' * 1024), CompressedBytes)
+
+
+def test_unmarshal_NegotiateRequest():
+    expected = NegotiateRequest(6)
+    expected.add_param(Int32(NegotiateRequest.COMPRESSION))
+    actual = Request.from_bytes(expected.to_bytes())
+    assert actual.get_name() == RequestName.NEGOTIATE
+    assert actual.get_features() == NegotiateRequest.COMPRESSION
+
+
+def test_unmarshal_CompoundRequest():
+    read = ReadRangeRequest(2)
+    read.add_param(Int32(0))
+    read.add_param(Int32(10))
+    read.add_param(Str('abc.txt'))
+    get_attr = GetAttrRequest(3)
+    get_attr.add_param(Str('abc.txt'))
+    expected = CompoundRequest(1)
+    expected.add_param(Int32(2))
+    expected.add_param(Bytes(read.to_bytes(pad=False) + get_attr.to_bytes(pad=False)))
+    actual = Request.from_bytes(expected.to_bytes())
+    assert actual.get_name() == RequestName.COMPOUND
+    sub_requests = actual.get_requests()
+    assert [req.get_name() for req in sub_requests] == [RequestName.READ_RANGE, RequestName.GET_ATTR]
+    assert [req.get_id() for req in sub_requests] == [2, 3]
+    assert sub_requests[0].get_count() == 10
+    assert sub_requests[1].get_path() == 'abc.txt'
+
+
 def test_unmarshal_AppendRequest():
     req_id = 5
     path = 'abc.txt'
@@ -145,6 +249,23 @@ def test_unmarshal_ListDirRequest():
     assert actual.get_path() == path
 
 
+def test_unmarshal_ListDirPageRequest():
+    req_id = 1
+    path = 'src/test'
+    start = 'a.txt'
+    max_entries = 64
+    expected = ListDirPageRequest(req_id)
+    expected.add_param(Int32(max_entries))
+    expected.add_param(Str(start))
+    expected.add_param(Str(path))
+    actual = Request.from_bytes(expected.to_bytes())
+    assert actual.get_id() == req_id
+    assert actual.get_name() == RequestName.LIST_DIR_PAGE
+    assert actual.get_path() == path
+    assert actual.get_start() == start
+    assert actual.get_max_entries() == max_entries
+
+
 def test_unmarshal_RegisterRequest():
     req_id = 1
     path = 'abc.txt'
@@ -4,11 +4,19 @@ from unittest import mock
 import pytest
 from pyfakefs.fake_filesystem import FakeFilesystem
 
-from nfs.common.exceptions import BadRequestError, NotFoundError
-from nfs.common.requests import (AppendRequest, EmptyRequest, GetAttrRequest,
-                                 InsertRequest, ReadRequest, RegisterRequest,
-                                 TouchRequest)
-from nfs.common.values import Bytes, Int32, Str
+from nfs.common.exceptions import (BadRequestError, NotFoundError,
+                                   NotModifiedError)
+from nfs.common.requests import (AppendRequest, CompoundRequest,
+                                 EmptyRequest, GetAttrRequest,
+                                 InsertRequest, ListDirPageRequest,
+                                 NegotiateRequest, ReadIfModifiedRequest,
+                                 ReadRangeRequest, ReadRequest,
+                                 RegisterRequest, TouchRequest)
+from nfs.common.responses import Response, ResponseStatus
+from nfs.common.serialize import (BUF_SIZE, MAX_COMPOUND_SIZE, MAX_DATA_SIZE,
+                                  ByteBuffer)
+from nfs.common.values import (Bytes, CompressedBytes, Int32, Int64, Str,
+                               Value)
 from nfs.server.servicer import ALOServicer, AMOServicer
 
 addr = "localhost"
@@ -58,10 +66,13 @@ class TestALOServier:
         req.add_param(Int32(2))  # Offset
         req.add_param(Str('test.txt'))  # Path
         req.add_param(Bytes(b'INSERT'))
-        self.servicer.handle(req, addr)
+        prev_mtime = int(fs.stat('test.txt').st_mtime * 1000)
+        val = self.servicer.handle(req, addr)
         with open('test.txt', 'rb') as f:
             content = f.read()
             assert content == b'teINSERTst'
+        assert val[0].get_val() == int(fs.stat('test.txt').st_mtime * 1000)
+        assert val[1].get_val() == prev_mtime
         fs.create_dir('text.txt')
         self.servicer.handle(req, addr)
 
@@ -97,10 +108,13 @@ class TestALOServier:
         req = AppendRequest(1)
         req.add_param(Str('test.txt'))  # Path
         req.add_param(Bytes(b'APPEND'))
-        self.servicer.handle(req, addr)
+        prev_mtime = int(fs.stat('test.txt').st_mtime * 1000)
+        val = self.servicer.handle(req, addr)
         with open('test.txt', 'rb') as f:
             content = f.read()
             assert content == b'testAPPEND'
+        assert val[0].get_val() == int(fs.stat('test.txt').st_mtime * 1000)
+        assert val[1].get_val() == prev_mtime
 
     def test_handle_read(self, fs: FakeFilesystem):
         fs.create_file('test.txt', contents='test')
@@ -109,6 +123,87 @@ class TestALOServier:
         val = self.servicer.handle(req, addr)
         assert val[0].get_val() == b'test'
 
+    def test_handle_read_range(self, fs: FakeFilesystem):
+        fs.create_file('test.txt', contents='test')
+        req = ReadRangeRequest(1)
+        req.add_param(Int32(1))  # Offset
+        req.add_param(Int32(2))  # Count
+        req.add_param(Str("test.txt"))  # Path
+        val = self.servicer.handle(req, addr)
+        assert val[0].get_val() == b'es'
+        assert val[1].get_val() == int(fs.stat('test.txt').st_mtime * 1000)
+        assert val[2].get_val() == 4
+
+    def test_handle_read_range_large_file(self, fs: FakeFilesystem):
+        fs.create_file('test.txt', contents='x' * (MAX_DATA_SIZE * 2))
+        req = ReadRangeRequest(1)
+        req.add_param(Int32(0))  # Offset
+        req.add_param(Int32(MAX_DATA_SIZE * 2))  # Count
+        req.add_param(Str("test.txt"))  # Path
+        val = self.servicer.handle(req, addr)
+        assert len(val[0].get_val()) == MAX_DATA_SIZE
+        assert val[2].get_val() == MAX_DATA_SIZE * 2
+
+    def test_handle_read_range_out_of_range(self, fs: FakeFilesystem):
+        fs.create_file('test.txt', contents='test')
+        req = ReadRangeRequest(1)
+        req.add_param(Int32(5))  # Offset
+        req.add_param(Int32(1))  # Count
+        req.add_param(Str("test.txt"))  # Path
+        with pytest.raises(BadRequestError):
+            self.servicer.handle(req, addr)
+
+    def test_handle_read_if_modified(self, fs: FakeFilesystem):
+        fs.create_file('test.txt', contents='test')
+        req = ReadIfModifiedRequest(1)
+        req.add_param(Int64(0))  # Mtime
+        req.add_param(Int32(1))  # Offset
+        req.add_param(Int32(2))  # Count
+        req.add_param(Str("test.txt"))  # Path
+        val = self.servicer.handle(req, addr)
+        assert val[0].get_val() == b'es'
+        assert val[1].get_val() == int(fs.stat('test.txt').st_mtime * 1000)
+        assert val[2].get_val() == 4
+
+    def test_handle_read_if_not_modified(self, fs: FakeFilesystem):
+        fs.create_file('test.txt', contents='test')
+        req = ReadIfModifiedRequest(1)
+        req.add_param(Int64(int(fs.stat('test.txt').st_mtime * 1000)))  # Mtime
+        req.add_param(Int32(0))  # Offset
+        req.add_param(Int32(4))  # Count
+        req.add_param(Str("test.txt"))  # Path
+        with pytest.raises(NotModifiedError):
+            self.servicer.handle(req, addr)
+
+    def test_handle_list_dir_page(self, fs: FakeFilesystem):
+        for name in ['c.txt', 'a.txt', 'b.txt']:
+            fs.create_file(os.path.join('test', name))
+        fs.create_dir('test/d')
+        req = ListDirPageRequest(1)
+        req.add_param(Int32(2))  # Max entries
+        req.add_param(Str(''))  # Start
+        req.add_param(Str('test'))  # Path
+        val = self.servicer.handle(req, addr)
+        assert [v.get_val() for v in val] == ['b.txt', 'a.txt', 'b.txt']
+
+        req = ListDirPageRequest(2)
+        req.add_param(Int32(2))  # Max entries
+        req.add_param(Str('b.txt'))  # Start
+        req.add_param(Str('test'))  # Path
+        val = self.servicer.handle(req, addr)
+        assert [v.get_val() for v in val] == ['', 'c.txt', 'd/']
+
+    def test_handle_list_dir_page_fits_response(self, fs: FakeFilesystem):
+        for i in range(100):
+            fs.create_file(os.path.join('test', '{:0>100}'.format(i)))
+        req = ListDirPageRequest(1)
+        req.add_param(Int32(100))  # Max entries
+        req.add_param(Str(''))  # Start
+        req.add_param(Str('test'))  # Path
+        val = self.servicer.handle(req, addr)
+        assert sum(len(v.to_bytes()) for v in val) <= MAX_DATA_SIZE
+        assert val[0].get_val() == val[-1].get_val()
+
     def test_handle_read_dir(self, fs: FakeFilesystem):
         fs.create_dir('test')
         req = ReadRequest(1)
@@ -140,6 +235,145 @@ class TestALOServier:
         self.servicer.handle(req, addr)
         assert self.servicer.file_subscribers[file_path][client_addr]["monitor_interval"] == monitor_interval
 
+    def test_send_delta_to_subscriber(self, fs: FakeFilesystem):
+        file_path = 'test.txt'
+        fs.create_file(file_path, contents='test')
+        req = RegisterRequest(1)
+        req.add_param(Int32(10000))  # monitor_interval
+        req.add_param(Str(file_path))  # Path
+        self.servicer.handle(req, addr)
+        sock = mock.Mock()
+        self.servicer.sock = sock
+        req = AppendRequest(2)
+        req.add_param(Str(file_path))  # Path
+        req.add_param(Bytes(b'APPEND'))
+        val = self.servicer.handle(req, addr)
+        callback, client_addr = sock.sendto.call_args[0]
+        buf = ByteBuffer.wrap(callback)
+        buf.get_request_header()
+        # Only the appended bytes are sent, as an insertion at the end of the file.
+        assert client_addr == addr
+        assert [Value.from_bytes(buf).get_val() for _ in range(6)] == [
+            file_path, 4, b'APPEND', 10, val[1].get_val(), val[0].get_val()]
+
+    def test_send_delta_beyond_datagram(self, fs: FakeFilesystem):
+        file_path = 'test.txt'
+        fs.create_file(file_path, contents='test')
+        req = RegisterRequest(1)
+        req.add_param(Int32(10000))  # monitor_interval
+        req.add_param(Str(file_path))  # Path
+        self.servicer.handle(req, addr)
+        sock = mock.Mock()
+        self.servicer.sock = sock
+        req = AppendRequest(2)
+        req.add_param(Str(file_path))  # Path
+        req.add_param(Bytes(b'A' * BUF_SIZE))
+        val = self.servicer.handle(req, addr)
+        callback, client_addr = sock.sendto.call_args[0]
+        buf = ByteBuffer.wrap(callback)
+        buf.get_request_header()
+        # The delta is sent without its data, to invalidate the cached file.
+        assert [Value.from_bytes(buf).get_val() for _ in range(6)] == [
+            file_path, 4, b'', 4 + BUF_SIZE, val[0].get_val(), val[0].get_val()]
+
+    def test_handle_negotiate(self):
+        req = NegotiateRequest(1)
+        req.add_param(Int32(NegotiateRequest.COMPRESSION | 1 << 8))
+        val = self.servicer.handle(req, addr)
+        # Features unknown to the server are not accepted.
+        assert val[0].get_val() == NegotiateRequest.COMPRESSION
+
+    def test_handle_read_range_compressed(self, fs: FakeFilesystem):
+        content = 'abcd' * 1024
+        fs.create_file('test.txt', contents=content)
+        req = ReadRangeRequest(1)
+        req.add_param(Int32(0))  # Offset
+        req.add_param(Int32(2048))  # Count
+        req.add_param(Str("test.txt"))  # Path
+        assert isinstance(self.servicer.handle(req, addr)[0], Bytes)
+        negotiate = NegotiateRequest(2)
+        negotiate.add_param(Int32(NegotiateRequest.COMPRESSION))
+        self.servicer.handle(negotiate, addr)
+        val = self.servicer.handle(req, addr)
+        assert isinstance(val[0], CompressedBytes)
+        assert len(val[0].to_bytes()) < 2048
+        assert Value.from_bytes(ByteBuffer.wrap(val[0].to_bytes())).get_val() == content[:2048].encode()
+
+    def test_handle_read_range_compressed_beyond_datagram(self, fs: FakeFilesystem):
+        text = b'abcd' * 8192
+        noise = os.urandom(8192)
+        fs.create_file('text.txt', contents=text)
+        fs.create_file('noise.bin', contents=noise)
+        negotiate = NegotiateRequest(1)
+        negotiate.add_param(Int32(NegotiateRequest.COMPRESSION))
+        self.servicer.handle(negotiate, addr)
+
+        def read(path, count):
+            req = ReadRangeRequest(2)
+            req.add_param(Int32(0))  # Offset
+            req.add_param(Int32(count))  # Count
+            req.add_param(Str(path))  # Path
+            return self.servicer.handle(req, addr)[0]
+
+        # Compressible content is read beyond what fits in a datagram uncompressed.
+        val = read('text.txt', len(text))
+        assert len(val.to_bytes()) <= MAX_DATA_SIZE
+        assert val.get_val() == text
+        # Incompressible content is cut to what fits.
+        val = read('noise.bin', len(noise))
+        assert val.get_val() == noise[:MAX_DATA_SIZE]
+
+    def test_handle_compound(self, fs: FakeFilesystem):
+        fs.create_file('a.txt', contents='a')
+        touch = TouchRequest(2)
+        touch.add_param(Str('b.txt'))
+        read = ReadRangeRequest(3)
+        read.add_param(Int32(0))  # Offset
+        read.add_param(Int32(10))  # Count
+        read.add_param(Str('a.txt'))  # Path
+        missing = GetAttrRequest(4)
+        missing.add_param(Str('c.txt'))
+        req = CompoundRequest(1)
+        req.add_param(Int32(3))
+        req.add_param(Bytes(b''.join(sub.to_bytes(pad=False) for sub in [touch, read, missing])))
+        val = self.servicer.handle(req, addr)
+        responses = [Response.from_bytes(v.get_val()) for v in val]
+        assert [res.get_req_id() for res in responses] == [2, 3, 4]
+        assert [res.get_status() for res in responses] == [
+            ResponseStatus.OK, ResponseStatus.OK, ResponseStatus.NOT_FOUND]
+        # Sub-requests are handled in order, so the file touched first exists.
+        assert os.path.exists('b.txt')
+        assert responses[1].get_py_values()[0] == b'a'
+
+    def test_handle_compound_fits_response(self, fs: FakeFilesystem):
+        fs.create_file('a.txt', contents='x' * MAX_DATA_SIZE)
+        subs = []
+        for i in range(3):
+            read = ReadRangeRequest(i + 2)
+            read.add_param(Int32(0))  # Offset
+            read.add_param(Int32(2048))  # Count
+            read.add_param(Str('a.txt'))  # Path
+            subs.append(read)
+        req = CompoundRequest(1)
+        req.add_param(Int32(len(subs)))
+        req.add_param(Bytes(b''.join(sub.to_bytes(pad=False) for sub in subs)))
+        val = self.servicer.handle(req, addr)
+        assert sum(5 + len(v.get_val()) for v in val) <= MAX_COMPOUND_SIZE
+        statuses = [Response.from_bytes(v.get_val()).get_status() for v in val]
+        assert statuses == [ResponseStatus.OK, ResponseStatus.INTERNAL_ERROR, ResponseStatus.INTERNAL_ERROR]
+
+    def test_compound_does_not_register(self, fs: FakeFilesystem):
+        fs.create_file('a.txt', contents='a')
+        register = RegisterRequest(2)
+        register.add_param(Int32(10000))  # monitor_interval
+        register.add_param(Str('a.txt'))  # Path
+        req = CompoundRequest(1)
+        req.add_param(Int32(1))
+        req.add_param(Bytes(register.to_bytes(pad=False)))
+        val = self.servicer.handle(req, addr)
+        assert Response.from_bytes(val[0].get_val()).get_status() == ResponseStatus.BAD_REQUEST
+        assert 'a.txt' not in self.servicer.file_subscribers
+
     def test_duplicate_request(self):
         req = EmptyRequest(1)
         val_a = self.servicer.handle(req, addr)
@@ -158,3 +392,11 @@ class TestAMOServicer:
         assert self.servicer._is_duplicate_request(req, addr) is not None
         val_b = self.servicer.handle(req, addr)
         assert get_memory_addr(val_a) == get_memory_addr(val_b)
+
+    def test_same_id_from_new_session(self):
+        req = EmptyRequest(1)
+        req.epoch = 1
+        self.servicer.handle(req, addr)
+        restarted = EmptyRequest(1)
+        restarted.epoch = 2
+        assert self.servicer._is_duplicate_request(restarted, addr) is None
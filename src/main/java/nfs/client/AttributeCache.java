@@ -0,0 +1,112 @@
+package nfs.client;
+
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The client cache of file attributes, separate from the cache of file contents.
+ * Attributes are cached for files whose contents may not be cached at all, and are trusted
+ * for a time-to-live of their own, after which they have to be requested from the server again.
+ * Entries are keyed by the normalized file path, and the least recently used ones are dropped
+ * beyond MAX_ENTRIES.
+ */
+public class AttributeCache {
+    static final long DEFAULT_TTL = 3000;
+    static final int MAX_ENTRIES = 1 << 14;
+    private final long ttl;
+    private final LinkedHashMap<String, Attributes> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Attributes> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Create an attribute cache with the default time-to-live.
+     */
+    public AttributeCache() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * Create an attribute cache.
+     *
+     * @param ttl time-to-live of cached attributes in ms, 0 to disable caching
+     */
+    public AttributeCache(long ttl) {
+        if (ttl < 0)
+            throw new IllegalArgumentException("Attribute TTL should not be negative.");
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return the attributes of a file if cached within the time-to-live
+     *
+     * @param filePath file path on server
+     * @return last modified time and last access time of the file
+     */
+    public synchronized Optional<long[]> get(String filePath) {
+        String key = normalize(filePath);
+        Attributes attributes = entries.get(key);
+        if (attributes == null)
+            return Optional.empty();
+        if (System.currentTimeMillis() - attributes.tCached >= ttl) {
+            entries.remove(key);
+            return Optional.empty();
+        }
+        return Optional.of(new long[]{attributes.mtime, attributes.atime});
+    }
+
+    /**
+     * Cache the attributes of a file, as just returned by the server
+     *
+     * @param filePath file path on server
+     * @param mtime    last modified time on server
+     * @param atime    last access time on server
+     */
+    public synchronized void put(String filePath, long mtime, long atime) {
+        if (ttl > 0)
+            entries.put(normalize(filePath), new Attributes(mtime, atime, System.currentTimeMillis()));
+    }
+
+    /**
+     * Remove the attributes of a file, which have been changed
+     *
+     * @param filePath file path on server
+     */
+    public synchronized void invalidate(String filePath) {
+        entries.remove(normalize(filePath));
+    }
+
+    /**
+     * @return time-to-live of cached attributes in ms
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return number of cached entries, including expired ones not removed yet
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String normalize(String filePath) {
+        return Paths.get(filePath).normalize().toString();
+    }
+
+    private static class Attributes {
+        private final long mtime;
+        private final long atime;
+        private final long tCached;
+
+        Attributes(long mtime, long atime, long tCached) {
+            this.mtime = mtime;
+            this.atime = atime;
+            this.tCached = tCached;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package nfs.client;
+
+/**
+ * Identifies a block of a file in the cache.
+ */
+class BlockKey {
+    private final String filePath;
+    private final int index;
+
+    /**
+     * @param filePath file path on server.
+     * @param index    index of the block, i.e. its offset divided by BLOCK_SIZE.
+     */
+    BlockKey(String filePath, int index) {
+        this.filePath = filePath;
+        this.index = index;
+    }
+
+    String getFilePath() {
+        return filePath;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof BlockKey))
+            return false;
+        BlockKey other = (BlockKey) obj;
+        return index == other.getIndex() && filePath.equals(other.getFilePath());
+    }
+
+    @Override
+    public int hashCode() {
+        return filePath.hashCode() * 31 + index;
+    }
+
+    @Override
+    public String toString() {
+        return filePath + "#" + index;
+    }
+}
@@ -1,53 +1,383 @@
 package nfs.client;
 
+import nfs.common.Serializer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeSet;
 
+/**
+ * The client cache of file contents, bounded by the total size of the cached contents in bytes.
+ * Files are cached in blocks of BLOCK_SIZE bytes, keyed by the file path and the index of the block,
+ * and each block carries its own validation metadata. A block shorter than BLOCK_SIZE is the last
+ * block of the file.
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window; entries leaving the window
+ * compete with the least recently used entry of the main space, and the one that has been accessed
+ * less often recently, as estimated by a {@link FrequencySketch}, is evicted. The main space is a
+ * segmented LRU, where entries accessed again are promoted from the probation to the protected segment.
+ * A scan of files read only once therefore cannot flush the frequently read ones.
+ * In off-heap mode, file contents are stored in direct memory by a {@link SlabAllocator} and
+ * each entry is charged the size of the pages it occupies.
+ */
 public class Cache {
-    private final Map<String, CacheEntry> cachedFiles = new ConcurrentHashMap<>();
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int MAX_SKETCH_SIZE = 1 << 16;
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    private final SlabAllocator allocator;
+    // All three segments are ordered from the least to the most recently used entry.
+    private final LinkedHashMap<BlockKey, CacheEntry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<BlockKey, CacheEntry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<BlockKey, CacheEntry> protectedSegment = new LinkedHashMap<>();
+    // Indices of the cached blocks of each file.
+    private final Map<String, TreeSet<Integer>> blocks = new HashMap<>();
+    private long windowSize = 0;
+    private long probationSize = 0;
+    private long protectedSize = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Create an unbounded cache.
+     */
+    public Cache() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a cache holding at most capacity bytes of file contents.
+     *
+     * @param capacity capacity in bytes
+     */
+    public Cache(long capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Create a cache holding at most capacity bytes of file contents.
+     *
+     * @param capacity capacity in bytes
+     * @param offHeap  true to store file contents off the Java heap
+     */
+    public Cache(long capacity, boolean offHeap) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Cache capacity should be greater than 0.");
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (long) (capacity * WINDOW_RATIO));
+        this.protectedCapacity = (long) ((capacity - windowCapacity) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch((int) Math.min(MAX_SKETCH_SIZE, capacity / Serializer.BLOCK_SIZE));
+        this.allocator = offHeap ? new SlabAllocator() : null;
+    }
 
     /**
-     * Check if a file is available in cache
+     * Check if any block of a file is available in cache
+     * This does not count as an access of the file.
      *
-     * @param filepath file path on server
+     * @param filePath file path on server
      * @return true if the file is cached
      */
-    public boolean exists(String filepath) {
-        return cachedFiles.get(filepath) != null;
+    public synchronized boolean exists(String filePath) {
+        return blocks.containsKey(filePath);
+    }
+
+    /**
+     * Return a block if cached, otherwise return null
+     *
+     * @param filePath file path on server
+     * @param index    index of the block
+     * @return cache entry of the requested block
+     */
+    public synchronized CacheEntry getBlock(String filePath, int index) {
+        BlockKey key = new BlockKey(filePath, index);
+        sketch.increment(key);
+        CacheEntry entry;
+        if ((entry = window.remove(key)) != null) {
+            window.put(key, entry);
+        } else if ((entry = probation.remove(key)) != null) {
+            // Accessed again while on probation: promote to the protected segment.
+            probationSize -= weightOf(entry);
+            protectedSegment.put(key, entry);
+            protectedSize += weightOf(entry);
+            demoteProtected();
+        } else if ((entry = protectedSegment.remove(key)) != null) {
+            protectedSegment.put(key, entry);
+        }
+
+        if (entry == null)
+            missCount++;
+        else
+            hitCount++;
+        return entry;
+    }
+
+    /**
+     * Put a block to the cache
+     * If the cache previously contained the block, the old value is replaced.
+     * A block larger than the capacity of the cache is not cached.
+     *
+     * @param filePath     file path on server
+     * @param index        index of the block
+     * @param blockContent content of the block, at most BLOCK_SIZE bytes
+     * @param tMclient     last modification time on client - given by cache handler
+     * @param tC           last validation time on client - given by cache handler
+     * @return the new cache entry, or null if the block is too large to be cached
+     */
+    public synchronized CacheEntry putBlock(String filePath, int index, byte[] blockContent, long tMclient, long tC) {
+        BlockKey key = new BlockKey(filePath, index);
+        LinkedHashMap<BlockKey, CacheEntry> segment = segmentOf(key);
+        if (segment == null) {
+            sketch.increment(key);
+            if (weightOf(blockContent) > capacity)
+                return null;
+        }
+        CacheEntry newEntry = allocator == null ? new CacheEntry(blockContent, tC, tMclient)
+                : new OffHeapCacheEntry(allocator, blockContent, tC, tMclient);
+        long weight = weightOf(newEntry);
+        if (segment != null) {
+            // Replace in place, keeping the position of the block in the policy.
+            CacheEntry oldEntry = segment.remove(key);
+            addSize(segment, weight - weightOf(oldEntry));
+            segment.put(key, newEntry);
+            oldEntry.release();
+        } else {
+            window.put(key, newEntry);
+            windowSize += weight;
+            blocks.computeIfAbsent(filePath, path -> new TreeSet<>()).add(index);
+        }
+        if (segment == protectedSegment)
+            demoteProtected();
+        evict();
+        return newEntry;
+    }
+
+    /**
+     * Remove a cached block
+     *
+     * @param filePath file path on server
+     * @param index    index of the block
+     */
+    public synchronized void removeBlock(String filePath, int index) {
+        BlockKey key = new BlockKey(filePath, index);
+        LinkedHashMap<BlockKey, CacheEntry> segment = segmentOf(key);
+        if (segment != null)
+            discard(segment, key);
+    }
+
+    /**
+     * Remove the cached blocks of a file starting from a block
+     *
+     * @param filePath file path on server
+     * @param from     index of the first block to remove
+     */
+    public synchronized void removeBlocksFrom(String filePath, int from) {
+        TreeSet<Integer> indices = blocks.get(filePath);
+        if (indices == null)
+            return;
+        for (int index : new ArrayList<>(indices.tailSet(from))) {
+            removeBlock(filePath, index);
+        }
     }
 
     /**
-     * Return file if cached, otherwise return null
+     * Remove all cached blocks of a file
      *
      * @param filePath file path on server
-     * @return cache entry of the requested file
      */
-    public CacheEntry getFile(String filePath) {
-        return cachedFiles.get(filePath);
+    public synchronized void removeFile(String filePath) {
+        removeBlocksFrom(filePath, 0);
     }
 
     /**
-     * Put an entry to the cached files
-     * If the map previously contained a mapping for the filePath,
-     * the old value is replaced.
+     * Find the first cached block of a file at or after a block
+     * This does not count as an access of the file.
      *
-     * @param filePath    file path on server
-     * @param fileContent content of the file
-     * @param tMclient    last modification time on client - given by cache handler
-     * @param tC          last validation time on client - given by cache handler
+     * @param filePath file path on server
+     * @param from     index of the block to start from
+     * @return index of the block, or -1 if there is none
      */
-    public void putFile(String filePath, byte[] fileContent, long tMclient, long tC) {
-        CacheEntry newEntry = new CacheEntry(fileContent, tC, tMclient);
-        cachedFiles.put(filePath, newEntry);
+    public synchronized int nextBlock(String filePath, int from) {
+        TreeSet<Integer> indices = blocks.get(filePath);
+        Integer next = indices == null ? null : indices.ceiling(from);
+        return next == null ? -1 : next;
     }
 
     /**
-     * Remove a cached file
+     * Return the cached blocks of a file, in order
+     * This does not count as an access of the file.
      *
      * @param filePath file path on server
+     * @return cache entries of the blocks
+     */
+    public synchronized List<CacheEntry> peekBlocks(String filePath) {
+        TreeSet<Integer> indices = blocks.get(filePath);
+        if (indices == null)
+            return List.of();
+        List<CacheEntry> entries = new ArrayList<>(indices.size());
+        for (int index : indices) {
+            BlockKey key = new BlockKey(filePath, index);
+            entries.add(segmentOf(key).get(key));
+        }
+        return entries;
+    }
+
+    /**
+     * @return capacity of the cache in bytes
      */
-    public void removeFile(String filePath) {
-        cachedFiles.remove(filePath);
+    public long getCapacity() {
+        return capacity;
     }
 
+    /**
+     * @return total size of the cached file contents in bytes
+     */
+    public synchronized long getSize() {
+        return windowSize + probationSize + protectedSize;
+    }
+
+    /**
+     * @return number of files with at least one cached block
+     */
+    public synchronized int getNumFiles() {
+        return blocks.size();
+    }
+
+    /**
+     * @return number of cached blocks
+     */
+    public synchronized int getNumBlocks() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    /**
+     * @return number of lookups that found the block in cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of lookups that did not find the block in cache
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of blocks evicted to stay within the capacity
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return true if file contents are stored off the Java heap
+     */
+    public boolean isOffHeap() {
+        return allocator != null;
+    }
+
+    /**
+     * @return total size of the direct memory allocated for file contents in bytes, 0 if on heap
+     */
+    public synchronized long getOffHeapAllocated() {
+        return allocator == null ? 0 : allocator.getAllocated();
+    }
+
+    private LinkedHashMap<BlockKey, CacheEntry> segmentOf(BlockKey key) {
+        if (window.containsKey(key))
+            return window;
+        if (probation.containsKey(key))
+            return probation;
+        if (protectedSegment.containsKey(key))
+            return protectedSegment;
+        return null;
+    }
+
+    private void addSize(LinkedHashMap<BlockKey, CacheEntry> segment, long delta) {
+        if (segment == window)
+            windowSize += delta;
+        else if (segment == probation)
+            probationSize += delta;
+        else
+            protectedSize += delta;
+    }
+
+    private static long weightOf(CacheEntry entry) {
+        return entry.getWeight();
+    }
+
+    private long weightOf(byte[] blockContent) {
+        if (allocator == null)
+            return blockContent.length;
+        return (long) SlabAllocator.pagesFor(blockContent.length) * SlabAllocator.PAGE_SIZE;
+    }
+
+    private void discard(LinkedHashMap<BlockKey, CacheEntry> segment, BlockKey key) {
+        CacheEntry entry = segment.remove(key);
+        addSize(segment, -weightOf(entry));
+        entry.release();
+        TreeSet<Integer> indices = blocks.get(key.getFilePath());
+        indices.remove(key.getIndex());
+        if (indices.isEmpty())
+            blocks.remove(key.getFilePath());
+    }
+
+    /**
+     * Move the least recently used protected entries back to probation while the protected segment is full.
+     */
+    private void demoteProtected() {
+        Iterator<Map.Entry<BlockKey, CacheEntry>> it = protectedSegment.entrySet().iterator();
+        while (protectedSize > protectedCapacity && it.hasNext()) {
+            Map.Entry<BlockKey, CacheEntry> lru = it.next();
+            it.remove();
+            long weight = weightOf(lru.getValue());
+            protectedSize -= weight;
+            probation.put(lru.getKey(), lru.getValue());
+            probationSize += weight;
+        }
+    }
+
+    /**
+     * Move entries overflowing the window to probation as candidates, then evict until the cache fits.
+     * The most recently admitted candidate competes with the victim, i.e. the least recently used entry
+     * of the main space, and the one with the lower estimated frequency is evicted.
+     */
+    private void evict() {
+        List<BlockKey> candidates = new ArrayList<>();
+        Iterator<Map.Entry<BlockKey, CacheEntry>> windowIt = window.entrySet().iterator();
+        while (windowSize > windowCapacity && windowIt.hasNext()) {
+            Map.Entry<BlockKey, CacheEntry> lru = windowIt.next();
+            windowIt.remove();
+            long weight = weightOf(lru.getValue());
+            windowSize -= weight;
+            probation.put(lru.getKey(), lru.getValue());
+            probationSize += weight;
+            candidates.add(lru.getKey());
+        }
+
+        while (getSize() > capacity) {
+            LinkedHashMap<BlockKey, CacheEntry> segment = !probation.isEmpty() ? probation
+                    : !protectedSegment.isEmpty() ? protectedSegment : window;
+            BlockKey victim = segment.keySet().iterator().next();
+            BlockKey evicted = victim;
+            if (!candidates.isEmpty()) {
+                BlockKey candidate = candidates.get(candidates.size() - 1);
+                if (!candidate.equals(victim) && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                    evicted = candidate;
+                    segment = probation;
+                }
+            }
+            candidates.remove(evicted);
+            discard(segment, evicted);
+            evictionCount++;
+        }
+    }
 }
@@ -1,9 +1,11 @@
 package nfs.client;
 
 public class CacheEntry {
-    private byte[] fileContent = null;
-    private long tC = 0;
-    private long tMclient = 0;
+    private final byte[] fileContent;
+    // Read by the readers while the refresher advances them.
+    private volatile long tC = 0;
+    private volatile long tMclient = 0;
+    private final long weight;
 
     /**
      * Entry in the client cache
@@ -16,14 +18,25 @@ public class CacheEntry {
         this.fileContent = fileContent;
         this.tC = tC;
         this.tMclient = tMclient;
+        this.weight = fileContent.length;
     }
 
-    public byte[] getFileContent() {
-        return this.fileContent;
+    /**
+     * Entry whose content is kept elsewhere by a subclass
+     *
+     * @param tC       last validation time.
+     * @param tMclient last modification time.
+     * @param weight   size charged to the cache in bytes.
+     */
+    CacheEntry(long tC, long tMclient, long weight) {
+        this.fileContent = null;
+        this.tC = tC;
+        this.tMclient = tMclient;
+        this.weight = weight;
     }
 
-    public void setFileContent(byte[] newContent) {
-        this.fileContent = newContent;
+    public byte[] getFileContent() {
+        return this.fileContent;
     }
 
     public long getTc() {
@@ -34,6 +47,32 @@ public class CacheEntry {
         this.tC = newTc;
     }
 
+    /**
+     * Advance the last validation time, unless a later one has been set meanwhile.
+     * Validations of the same entry may complete concurrently, in any order.
+     *
+     * @param newTc validation time.
+     */
+    synchronized void advanceTc(long newTc) {
+        if (newTc > this.tC)
+            this.tC = newTc;
+    }
+
+    /**
+     * Get the size charged to the cache for this entry, i.e. the size of the content it was created with.
+     *
+     * @return weight in bytes.
+     */
+    long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Release the storage held by the entry once it has left the cache.
+     */
+    void release() {
+    }
+
     public long getTmclient() {
         return this.tMclient;
     }
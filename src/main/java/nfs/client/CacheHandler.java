@@ -1,103 +1,457 @@
 package nfs.client;
 
+import nfs.common.Serializer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class CacheHandler {
     private static final Logger logger = LogManager.getLogger();
+    private static final int BLOCK_SIZE = Serializer.BLOCK_SIZE;
+    static final int MAX_BUFFERED = 32 * BLOCK_SIZE; // buffered bytes per file that trigger a flush
+    private static final int NUM_FLUSH_LOCKS = 16;
+    private static final long MIN_REFRESH_PERIOD = 10; // in ms
     static Cache cache; // only one instance
     private final Proxy stub;
     private final long freshInterval;
+    private final DiskCache diskCache;
+    private final AttributeCache attributeCache;
+    private final DirectoryCache directoryCache;
+    // Reads in progress, at most one per file.
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+    // Write-behind is disabled while the write buffer is null.
+    private WriteBuffer writeBuffer;
+    private ScheduledExecutorService flusher;
+    private long flushDelay;
+    // Flushes of a file are serialized, so that its writes reach the server in order.
+    private final Object[] flushLocks = new Object[NUM_FLUSH_LOCKS];
+    // Background refresh is disabled while the refresher is null.
+    private ScheduledExecutorService refresher;
+    private long maxStale;
+    private long refreshPeriod;
+    // Time of the last read of the files read recently, which the refresher keeps fresh.
+    private final ConcurrentMap<String, Long> hotFiles = new ConcurrentHashMap<>();
+    // Files with stale blocks served while they are revalidated.
+    private final Set<String> staleFiles = ConcurrentHashMap.newKeySet();
 
     public CacheHandler(Proxy stub, long freshInterval) {
+        this(stub, freshInterval, new Cache());
+    }
+
+    public CacheHandler(Proxy stub, long freshInterval, Cache newCache) {
+        this(stub, freshInterval, newCache, null);
+    }
+
+    CacheHandler(Proxy stub, long freshInterval, Cache newCache, DiskCache diskCache) {
+        this(stub, freshInterval, newCache, diskCache, new AttributeCache(), new DirectoryCache());
+    }
+
+    /**
+     * @param stub           proxy of the server
+     * @param freshInterval  freshness interval in ms
+     * @param newCache       the in-memory cache
+     * @param diskCache      the second-level cache on disk, or null to keep files only in memory
+     * @param attributeCache the cache of file attributes
+     * @param directoryCache the cache of directory listings
+     */
+    CacheHandler(Proxy stub, long freshInterval, Cache newCache, DiskCache diskCache,
+                 AttributeCache attributeCache, DirectoryCache directoryCache) {
         this.stub = stub;
         this.freshInterval = freshInterval;
-        cache = new Cache();
+        this.diskCache = diskCache;
+        this.attributeCache = attributeCache;
+        this.directoryCache = directoryCache;
+        cache = newCache;
+        for (int i = 0; i < NUM_FLUSH_LOCKS; i++) {
+            flushLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Buffer writes on the client and send them to the server in the background
+     * The buffered writes to a file are sent once MAX_BUFFERED bytes are buffered, flushDelay ms after
+     * the first of them, before the file is read, or when flushed explicitly.
+     * This must be called before the cache handler is used.
+     *
+     * @param flushDelay maximum time in ms a write is buffered
+     */
+    public void enableWriteBehind(long flushDelay) {
+        this.flushDelay = flushDelay;
+        this.writeBuffer = new WriteBuffer();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Revalidate the cached blocks of recently read files in the background
+     * Every freshInterval / 4 ms, the files read within the last freshInterval whose cached blocks expire before
+     * the next round have their attributes requested together. Blocks of an unmodified file are fresh again,
+     * blocks of a modified file are dropped. Readers of hot files therefore rarely wait for a validation.
+     * A cached block at most maxStale ms past the freshness interval is still served, and its file is
+     * revalidated in the background right away.
+     * This must be called before the cache handler is used.
+     *
+     * @param maxStale maximum time in ms past the freshness interval a cached block is served while revalidated
+     */
+    public void enableRefresh(long maxStale) {
+        if (maxStale < 0)
+            throw new IllegalArgumentException("Maximum staleness should not be negative.");
+        this.maxStale = maxStale;
+        this.refreshPeriod = Math.max(freshInterval / 4, MIN_REFRESH_PERIOD);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, refreshPeriod, refreshPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Revalidate the hot files whose cached blocks expire before the next round
+     */
+    void refresh() {
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<>();
+        for (Map.Entry<String, Long> hot : hotFiles.entrySet()) {
+            String filePath = hot.getKey();
+            if (now - hot.getValue() >= freshInterval) {
+                hotFiles.remove(filePath, hot.getValue());
+                continue;
+            }
+            for (CacheEntry entry : cache.peekBlocks(filePath)) {
+                if (now - entry.getTc() >= freshInterval - refreshPeriod) {
+                    due.add(filePath);
+                    break;
+                }
+            }
+        }
+        revalidate(due);
     }
 
     /**
-     * Get file from cache
-     * if file not in cache, request file and cache it
-     * validate the file upon access
+     * Revalidate the cached blocks of files with a batch of attribute requests
+     *
+     * @param filePaths file paths on server
+     */
+    private void revalidate(List<String> filePaths) {
+        if (filePaths.isEmpty())
+            return;
+        logger.info(String.format("Revalidating %d file(s) in the background.", filePaths.size()));
+        long tC = System.currentTimeMillis();
+        List<Optional<long[]>> attributes;
+        try {
+            attributes = stub.getAttrAll(filePaths);
+        } catch (IOException e) {
+            logger.warn("Error revalidating cached files", e);
+            return;
+        }
+        for (int i = 0; i < filePaths.size(); i++) {
+            String filePath = filePaths.get(i);
+            Optional<long[]> attr = attributes.get(i);
+            if (attr.isEmpty()) {
+                hotFiles.remove(filePath);
+                discard(filePath);
+                continue;
+            }
+            attributeCache.put(filePath, attr.get()[0], attr.get()[1]);
+            for (CacheEntry entry : cache.peekBlocks(filePath)) {
+                if (entry.getTmclient() != attr.get()[0]) {
+                    logger.info("Cached blocks of " + filePath + " are out of date.");
+                    discard(filePath);
+                    break;
+                }
+                // Only the validation time of the entry is advanced in place. Writes put new entries,
+                // so a concurrent write is not undone, at worst this advances an entry being replaced.
+                entry.advanceTc(tC);
+            }
+        }
+    }
+
+    /**
+     * Get the whole file
      *
      * @param filePath file path on server
      * @return file content in bytes
      */
     public Optional<byte[]> getFile(String filePath) throws IOException {
-        Optional<long[]> optAttr = stub.getAttr((filePath));
-
-        // not in cache
-        if (!cache.exists(filePath)) {
-            Optional<byte[]> optContent = stub.requestFile(filePath);
-
-            // file found on server
-            if (optContent.isPresent() && optAttr.isPresent()) {
-                logger.info(filePath + " is not cached. File retrieved from server.");
-                byte[] fileContent = optContent.get();
-                long tMserver = optAttr.get()[0];
-                long now = System.currentTimeMillis();
-                cache.putFile(filePath, fileContent, tMserver, now);
-            }
-            return optContent;
+        return getFileRange(filePath, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a range of a file
+     * Only the blocks covering the range are read. Cached blocks within the freshness interval are served
+     * locally. Cached blocks beyond the freshness interval are validated against the modification time in the
+     * attribute cache if it holds one. Otherwise the first of them is read conditionally, which either confirms
+     * that the file has not been modified or returns the block, in one round trip; the modification time
+     * it returns validates the other cached blocks. Blocks that are missing or invalid are requested from
+     * the server, along with the modification time, and cached.
+     * Concurrent reads of a file are coalesced: while one thread reads the file, other threads wait for it
+     * and share its result if they asked for the same range, or then read from the cache it has filled.
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes
+     * @return bytes in the range, which may be fewer than count at the end of the file
+     */
+    public Optional<byte[]> getFileRange(String filePath, int offset, int count) throws IOException {
+        // Reads see the writes buffered on the client.
+        flush(filePath);
+        if (refresher != null)
+            hotFiles.put(filePath, System.currentTimeMillis());
+        if (count == 0)
+            return stub.readRange(filePath, offset, count);
+        while (true) {
+            Flight flight = new Flight(offset, count);
+            Flight leader = inFlight.putIfAbsent(filePath, flight);
+            if (leader == null)
+                return lead(filePath, flight);
+            logger.info("Waiting for a concurrent read of " + filePath);
+            Optional<byte[]> result = leader.await();
+            if (leader.offset == offset && leader.count == count)
+                return result.map(byte[]::clone);
         }
+    }
 
-        // File is in the cache
-        CacheEntry entry = cache.getFile(filePath);
-        // check freshness upon access
-        if (System.currentTimeMillis() - entry.getTc() >= freshInterval) {
-            logger.info("Cached copy of " + filePath +
-                    " has exceeded the freshness interval. Validating...");
+    /**
+     * Read a range on behalf of all threads waiting for the flight
+     */
+    private Optional<byte[]> lead(String filePath, Flight flight) throws IOException {
+        Optional<byte[]> result;
+        try {
+            result = getBlocks(filePath, flight.offset, flight.count, null, true);
+        } catch (IOException | RuntimeException e) {
+            inFlight.remove(filePath, flight);
+            flight.future.completeExceptionally(e);
+            throw e;
+        }
+        // Remove the flight first, so that no thread waits for it once it has completed.
+        inFlight.remove(filePath, flight);
+        flight.future.complete(result);
+        return result;
+    }
 
-            if (optAttr.isEmpty()) {
-                cache.removeFile(filePath);
-                logger.warn(filePath + " removed from cache due to invalid file attribute.");
-                return Optional.empty();
-            } else {
-                long tMserver = optAttr.get()[0];
-                // invalid entry
-                if (entry.getTmclient() < tMserver) {
-                    logger.info("Invalid cached copy of " + filePath +
-                            " Requesting the latest copy from server...");
-                    Optional<byte[]> optFile = stub.requestFile(filePath);
-
-                    // file still on server
-                    if (optFile.isPresent()) {
-                        byte[] fileContent = optFile.get();
-                        long now = System.currentTimeMillis();
-                        cache.putFile(filePath, fileContent, tMserver, now);
-                        logger.info("Updated the cached copy of " + filePath);
-                    } else {
-                        cache.removeFile(filePath);
+    /**
+     * Read a range of a file into the cache ahead of time
+     * Files with buffered writes are not read ahead, so that their writes stay buffered.
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes
+     * @return number of bytes in the range, fewer than count at the end of the file, or -1 if it was not read
+     */
+    public int prefetch(String filePath, int offset, int count) throws IOException {
+        if (writeBuffer != null && writeBuffer.contains(filePath))
+            return -1;
+        return getFileRange(filePath, offset, count).map(range -> range.length).orElse(-1);
+    }
+
+    /**
+     * Assemble the blocks covering a range from the cache and the server
+     * All blocks must have been read from the same version of the file. If they were not,
+     * the cached blocks of the file are dropped and the range is read again.
+     *
+     * @param tMserver last modification time on server, or null if not known yet
+     * @param retry    whether to read again if the blocks are inconsistent
+     */
+    private Optional<byte[]> getBlocks(String filePath, int offset, int count, Long tMserver, boolean retry)
+            throws IOException {
+        int first = offset / BLOCK_SIZE;
+        int last = (int) (((long) offset + count - 1) / BLOCK_SIZE);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        Long version = null;
+        int numCached = 0;
+        int numFetched = 0;
+
+        int block = first;
+        while (block <= last) {
+            CacheEntry entry = lookup(filePath, block);
+            byte[] blockContent = null;
+            FileRange range = null;
+            int runEnd = block;
+            int runCount = BLOCK_SIZE;
+            if (entry != null && isFresh(entry)) {
+                // The content is null if the off-heap storage of the entry has been released by a concurrent update.
+                blockContent = entry.getFileContent();
+            } else if (entry != null && isWithinMaxStale(entry)) {
+                blockContent = entry.getFileContent();
+                revalidateSoon(filePath);
+            } else if (entry != null && tMserver != null) {
+                blockContent = validate(filePath, block, entry, tMserver);
+            } else if (entry != null) {
+                logger.info("Cached copy of " + filePath + " has exceeded the freshness interval. Validating...");
+                Optional<long[]> attributes = attributeCache.get(filePath);
+                if (attributes.isPresent()) {
+                    tMserver = attributes.get()[0];
+                    blockContent = validate(filePath, block, entry, tMserver);
+                } else {
+                    // Validate with a conditional read, which also returns the block if the file has been modified.
+                    Optional<FileRange> optRange = stub.readIfModified(filePath, entry.getTmclient(),
+                            block * BLOCK_SIZE, BLOCK_SIZE);
+                    if (optRange.isEmpty()) {
+                        discard(filePath);
                         logger.warn(filePath + " removed from cache due to read error.");
+                        return Optional.empty();
                     }
-                    return optFile;
+                    tMserver = optRange.get().getMtime();
+                    if (optRange.get().isModified())
+                        range = optRange.get();
+                    else
+                        blockContent = validate(filePath, block, entry, tMserver);
+                }
+            }
+            if (blockContent == null && range == null) {
+                // Read the run of blocks up to the next cached one in a single request.
+                int next = nextBlock(filePath, block + 1);
+                runEnd = next < 0 || next > last ? last : next - 1;
+                runCount = (int) Math.min((long) (runEnd - block + 1) * BLOCK_SIZE, Integer.MAX_VALUE);
+                Optional<FileRange> optRange = stub.readFileRange(filePath, block * BLOCK_SIZE, runCount);
+                if (optRange.isEmpty())
+                    return Optional.empty();
+                range = optRange.get();
+            }
+
+            long tMblock;
+            boolean eof;
+            if (range == null) {
+                tMblock = entry.getTmclient();
+                content.write(blockContent, 0, blockContent.length);
+                numCached++;
+                // A short block is the last block of the file.
+                eof = blockContent.length < BLOCK_SIZE;
+            } else {
+                tMblock = range.getMtime();
+                if (tMserver == null)
+                    tMserver = tMblock;
+                storeBlocks(filePath, block, range.getData(), runCount, tMblock, System.currentTimeMillis());
+                content.write(range.getData(), 0, range.getData().length);
+                numFetched += runEnd - block + 1;
+                eof = range.getData().length < runCount;
+                block = runEnd;
+            }
 
-                } else if (entry.getTmclient() > tMserver) {
-                    logger.error("Invalid file attribute: Tmclient > Tmserver");
-                    cache.removeFile(filePath);
-                    logger.warn(filePath + " removed from cache due to invalid file attribute.");
+            if (version != null && version != tMblock) {
+                if (!retry) {
+                    logger.warn(filePath + " kept changing while reading it.");
                     return Optional.empty();
-                } else {
-                    // File has not been modified on server. Set Tc to be now.
-                    logger.info("File has not been modified on server. Updating Tc...");
-                    long now = System.currentTimeMillis();
-                    // In principle, this is not a thread-safe operation. But cache entries are not shared with
-                    // other threads (update will put a new instance of cache entry), so here it is safe to do this.
-                    entry.setTc(now);
                 }
+                logger.info("Cached blocks of " + filePath + " are out of date. Reading again...");
+                discard(filePath);
+                return getBlocks(filePath, offset, count, tMblock, false);
             }
+            version = tMblock;
+            if (eof)
+                break;
+            block++;
         }
 
-        // The entry is within freshness interval or has not been modified on the server.
-        logger.info("Retrieved " + filePath + " from cache.");
-        return Optional.of(entry.getFileContent());
+        logger.info(String.format("Read %d block(s) of %s from cache and %d from server.",
+                numCached, filePath, numFetched));
+        byte[] bytes = content.toByteArray();
+        int skip = offset - first * BLOCK_SIZE;
+        if (skip > bytes.length) {
+            logger.warn("Offset out of range");
+            return Optional.empty();
+        }
+        return Optional.of(Arrays.copyOfRange(bytes, skip, (int) Math.min(bytes.length, (long) skip + count)));
+    }
+
+    private boolean isFresh(CacheEntry entry) {
+        return System.currentTimeMillis() - entry.getTc() < freshInterval;
+    }
+
+    private boolean isWithinMaxStale(CacheEntry entry) {
+        return refresher != null && System.currentTimeMillis() - entry.getTc() < freshInterval + maxStale;
     }
 
     /**
-     * Update a file on client: if cached, replace the old file, else add file
+     * Revalidate a file with stale cached blocks in the background, once at a time
+     */
+    private void revalidateSoon(String filePath) {
+        if (!staleFiles.add(filePath))
+            return;
+        logger.info("Serving stale cached copy of " + filePath + " while revalidating it.");
+        try {
+            refresher.execute(() -> {
+                staleFiles.remove(filePath);
+                revalidate(List.of(filePath));
+            });
+        } catch (RejectedExecutionException e) {
+            staleFiles.remove(filePath);
+        }
+    }
+
+    /**
+     * Validate a cached block which has exceeded the freshness interval
+     *
+     * @param filePath file path on server
+     * @param block    index of the block
+     * @param entry    cache entry of the block
+     * @param tMserver last modification time on server
+     * @return content of the block, or null if it has to be read from the server
+     */
+    private byte[] validate(String filePath, int block, CacheEntry entry, long tMserver) {
+        if (entry.getTmclient() > tMserver) {
+            logger.error("Invalid file attribute: Tmclient > Tmserver");
+            return null;
+        } else if (entry.getTmclient() < tMserver) {
+            logger.info("Invalid cached block " + block + " of " + filePath);
+            return null;
+        }
+        // File has not been modified on server. Set Tc to be now.
+        // The entry is shared with the concurrent reads and the refresher, which may validate it too,
+        // so Tc is only ever advanced. Writes put new entries, so the content validated here is not undone.
+        entry.advanceTc(System.currentTimeMillis());
+        // The content is null if the off-heap storage of the entry has been released by a concurrent update.
+        return entry.getFileContent();
+    }
+
+    /**
+     * Split bytes read from the server into blocks and cache them
+     * If the read ended before the requested count, the file ends there, so an empty block is cached
+     * at a block boundary to mark the end, and any cached block beyond the end is dropped.
+     *
+     * @param first     index of the first block
+     * @param data      bytes read from offset first * BLOCK_SIZE
+     * @param requested number of bytes requested
+     */
+    private void storeBlocks(String filePath, int first, byte[] data, int requested, long tMclient, long tC) {
+        for (int i = 0; i * BLOCK_SIZE < data.length; i++) {
+            int from = i * BLOCK_SIZE;
+            store(filePath, first + i, Arrays.copyOfRange(data, from, Math.min(data.length, from + BLOCK_SIZE)),
+                    tMclient, tC);
+        }
+        if (data.length < requested) {
+            int lastBlock = first + data.length / BLOCK_SIZE;
+            if (data.length % BLOCK_SIZE == 0)
+                store(filePath, lastBlock, new byte[0], tMclient, tC);
+            discardFrom(filePath, lastBlock + 1);
+        }
+    }
+
+    /**
+     * Update a file on client: replace all cached blocks of the file
      *
      * @param filePath   file path on server.
      * @param tMserver   last modification time on server
@@ -105,40 +459,430 @@ public class CacheHandler {
      */
     public void updateFile(String filePath, long tMserver, byte[] newContent) {
         long now = System.currentTimeMillis();
-        cache.putFile(filePath, newContent, tMserver, now);
+        attributeCache.invalidate(filePath);
+        discard(filePath);
+        storeBlocks(filePath, 0, newContent, Integer.MAX_VALUE, tMserver, now);
     }
 
     /**
-     * Send an insert request to the server
-     * Remove the file from cache (if cached) to maintain cache consistency
+     * Send an insert request to the server, or buffer it in write-behind mode
+     * The insertion is applied to the cached blocks of the file once the server has acknowledged it.
      *
      * @param filePath file path on the server
      * @param offset   offset in bytes
      * @param data     data in bytes
+     * @return true if the file has been written, or the write buffered
      * @throws IOException
      */
-    public void insertFile(String filePath, int offset, byte[] data) throws IOException {
-        if (cache.exists(filePath))
-            cache.removeFile(filePath);
-        stub.insert(filePath, offset, data);
+    public boolean insertFile(String filePath, int offset, byte[] data) throws IOException {
+        if (writeBuffer != null) {
+            buffered(filePath, data.length, writeBuffer.insert(filePath, offset, data));
+            return true;
+        }
+        return write(filePath, offset, data);
     }
 
     /**
-     * Send an append request to the server
-     * Remove the file from cache (if cached) to maintain cache consistency
+     * Send an append request to the server, or buffer it in write-behind mode
+     * The append is applied to the cached blocks of the file once the server has acknowledged it.
      *
      * @param filePath file path on the server
      * @param data     data in bytes
+     * @return true if the file has been written, or the write buffered
      * @throws IOException
      */
-    public void appendFile(String filePath, byte[] data) throws IOException {
-        if (cache.exists(filePath))
-            cache.removeFile(filePath);
-        stub.append(filePath, data);
+    public boolean appendFile(String filePath, byte[] data) throws IOException {
+        if (writeBuffer != null) {
+            buffered(filePath, data.length, writeBuffer.append(filePath, data));
+            return true;
+        }
+        return write(filePath, WriteBuffer.Write.APPEND, data);
+    }
+
+    /**
+     * Send a write to the server and apply it to the cached blocks of the file
+     *
+     * @param offset offset of the insertion in bytes, or WriteBuffer.Write.APPEND to append
+     * @return true if the file has been written
+     */
+    private boolean write(String filePath, int offset, byte[] data) throws IOException {
+        Optional<long[]> mtimes;
+        try {
+            mtimes = offset == WriteBuffer.Write.APPEND ? stub.appendFile(filePath, data)
+                    : stub.insertFile(filePath, offset, data);
+        } catch (IOException e) {
+            // The write may have been applied even though no reply was received.
+            discard(filePath);
+            throw e;
+        } finally {
+            attributeCache.invalidate(filePath);
+        }
+        if (mtimes.isEmpty())
+            return false;
+        applyWrite(filePath, offset, data, mtimes.get()[0], mtimes.get()[1]);
+        return true;
+    }
+
+    /**
+     * Apply a change of a file, sent by the server as a delta, to the cached blocks of the file
+     * If the cached blocks are not of the version the change was applied to, or do not end where the file
+     * now ends, they are removed.
+     *
+     * @param filePath file path on server
+     * @param offset   offset of the inserted data in bytes
+     * @param data     inserted data
+     * @param length   length of the file after the change
+     * @param tMbase   last modification time on server before the change
+     * @param tMserver last modification time on server after the change
+     */
+    public void applyDelta(String filePath, int offset, byte[] data, long length, long tMbase, long tMserver) {
+        attributeCache.invalidate(filePath);
+        applyWrite(filePath, offset, data, tMserver, tMbase);
+        int last = -1;
+        for (int next = nextBlock(filePath, 0); next >= 0; next = nextBlock(filePath, next + 1)) {
+            last = next;
+        }
+        if (last < 0)
+            return;
+        CacheEntry entry = lookup(filePath, last);
+        byte[] lastContent = entry == null ? null : entry.getFileContent();
+        // A short last block is the end of the file, which must be where the server says.
+        if (lastContent == null || (lastContent.length < BLOCK_SIZE
+                && (long) last * BLOCK_SIZE + lastContent.length != length)) {
+            logger.warn("Cached blocks of " + filePath + " do not match the update. Removed from cache.");
+            discard(filePath);
+        }
+    }
+
+    /**
+     * Apply a write acknowledged by the server to the cached blocks of a file
+     * A write may be reported twice, by the reply to the write and by a callback; it is applied only once.
+     * The cached blocks are kept only if they are of the version the write was applied to. The blocks before
+     * the write are unchanged and only take the new modification time. The data is spliced into the blocks
+     * from the write on as far as they are cached without a gap; the blocks after a gap are dropped, since
+     * their content has shifted. An append is spliced into the last block only if the end of the file is cached.
+     *
+     * @param offset      offset of the insertion in bytes, or WriteBuffer.Write.APPEND to append
+     * @param tMserver    last modification time on server after the write
+     * @param tMprevious  last modification time on server before the write
+     */
+    private void applyWrite(String filePath, int offset, byte[] data, long tMserver, long tMprevious) {
+        long now = System.currentTimeMillis();
+        if (tMserver == tMprevious) {
+            // Modification times are in ms, so the versions before and after the write cannot be told apart.
+            discard(filePath);
+            return;
+        }
+        TreeMap<Integer, byte[]> cached = new TreeMap<>();
+        Long version = null;
+        for (int block = nextBlock(filePath, 0); block >= 0; block = nextBlock(filePath, block + 1)) {
+            CacheEntry entry = lookup(filePath, block);
+            byte[] blockContent = entry == null ? null : entry.getFileContent();
+            if (blockContent == null || (entry.getTmclient() != tMprevious && entry.getTmclient() != tMserver)
+                    || (version != null && version != entry.getTmclient())) {
+                logger.info("Cached blocks of " + filePath + " are out of date. Removed from cache.");
+                discard(filePath);
+                return;
+            }
+            version = entry.getTmclient();
+            cached.put(block, blockContent);
+        }
+        // Nothing to do if nothing is cached, or if the write has been applied already.
+        if (version == null || version == tMserver)
+            return;
+        int first;
+        int skip;
+        if (offset != WriteBuffer.Write.APPEND) {
+            first = offset / BLOCK_SIZE;
+            skip = offset % BLOCK_SIZE;
+        } else if (cached.lastEntry().getValue().length < BLOCK_SIZE) {
+            first = cached.lastKey();
+            skip = cached.lastEntry().getValue().length;
+        } else {
+            // The end of the file is not cached, so the cached blocks are all before the appended data.
+            first = cached.lastKey() + 1;
+            skip = 0;
+        }
+        for (Map.Entry<Integer, byte[]> before : cached.headMap(first).entrySet()) {
+            store(filePath, before.getKey(), before.getValue(), tMserver, now);
+        }
+        discardFrom(filePath, first);
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        boolean eof = false;
+        for (int block = first; cached.containsKey(block) && !eof; block++) {
+            byte[] blockContent = cached.get(block);
+            tail.write(blockContent, 0, blockContent.length);
+            eof = blockContent.length < BLOCK_SIZE;
+        }
+        if (tail.size() < skip || (tail.size() == 0 && !eof))
+            return;
+        byte[] oldTail = tail.toByteArray();
+        ByteArrayOutputStream newTail = new ByteArrayOutputStream();
+        newTail.write(oldTail, 0, skip);
+        newTail.write(data, 0, data.length);
+        newTail.write(oldTail, skip, oldTail.length - skip);
+        byte[] spliced = newTail.toByteArray();
+        if (eof) {
+            storeBlocks(filePath, first, spliced, Integer.MAX_VALUE, tMserver, now);
+        } else {
+            // Without the end of the file, only full blocks are known.
+            int known = spliced.length / BLOCK_SIZE * BLOCK_SIZE;
+            storeBlocks(filePath, first, Arrays.copyOf(spliced, known), known, tMserver, now);
+        }
+    }
+
+    /**
+     * Flush the file if enough bytes are buffered, or schedule a flush after its first buffered write
+     *
+     * @param length   number of bytes just buffered
+     * @param buffered number of bytes buffered for the file
+     */
+    private void buffered(String filePath, int length, int buffered) throws IOException {
+        if (buffered >= MAX_BUFFERED)
+            flush(filePath);
+        else if (buffered == length)
+            flusher.schedule(() -> {
+                try {
+                    flush(filePath);
+                } catch (IOException e) {
+                    logger.error("Error flushing writes to " + filePath, e);
+                }
+            }, flushDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the buffered writes to a file to the server, in order
+     * If a write fails, the writes after it are dropped, since they may depend on it.
+     *
+     * @param filePath file path on the server
+     * @throws IOException
+     */
+    public void flush(String filePath) throws IOException {
+        if (writeBuffer == null)
+            return;
+        // The writes taken by a flush in progress are no longer buffered, but have not been sent yet either,
+        // so the buffer is only checked once that flush is over.
+        synchronized (flushLocks[Math.floorMod(filePath.hashCode(), NUM_FLUSH_LOCKS)]) {
+            List<WriteBuffer.Write> writes = writeBuffer.take(filePath);
+            for (int i = 0; i < writes.size(); i++) {
+                WriteBuffer.Write write = writes.get(i);
+                if (!write(filePath, write.getOffset(), write.getData())) {
+                    logger.warn(String.format("Buffered write to %s failed, dropping %d more write(s).",
+                            filePath, writes.size() - i - 1));
+                    return;
+                }
+            }
+            if (!writes.isEmpty())
+                logger.info(String.format("Flushed %d write(s) to %s.", writes.size(), filePath));
+        }
+    }
+
+    /**
+     * Send all buffered writes to the server
+     *
+     * @throws IOException
+     */
+    public void flushAll() throws IOException {
+        if (writeBuffer == null)
+            return;
+        for (String filePath : writeBuffer.getFiles()) {
+            flush(filePath);
+        }
+    }
+
+    /**
+     * Send all buffered writes to the server and stop flushing and refreshing in the background
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flushAll();
+        if (flusher != null)
+            flusher.shutdownNow();
+        if (refresher != null)
+            refresher.shutdownNow();
+    }
+
+    /**
+     * Get the attributes of a file, from the attribute cache if within its time-to-live
+     *
+     * @param filePath file path on server
+     * @return last modified time and last access time of the file
+     * @throws IOException
+     */
+    public Optional<long[]> getAttr(String filePath) throws IOException {
+        flush(filePath);
+        Optional<long[]> attributes = attributeCache.get(filePath);
+        if (attributes.isPresent())
+            return attributes;
+        attributes = stub.getAttr(filePath);
+        attributes.ifPresent(attr -> attributeCache.put(filePath, attr[0], attr[1]));
+        return attributes;
+    }
+
+    /**
+     * Get the attributes of many files, requesting those not in the attribute cache together
+     * The attributes are cached, so that stale cached blocks of the files are then validated
+     * without another round trip.
+     *
+     * @param filePaths file paths on server
+     * @return last modified time and last access time of each file, in order
+     * @throws IOException
+     */
+    public List<Optional<long[]>> getAttrs(List<String> filePaths) throws IOException {
+        List<Optional<long[]>> attributes = new ArrayList<>(filePaths.size());
+        List<String> missing = new ArrayList<>();
+        for (String filePath : filePaths) {
+            flush(filePath);
+            Optional<long[]> cached = attributeCache.get(filePath);
+            attributes.add(cached);
+            if (cached.isEmpty())
+                missing.add(filePath);
+        }
+        if (missing.isEmpty())
+            return attributes;
+        Iterator<Optional<long[]>> fetched = stub.getAttrAll(missing).iterator();
+        for (int i = 0; i < attributes.size(); i++) {
+            if (attributes.get(i).isPresent())
+                continue;
+            Optional<long[]> attr = fetched.next();
+            String filePath = filePaths.get(i);
+            attr.ifPresent(attrs -> attributeCache.put(filePath, attrs[0], attrs[1]));
+            attributes.set(i, attr);
+        }
+        return attributes;
+    }
+
+    /**
+     * List a directory, from the directory cache if within its time-to-live
+     *
+     * @param dir directory path on server
+     * @return names in the directory
+     * @throws IOException
+     */
+    public Optional<List<String>> listDir(String dir) throws IOException {
+        Optional<List<String>> names = directoryCache.get(dir);
+        if (names.isPresent())
+            return names;
+        names = stub.listDir(dir);
+        names.ifPresent(listing -> directoryCache.put(dir, listing));
+        return names;
+    }
+
+    /**
+     * Send a touch request to the server
+     * Touching a file changes its attributes, so the cached ones are removed. It may also create the file,
+     * so the cached listing of its directory is removed as well.
+     *
+     * @param filePath file path on server
+     * @return last access time of the file
+     * @throws IOException
+     */
+    public Optional<Long> touch(String filePath) throws IOException {
+        flush(filePath);
+        Optional<Long> atime = stub.touch(filePath);
+        attributeCache.invalidate(filePath);
+        directoryCache.invalidateParent(filePath);
+        return atime;
     }
 
     public Cache getCache() {
         return cache;
     }
 
+    public AttributeCache getAttributeCache() {
+        return attributeCache;
+    }
+
+    public DirectoryCache getDirectoryCache() {
+        return directoryCache;
+    }
+
+    /**
+     * A read of a range of a file in progress, which other threads can wait for
+     */
+    private static class Flight {
+        private final int offset;
+        private final int count;
+        private final CompletableFuture<Optional<byte[]>> future = new CompletableFuture<>();
+
+        Flight(int offset, int count) {
+            this.offset = offset;
+            this.count = count;
+        }
+
+        Optional<byte[]> await() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a concurrent read");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw (RuntimeException) e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Look up a block in memory, then on disk
+     * A block found on disk is loaded into memory, and validated like any cached block.
+     *
+     * @param filePath file path on server
+     * @param block    index of the block
+     * @return cache entry of the block, or null if not cached
+     */
+    private CacheEntry lookup(String filePath, int block) {
+        CacheEntry entry = cache.getBlock(filePath, block);
+        if (entry != null || diskCache == null)
+            return entry;
+        CacheEntry diskEntry = diskCache.get(filePath, block);
+        if (diskEntry == null)
+            return null;
+        entry = cache.putBlock(filePath, block, diskEntry.getFileContent(), diskEntry.getTmclient(),
+                diskEntry.getTc());
+        return entry != null ? entry : diskEntry;
+    }
+
+    /**
+     * Find the first cached block of a file at or after a block, in memory or on disk
+     *
+     * @return index of the block, or -1 if there is none
+     */
+    private int nextBlock(String filePath, int from) {
+        int next = cache.nextBlock(filePath, from);
+        if (diskCache != null) {
+            int nextOnDisk = diskCache.nextBlock(filePath, from);
+            if (nextOnDisk >= 0 && (next < 0 || nextOnDisk < next))
+                next = nextOnDisk;
+        }
+        return next;
+    }
+
+    /**
+     * Cache a block in memory and on disk
+     */
+    private void store(String filePath, int block, byte[] blockContent, long tMclient, long tC) {
+        cache.putBlock(filePath, block, blockContent, tMclient, tC);
+        if (diskCache != null)
+            diskCache.put(filePath, block, blockContent, tMclient, tC);
+    }
+
+    /**
+     * Remove the blocks of a file from a block on, from memory and from disk
+     */
+    private void discardFrom(String filePath, int from) {
+        cache.removeBlocksFrom(filePath, from);
+        if (diskCache != null)
+            diskCache.removeBlocksFrom(filePath, from);
+    }
+
+    /**
+     * Remove a file from memory and from disk
+     */
+    private void discard(String filePath) {
+        discardFrom(filePath, 0);
+    }
 }
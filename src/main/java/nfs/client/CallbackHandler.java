@@ -1,7 +1,8 @@
 package nfs.client;
 
-import nfs.common.Serializer;
+import nfs.common.BufferPool;
 import nfs.common.exceptions.BadRequestException;
+import nfs.common.requests.FileDeltaCallback;
 import nfs.common.requests.FileUpdatedCallback;
 import nfs.common.requests.Request;
 import nfs.common.requests.RequestName;
@@ -17,40 +18,53 @@ import java.util.concurrent.BlockingQueue;
 
 public class CallbackHandler implements Runnable {
     private static final Logger logger = LogManager.getLogger();
-    private static final int CALLBACK_REQ_ID = 0;
+    private static final long CALLBACK_EPOCH = 0;
     private final CacheHandler cacheHandler;
     private final DatagramSocket socket;
     private final BlockingQueue<Response> queue;
+    private final BufferPool pool;
 
     public CallbackHandler(CacheHandler cacheHandler, DatagramSocket socket,
-                           BlockingQueue<Response> queue) {
+                           BlockingQueue<Response> queue, BufferPool pool) {
         this.cacheHandler = cacheHandler;
         this.socket = socket;
         this.queue = queue;
+        this.pool = pool;
     }
 
     @Override
     public void run() {
+        // A single receive buffer is reused for the lifetime of the handler,
+        // since parsed requests and responses do not reference it.
+        ByteBuffer buf = pool.acquire();
+        DatagramPacket packet = new DatagramPacket(buf.array(), buf.capacity());
         while (!Thread.interrupted()) {
             try {
-                DatagramPacket packet = new DatagramPacket(new byte[Serializer.BUF_SIZE],
-                        Serializer.BUF_SIZE);
+                packet.setData(buf.array(), 0, buf.capacity());
                 socket.receive(packet);
-                byte[] data = packet.getData();
-                int req_id = ByteBuffer.wrap(data).getInt();
+                buf.clear();
+                buf.limit(packet.getLength());
+                // Callbacks start with the reserved epoch 0, responses with the id of a request, which is never 0.
+                long header = buf.getLong(0);
 
-                if (req_id == CALLBACK_REQ_ID) {
+                if (header == CALLBACK_EPOCH) {
                     // If the packet is a callback request.
-                    Request req = Request.Builder.parseFrom(data);
-                    if (req.getName() != RequestName.FILE_UPDATED)
+                    Request req = Request.Builder.parseFrom(buf);
+                    if (req.getName() == RequestName.FILE_UPDATED) {
+                        FileUpdatedCallback callback = (FileUpdatedCallback) req;
+                        logger.info(String.format("Received FileUpdatedCallback for %s", callback.getPath()));
+                        handle(callback);
+                    } else if (req.getName() == RequestName.FILE_DELTA) {
+                        FileDeltaCallback callback = (FileDeltaCallback) req;
+                        logger.info(String.format("Received FileDeltaCallback for %s", callback.getPath()));
+                        handle(callback);
+                    } else {
                         throw new BadRequestException(
-                                "Received a request with id 0, but it is not a FileUpdatedCallback");
-                    FileUpdatedCallback callback = (FileUpdatedCallback) req;
-                    logger.info(String.format("Received FileUpdatedCallback for %s", callback.getPath()));
-                    handle(callback);
+                                "Received a request with epoch 0, but it is not a callback");
+                    }
                 } else {
                     // Else it is a response of a register request.
-                    Response res = Response.Builder.parseFrom(data);
+                    Response res = Response.Builder.parseFrom(buf);
                     // Offer the response to the Proxy.
                     queue.offer(res);
                 }
@@ -60,6 +74,7 @@ public class CallbackHandler implements Runnable {
                 logger.error(e);
             }
         }
+        pool.release(buf);
     }
 
     /**
@@ -73,4 +88,14 @@ public class CallbackHandler implements Runnable {
         byte[] data = callback.getData();
         cacheHandler.updateFile(filePath, mTime, data);
     }
+
+    /**
+     * Handle FileDelta callbacks
+     *
+     * @param callback FileDelta callback
+     */
+    void handle(FileDeltaCallback callback) {
+        cacheHandler.applyDelta(callback.getPath(), callback.getOffset(), callback.getData(),
+                callback.getLength(), callback.getBaseMtime(), callback.getMtime());
+    }
 }
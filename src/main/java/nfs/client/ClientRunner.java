@@ -1,5 +1,8 @@
 package nfs.client;
 
+import nfs.common.BufferPool;
+import nfs.common.Serializer;
+import nfs.common.requests.NegotiateRequest;
 import nfs.common.responses.Response;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,6 +14,8 @@ import picocli.CommandLine.Parameters;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
 import java.util.concurrent.SynchronousQueue;
@@ -18,6 +23,7 @@ import java.util.concurrent.SynchronousQueue;
 @Command(description = "The client for remote file access.", name = "nfs-client", mixinStandardHelpOptions = true)
 public class ClientRunner implements Callable<Integer> {
     private static final Logger logger = LogManager.getLogger();
+    private static final int BUFFER_POOL_CAPACITY = 16;
     private final Scanner sc = new Scanner(System.in);
     String interfaceMsg = "\n================== Client User Interface =================\n"
             + "The following commands are available:     \n"
@@ -28,7 +34,10 @@ public class ClientRunner implements Callable<Integer> {
             + "| append <file path> <data>                          |\n"
             + "| register <file path> <monitor interval (ms)>       |\n"
             + "| touch <new file path>                              |\n"
+            + "| stat <file path> [file path...]                    |\n"
             + "| ls [dir]                                           |\n"
+            + "| flush                                              |\n"
+            + "| stats                                              |\n"
             + "| help                                               |\n"
             + "| exit                                               |";
     private FileOperations fileOp;
@@ -43,6 +52,45 @@ public class ClientRunner implements Callable<Integer> {
     @Option(names = {"-l", "--loss-prob"}, defaultValue = "0",
             description = "Probability of a request loss. Default value: ${DEFAULT-VALUE}")
     private double lossProb;
+    @Option(names = {"-c", "--cache-size"}, defaultValue = "67108864",
+            description = "Capacity (in bytes) of the client cache. Default value: ${DEFAULT-VALUE}")
+    private long cacheSize;
+    @Option(names = {"--off-heap"},
+            description = "Store cached file contents off the Java heap.")
+    private boolean offHeap;
+    @Option(names = {"-d", "--cache-dir"},
+            description = "Directory of the persistent disk cache. Files are cached in memory only if not set.")
+    private Path cacheDir;
+    @Option(names = {"--disk-cache-size"}, defaultValue = "1073741824",
+            description = "Capacity (in bytes) of the disk cache. Default value: ${DEFAULT-VALUE}")
+    private long diskCacheSize;
+    @Option(names = {"-a", "--attr-ttl"}, defaultValue = "3000",
+            description = "Time-to-live (in ms) of cached file attributes. Default value: ${DEFAULT-VALUE}")
+    private long attrTtl;
+    @Option(names = {"--dir-ttl"}, defaultValue = "3000",
+            description = "Time-to-live (in ms) of cached directory listings. Default value: ${DEFAULT-VALUE}")
+    private long dirTtl;
+    @Option(names = {"-w", "--write-behind"},
+            description = "Buffer writes on the client and send them to the server in the background.")
+    private boolean writeBehind;
+    @Option(names = {"--flush-delay"}, defaultValue = "1000",
+            description = "Maximum time (in ms) a write is buffered in write-behind mode. Default value: ${DEFAULT-VALUE}")
+    private long flushDelay;
+    @Option(names = {"--no-compression"},
+            description = "Never send compressed payloads, even if the server supports them.")
+    private boolean noCompression;
+    @Option(names = {"-r", "--read-ahead"}, defaultValue = "0",
+            description = "Maximum number of bytes read ahead of sequential reads, 0 to disable. Default value: ${DEFAULT-VALUE}")
+    private int readAhead;
+    @Option(names = {"--refresh"},
+            description = "Revalidate the cached blocks of recently read files in the background.")
+    private boolean refresh;
+    @Option(names = {"--max-stale"}, defaultValue = "1000",
+            description = "Maximum time (in ms) past the freshness interval a cached block is served while revalidated in refresh mode. Default value: ${DEFAULT-VALUE}")
+    private long maxStale;
+    private Cache cache;
+    private DiskCache diskCache;
+    private CacheHandler cacheHandler;
 
 
     public static void main(String... args) {
@@ -113,13 +161,21 @@ public class ClientRunner implements Callable<Integer> {
                     break;
                 case "touch":
                     if (validateLength(command, 2))
-                        stub.touch(command[1]);
+                        fileOp.touch(command[1]);
+                    break;
+                case "stat":
+                    if (command.length == 2)
+                        fileOp.getAttr(command[1]);
+                    else if (command.length > 2)
+                        fileOp.getAttrs(Arrays.asList(command).subList(1, command.length));
+                    else
+                        validateLength(command, 2);
                     break;
                 case "ls":
                     if (command.length == 1)
-                        stub.listDir(".");
+                        fileOp.listDir(".");
                     else if (validateLength(command, 2))
-                        stub.listDir(command[1]);
+                        fileOp.listDir(command[1]);
                     break;
                 case "register":
                     if (validateLength(command, 3) && containsNum(command[2])) {
@@ -127,6 +183,14 @@ public class ClientRunner implements Callable<Integer> {
                         stub.register(command[1], monitorInterval);
                     }
                     break;
+                case "flush":
+                    if (validateLength(command, 1))
+                        fileOp.flush();
+                    break;
+                case "stats":
+                    if (validateLength(command, 1))
+                        printStats();
+                    break;
                 case "help":
                     System.out.println(interfaceMsg);
                     break;
@@ -140,21 +204,58 @@ public class ClientRunner implements Callable<Integer> {
         }
     }
 
+    /**
+     * Print the usage and the hit ratio of the client cache
+     */
+    public void printStats() {
+        long hits = cache.getHitCount();
+        long lookups = hits + cache.getMissCount();
+        System.out.printf("Cached files: %d, blocks: %d, size: %d / %d bytes%n",
+                cache.getNumFiles(), cache.getNumBlocks(), cache.getSize(), cache.getCapacity());
+        System.out.printf("Hits: %d, misses: %d, hit ratio: %.2f, evictions: %d%n",
+                hits, cache.getMissCount(), lookups == 0 ? 0.0 : (double) hits / lookups, cache.getEvictionCount());
+        if (diskCache != null)
+            System.out.printf("Disk cache: %d files, %d blocks, size: %d / %d bytes%n",
+                    diskCache.getNumFiles(), diskCache.getNumBlocks(), diskCache.getSize(), diskCache.getCapacity());
+        if (cache.isOffHeap())
+            System.out.printf("Off-heap memory allocated: %d bytes%n", cache.getOffHeapAllocated());
+    }
+
     @Override
     public Integer call() throws Exception {
         // Queue for synchronizing register request.
         SynchronousQueue<Response> queue = new SynchronousQueue<>();
         // Socket for handling callbacks.
         DatagramSocket callbackSocket = new DatagramSocket();
+        // Buffers shared by the send and receive path.
+        BufferPool pool = new BufferPool(Serializer.BUF_SIZE, BUFFER_POOL_CAPACITY);
 
-        stub = new Proxy(address, port, callbackSocket, queue, lossProb);
-        CacheHandler cacheHandler = new CacheHandler(stub, freshInterval);
-        CallbackHandler callbackHandler = new CallbackHandler(cacheHandler, callbackSocket, queue);
+        stub = new Proxy(address, port, callbackSocket, queue, lossProb, pool);
+        cache = new Cache(cacheSize, offHeap);
+        if (cacheDir != null)
+            diskCache = new DiskCache(cacheDir, diskCacheSize);
+        cacheHandler = new CacheHandler(stub, freshInterval, cache, diskCache,
+                new AttributeCache(attrTtl), new DirectoryCache(dirTtl));
+        if (writeBehind)
+            cacheHandler.enableWriteBehind(flushDelay);
+        if (refresh)
+            cacheHandler.enableRefresh(maxStale);
+        CallbackHandler callbackHandler = new CallbackHandler(cacheHandler, callbackSocket, queue, pool);
         Thread callbackThread = new Thread(callbackHandler);
-        fileOp = new FileOperations(cacheHandler);
+        fileOp = new FileOperations(cacheHandler, readAhead);
 
         callbackThread.start();
         logger.info("Callback handler thread started");
+        try {
+            int features = stub.negotiate(NegotiateRequest.COMPOUND
+                    | (noCompression ? 0 : NegotiateRequest.COMPRESSION));
+            if ((features & NegotiateRequest.COMPRESSION) != 0)
+                logger.info("Compression enabled");
+            if ((features & NegotiateRequest.COMPOUND) != 0)
+                logger.info("Compound requests enabled");
+        } catch (IOException e) {
+            logger.warn("Unable to negotiate features with the server, using the basic protocol.");
+        }
 
         System.out.println(interfaceMsg);
         System.out.println();
@@ -163,8 +264,16 @@ public class ClientRunner implements Callable<Integer> {
             System.out.print("nfs-client> ");
             String userInput = sc.nextLine();
             if (userInput.trim().equals("exit")) {
+                fileOp.close();
+                try {
+                    cacheHandler.close();
+                } catch (IOException e) {
+                    logger.error("Error flushing buffered writes", e);
+                }
                 stub.close();
                 callbackThread.interrupt();
+                if (diskCache != null)
+                    diskCache.close();
                 break;
             }
             String[] splitInput = userInput.trim().split(" ");
@@ -0,0 +1,123 @@
+package nfs.client;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The client cache of directory listings.
+ * A listing is trusted for a time-to-live, after which the directory has to be listed again.
+ * Files created by this client invalidate the listing of their parent directory; files created
+ * by other clients only appear once the listing has expired.
+ * Entries are keyed by the normalized directory path, and the least recently used ones are dropped
+ * beyond MAX_ENTRIES.
+ */
+public class DirectoryCache {
+    static final long DEFAULT_TTL = 3000;
+    static final int MAX_ENTRIES = 1 << 10;
+    private final long ttl;
+    private final LinkedHashMap<String, Listing> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Create a directory cache with the default time-to-live.
+     */
+    public DirectoryCache() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * Create a directory cache.
+     *
+     * @param ttl time-to-live of cached listings in ms, 0 to disable caching
+     */
+    public DirectoryCache(long ttl) {
+        if (ttl < 0)
+            throw new IllegalArgumentException("Directory TTL should not be negative.");
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return the listing of a directory if cached within the time-to-live
+     *
+     * @param dir directory path on server
+     * @return names in the directory
+     */
+    public synchronized Optional<List<String>> get(String dir) {
+        String key = normalize(dir);
+        Listing listing = entries.get(key);
+        if (listing == null)
+            return Optional.empty();
+        if (System.currentTimeMillis() - listing.tCached >= ttl) {
+            entries.remove(key);
+            return Optional.empty();
+        }
+        return Optional.of(listing.names);
+    }
+
+    /**
+     * Cache the listing of a directory, as just returned by the server
+     *
+     * @param dir   directory path on server
+     * @param names names in the directory
+     */
+    public synchronized void put(String dir, List<String> names) {
+        if (ttl > 0)
+            entries.put(normalize(dir), new Listing(Collections.unmodifiableList(names), System.currentTimeMillis()));
+    }
+
+    /**
+     * Remove the listing of a directory, which has been changed
+     *
+     * @param dir directory path on server
+     */
+    public synchronized void invalidate(String dir) {
+        entries.remove(normalize(dir));
+    }
+
+    /**
+     * Remove the listing of the directory containing a file, which may have been created
+     *
+     * @param filePath file path on server
+     */
+    public void invalidateParent(String filePath) {
+        Path parent = Paths.get(filePath).normalize().getParent();
+        invalidate(parent == null ? "" : parent.toString());
+    }
+
+    /**
+     * @return time-to-live of cached listings in ms
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return number of cached listings, including expired ones not removed yet
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String normalize(String dir) {
+        return Paths.get(dir).normalize().toString();
+    }
+
+    private static class Listing {
+        private final List<String> names;
+        private final long tCached;
+
+        Listing(List<String> names, long tCached) {
+            this.names = names;
+            this.tCached = tCached;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package nfs.client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * The second-level cache of file blocks on the local disk, which survives client restarts.
+ * Blocks are appended to segment files, which are memory-mapped once at their full size for reading,
+ * and every change is appended to an index log holding the location and the metadata of each block.
+ * The index is only loaded on first use. Entries loaded from a previous run have Tc set to 0,
+ * so they are validated against the server before use. The log is rewritten with only the live entries
+ * on load, and whenever most of its records are replaced or removed entries.
+ * When the segments exceed the capacity, the oldest segment is deleted with all its entries.
+ * The disk cache is best effort: I/O errors are logged and treated as misses.
+ */
+class DiskCache {
+    private static final Logger logger = LogManager.getLogger();
+    static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final String INDEX_FILE = "index.log";
+    // The index log is compacted once it holds more than this many records per live entry.
+    private static final int MAX_RECORDS_PER_ENTRY = 2;
+    private static final int MIN_RECORDS_TO_COMPACT = 1024;
+    private static final byte PUT = 0;
+    private static final byte REMOVE = 1;
+    private final Path dir;
+    private final long capacity;
+    // Locations of the blocks of each file, by block index.
+    private final Map<String, TreeMap<Integer, Location>> index = new HashMap<>();
+    // Open segments ordered from the oldest to the newest.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private DataOutputStream indexLog;
+    private long numRecords = 0;
+    private long size = 0;
+    private boolean loaded = false;
+
+    /**
+     * @param dir      directory of the segment files and the index.
+     * @param capacity maximum total size of the segment files in bytes.
+     */
+    DiskCache(Path dir, long capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Disk cache capacity should be greater than 0.");
+        this.dir = dir;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return the cached block, or null if it is not on disk
+     *
+     * @param filePath file path on server
+     * @param block    index of the block
+     * @return a copy of the cache entry read from disk
+     */
+    synchronized CacheEntry get(String filePath, int block) {
+        try {
+            load();
+            TreeMap<Integer, Location> blocks = index.get(filePath);
+            Location loc = blocks == null ? null : blocks.get(block);
+            if (loc == null)
+                return null;
+            byte[] content = new byte[loc.length];
+            ByteBuffer view = segments.get(loc.segment).mapping.duplicate();
+            view.position((int) loc.offset);
+            view.get(content);
+            return new CacheEntry(content, loc.tC, loc.tMclient);
+        } catch (IOException e) {
+            logger.warn("Failed to read " + filePath + " from the disk cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write a block to the disk cache, replacing the old copy if any
+     *
+     * @param filePath     file path on server
+     * @param block        index of the block
+     * @param blockContent content of the block
+     * @param tMclient     last modification time on client
+     * @param tC           last validation time on client
+     */
+    synchronized void put(String filePath, int block, byte[] blockContent, long tMclient, long tC) {
+        try {
+            load();
+            if (blockContent.length > SEGMENT_SIZE)
+                throw new IOException("Block is larger than a segment");
+            int segmentId = segments.isEmpty() ? 0 : segments.lastKey();
+            Segment segment = segments.get(segmentId);
+            if (segment == null || segment.end + blockContent.length > SEGMENT_SIZE) {
+                segmentId = segment == null ? segmentId : segmentId + 1;
+                segment = openSegment(segmentId, 0);
+            }
+            long offset = segment.end;
+            segment.channel.write(ByteBuffer.wrap(blockContent), offset);
+            segment.end += blockContent.length;
+            size += blockContent.length;
+            Location loc = new Location(segmentId, offset, blockContent.length, tMclient, tC);
+            index.computeIfAbsent(filePath, path -> new TreeMap<>()).put(block, loc);
+            writeRecord(indexLog, filePath, block, loc);
+            numRecords++;
+            evict();
+            compactIfMostlyDead();
+        } catch (IOException e) {
+            logger.warn("Failed to write block " + block + " of " + filePath + " to the disk cache", e);
+            removeFromIndex(filePath, block);
+        }
+    }
+
+    /**
+     * Remove the blocks of a file starting from a block
+     *
+     * @param filePath file path on server
+     * @param from     index of the first block to remove
+     */
+    synchronized void removeBlocksFrom(String filePath, int from) {
+        try {
+            load();
+            TreeMap<Integer, Location> blocks = index.get(filePath);
+            if (blocks == null)
+                return;
+            for (int block : new ArrayList<>(blocks.tailMap(from).keySet())) {
+                removeFromIndex(filePath, block);
+                writeRecord(indexLog, filePath, block, null);
+                numRecords++;
+            }
+            compactIfMostlyDead();
+        } catch (IOException e) {
+            logger.warn("Failed to remove " + filePath + " from the disk cache", e);
+        }
+    }
+
+    /**
+     * Remove all blocks of a file
+     *
+     * @param filePath file path on server
+     */
+    synchronized void removeFile(String filePath) {
+        removeBlocksFrom(filePath, 0);
+    }
+
+    /**
+     * Find the first block of a file on disk at or after a block
+     *
+     * @param filePath file path on server
+     * @param from     index of the block to start from
+     * @return index of the block, or -1 if there is none
+     */
+    synchronized int nextBlock(String filePath, int from) {
+        try {
+            load();
+        } catch (IOException e) {
+            logger.warn("Failed to load the disk cache", e);
+            return -1;
+        }
+        TreeMap<Integer, Location> blocks = index.get(filePath);
+        Integer next = blocks == null ? null : blocks.ceilingKey(from);
+        return next == null ? -1 : next;
+    }
+
+    /**
+     * @return number of files with at least one block in the disk cache
+     */
+    synchronized int getNumFiles() {
+        return index.size();
+    }
+
+    /**
+     * @return number of blocks in the disk cache
+     */
+    synchronized int getNumBlocks() {
+        return index.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * @return total size of the contents in the segments in bytes, including the space of replaced contents
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of records in the index log
+     */
+    synchronized long getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * Close the index and the segment files, trimming the segments to their contents
+     */
+    synchronized void close() {
+        try {
+            if (indexLog != null)
+                indexLog.close();
+            for (Segment segment : segments.values()) {
+                segment.channel.truncate(segment.end);
+                segment.channel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to close the disk cache", e);
+        }
+        segments.clear();
+        indexLog = null;
+        loaded = false;
+    }
+
+    /**
+     * Open the segments and read the index log, dropping the entries whose contents are missing.
+     * The index is then rewritten with only the live entries.
+     */
+    private void load() throws IOException {
+        if (loaded)
+            return;
+        // Start over if a previous attempt failed halfway.
+        close();
+        index.clear();
+        size = 0;
+        Files.createDirectories(dir);
+        Map<Integer, Long> segmentSizes = new HashMap<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(dir, "segment-*.dat")) {
+            for (Path path : found) {
+                String name = path.getFileName().toString();
+                int segment = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+                segmentSizes.put(segment, Files.size(path));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected segment file in " + dir, e);
+        }
+
+        Path indexPath = dir.resolve(INDEX_FILE);
+        if (Files.exists(indexPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+                while (true) {
+                    byte op = in.readByte();
+                    String filePath = in.readUTF();
+                    int block = in.readInt();
+                    if (op == REMOVE) {
+                        removeFromIndex(filePath, block);
+                        continue;
+                    }
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    long tMclient = in.readLong();
+                    in.readLong();
+                    // Validate against the server before the first use.
+                    index.computeIfAbsent(filePath, path -> new TreeMap<>())
+                            .put(block, new Location(segment, offset, length, tMclient, 0));
+                }
+            } catch (EOFException e) {
+                // End of the log, or a record truncated by a crash.
+            }
+        }
+        removeFromIndexIf(loc -> loc.offset + loc.length > segmentSizes.getOrDefault(loc.segment, -1L));
+        // A segment not closed is still at the full size, so new blocks are written after its last live entry.
+        Map<Integer, Long> ends = new HashMap<>();
+        for (TreeMap<Integer, Location> blocks : index.values()) {
+            for (Location loc : blocks.values()) {
+                ends.merge(loc.segment, loc.offset + loc.length, Math::max);
+            }
+        }
+        for (int segment : segmentSizes.keySet()) {
+            openSegment(segment, ends.getOrDefault(segment, 0L));
+        }
+
+        compact();
+        loaded = true;
+        logger.info("Loaded " + getNumBlocks() + " blocks of " + index.size() + " files from the disk cache in " + dir);
+    }
+
+    /**
+     * Rewrite the index log with only the live entries
+     */
+    private void compact() throws IOException {
+        if (indexLog != null)
+            indexLog.close();
+        indexLog = null;
+        Path indexPath = dir.resolve(INDEX_FILE);
+        Path tmpPath = dir.resolve(INDEX_FILE + ".tmp");
+        long written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            for (Map.Entry<String, TreeMap<Integer, Location>> file : index.entrySet()) {
+                for (Map.Entry<Integer, Location> block : file.getValue().entrySet()) {
+                    writeRecord(out, file.getKey(), block.getKey(), block.getValue());
+                    written++;
+                }
+            }
+        }
+        Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexLog = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexPath, StandardOpenOption.APPEND)));
+        numRecords = written;
+    }
+
+    /**
+     * Flush the index log, and compact it if most of its records are dead
+     */
+    private void compactIfMostlyDead() throws IOException {
+        if (numRecords >= MIN_RECORDS_TO_COMPACT && numRecords > (long) MAX_RECORDS_PER_ENTRY * getNumBlocks()) {
+            compact();
+            logger.info("Compacted the disk cache index to " + numRecords + " records");
+        } else {
+            indexLog.flush();
+        }
+    }
+
+    /**
+     * Open a segment and map it at the full segment size, so that it is never remapped as it grows.
+     * The file is extended to the full size until it is closed.
+     *
+     * @param segment index of the segment
+     * @param end     size of the contents already in the segment
+     */
+    private Segment openSegment(int segment, long end) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, SEGMENT_SIZE);
+            Segment opened = new Segment(channel, mapping, end);
+            segments.put(segment, opened);
+            size += end;
+            return opened;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the oldest segments while the cache exceeds its capacity, keeping the one being written.
+     */
+    private void evict() throws IOException {
+        while (size > capacity && segments.size() > 1) {
+            Map.Entry<Integer, Segment> oldest = segments.pollFirstEntry();
+            int segment = oldest.getKey();
+            size -= oldest.getValue().end;
+            oldest.getValue().channel.close();
+            Files.deleteIfExists(segmentPath(segment));
+            // The index log is not updated: entries of a missing segment are dropped on load,
+            // and their records are dropped from the log when it is compacted.
+            removeFromIndexIf(loc -> loc.segment == segment);
+            logger.info("Deleted segment " + segment + " from the disk cache");
+        }
+    }
+
+    private void removeFromIndex(String filePath, int block) {
+        TreeMap<Integer, Location> blocks = index.get(filePath);
+        if (blocks != null && blocks.remove(block) != null && blocks.isEmpty())
+            index.remove(filePath);
+    }
+
+    private void removeFromIndexIf(Predicate<Location> filter) {
+        Iterator<TreeMap<Integer, Location>> it = index.values().iterator();
+        while (it.hasNext()) {
+            TreeMap<Integer, Location> blocks = it.next();
+            blocks.values().removeIf(filter);
+            if (blocks.isEmpty())
+                it.remove();
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("segment-%08d.dat", segment));
+    }
+
+    private static void writeRecord(DataOutputStream out, String filePath, int block, Location loc)
+            throws IOException {
+        out.writeByte(loc == null ? REMOVE : PUT);
+        out.writeUTF(filePath);
+        out.writeInt(block);
+        if (loc == null)
+            return;
+        out.writeInt(loc.segment);
+        out.writeLong(loc.offset);
+        out.writeInt(loc.length);
+        out.writeLong(loc.tMclient);
+        out.writeLong(loc.tC);
+    }
+
+    private static class Segment {
+        final FileChannel channel;
+        // Mapping of the full segment size.
+        final MappedByteBuffer mapping;
+        // Size of the contents, where the next block is written.
+        long end;
+
+        Segment(FileChannel channel, MappedByteBuffer mapping, long end) {
+            this.channel = channel;
+            this.mapping = mapping;
+            this.end = end;
+        }
+    }
+
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final long tMclient;
+        final long tC;
+
+        Location(int segment, long offset, int length, long tMclient, long tC) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.tMclient = tMclient;
+            this.tC = tC;
+        }
+    }
+}
@@ -6,15 +6,45 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 public class FileOperations {
     private static final Logger logger = LogManager.getLogger();
     private final CacheHandler cacheHandler;
+    private final ReadAhead readAhead;
+    private final ExecutorService prefetcher;
 
     public FileOperations(CacheHandler cacheHandler) {
+        this(cacheHandler, 0);
+    }
+
+    /**
+     * Create the file operations, reading ahead of sequential reads.
+     *
+     * @param cacheHandler the cache handler
+     * @param maxReadAhead maximum number of bytes read ahead at once, 0 to disable read-ahead
+     */
+    public FileOperations(CacheHandler cacheHandler, int maxReadAhead) {
         this.cacheHandler = cacheHandler;
+        if (maxReadAhead > 0) {
+            this.readAhead = new ReadAhead(maxReadAhead);
+            this.prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.readAhead = null;
+            this.prefetcher = null;
+        }
     }
 
     /**
@@ -35,24 +65,45 @@ public class FileOperations {
             return Optional.empty();
         }
         filePath = Paths.get(filePath).normalize().toString();
-        Optional<byte[]> optFile = cacheHandler.getFile(filePath);
-        return optFile.map(file -> {
-            if (offset > file.length) {
-                logger.warn("Offset out of range");
-                return null;
-            }
-            byte[] slice;
-            if (file.length - offset < count) {
+        Optional<byte[]> optSlice = cacheHandler.getFileRange(filePath, offset, count);
+        if (readAhead != null && optSlice.isPresent())
+            readAhead(filePath, offset, count, optSlice.get().length);
+        return optSlice.map(slice -> {
+            if (slice.length < count) {
                 logger.warn("Count out of range, returning available bytes:");
-                slice = Arrays.copyOfRange(file, offset, file.length);
-            } else {
-                slice = Arrays.copyOfRange(file, offset, offset + count);
             }
             System.out.println(new String(slice, StandardCharsets.UTF_8));
             return slice;
         });
     }
 
+    /**
+     * Read the next range of a file into the cache in the background, if the file is read sequentially
+     *
+     * @param filePath file path on server
+     * @param offset   offset of the read in bytes
+     * @param count    number of bytes requested
+     * @param read     number of bytes read
+     */
+    private void readAhead(String filePath, int offset, int count, int read) {
+        int[] range = readAhead.onRead(filePath, offset, count, read);
+        if (range == null)
+            return;
+        try {
+            prefetcher.execute(() -> {
+                int prefetched = -1;
+                try {
+                    prefetched = cacheHandler.prefetch(filePath, range[0], range[1]);
+                } catch (IOException e) {
+                    logger.warn("Error reading ahead " + filePath, e);
+                }
+                readAhead.onReadAhead(filePath, range[0], range[1], prefetched);
+            });
+        } catch (RejectedExecutionException e) {
+            readAhead.reset(filePath);
+        }
+    }
+
     /**
      * Starting from the given offset, read all bytes from a file,
      *
@@ -66,13 +117,8 @@ public class FileOperations {
             return Optional.empty();
         }
         filePath = Paths.get(filePath).normalize().toString();
-        Optional<byte[]> optFile = cacheHandler.getFile(filePath);
-        return optFile.map(file -> {
-            if (offset > file.length) {
-                logger.warn("Offset out of range");
-                return null;
-            }
-            byte[] slice = Arrays.copyOfRange(file, offset, file.length);
+        Optional<byte[]> optSlice = cacheHandler.getFileRange(filePath, offset, Integer.MAX_VALUE - offset);
+        return optSlice.map(slice -> {
             System.out.println(new String(slice, StandardCharsets.UTF_8));
             return slice;
         });
@@ -92,7 +138,10 @@ public class FileOperations {
             return;
         }
         filePath = Paths.get(filePath).normalize().toString();
-        cacheHandler.insertFile(filePath, offset, data);
+        if (readAhead != null)
+            readAhead.reset(filePath);
+        if (cacheHandler.insertFile(filePath, offset, data))
+            System.out.println("Success");
     }
 
     /**
@@ -104,8 +153,97 @@ public class FileOperations {
      */
     public void append(String filePath, byte[] data) throws IOException {
         filePath = Paths.get(filePath).normalize().toString();
-        cacheHandler.appendFile(filePath, data);
+        if (readAhead != null)
+            readAhead.reset(filePath);
+        if (cacheHandler.appendFile(filePath, data))
+            System.out.println("Success");
+    }
+
+    /**
+     * Send all writes buffered on the client to the server
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        cacheHandler.flushAll();
+    }
+
+    /**
+     * Stop reading ahead
+     * Ranges being read ahead are abandoned.
+     */
+    public void close() {
+        if (prefetcher != null)
+            prefetcher.shutdownNow();
     }
 
+    /**
+     * Touch a file on the server, creating it if it does not exist
+     *
+     * @param filePath file path on the server
+     * @return an Optional object of the last access time
+     * @throws IOException
+     */
+    public Optional<Long> touch(String filePath) throws IOException {
+        String path = Paths.get(filePath).normalize().toString();
+        Optional<Long> optAtime = cacheHandler.touch(path);
+        optAtime.ifPresent(atime -> System.out.println(path + " last accessed at: " + toDateTime(atime)));
+        return optAtime;
+    }
+
+    /**
+     * Get the last modified time and last access time of a file
+     *
+     * @param filePath file path on the server
+     * @return an Optional object of the last modified time and last access time
+     * @throws IOException
+     */
+    public Optional<long[]> getAttr(String filePath) throws IOException {
+        String path = Paths.get(filePath).normalize().toString();
+        Optional<long[]> optAttr = cacheHandler.getAttr(path);
+        optAttr.ifPresent(attr -> {
+            System.out.println(path + " last modified at: " + toDateTime(attr[0]));
+            System.out.println(path + " last accessed at: " + toDateTime(attr[1]));
+        });
+        return optAttr;
+    }
+
+    /**
+     * Get the last modified time and last access time of many files at once
+     *
+     * @param filePaths file paths on the server
+     * @return an Optional object of the attributes of each file, in order
+     * @throws IOException
+     */
+    public List<Optional<long[]>> getAttrs(List<String> filePaths) throws IOException {
+        List<String> paths = filePaths.stream()
+                .map(filePath -> Paths.get(filePath).normalize().toString())
+                .collect(Collectors.toList());
+        List<Optional<long[]>> optAttrs = cacheHandler.getAttrs(paths);
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            optAttrs.get(i).ifPresent(attr -> {
+                System.out.println(path + " last modified at: " + toDateTime(attr[0]));
+                System.out.println(path + " last accessed at: " + toDateTime(attr[1]));
+            });
+        }
+        return optAttrs;
+    }
 
-}
\ No newline at end of file
+    /**
+     * List the contents of a directory
+     *
+     * @param dir directory path on the server
+     * @return an Optional object of the names in the directory
+     * @throws IOException
+     */
+    public Optional<List<String>> listDir(String dir) throws IOException {
+        Optional<List<String>> optNames = cacheHandler.listDir(dir);
+        optNames.ifPresent(names -> names.forEach(System.out::println));
+        return optNames;
+    }
+
+    private static LocalDateTime toDateTime(long epochMilli) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+}
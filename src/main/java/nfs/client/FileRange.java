@@ -0,0 +1,55 @@
+package nfs.client;
+
+/**
+ * Bytes read from a file on the server, with the attributes of the file at the time of the read.
+ * A conditional read of a file that has not been modified yields a range without data.
+ */
+public class FileRange {
+    private final byte[] data;
+    private final long mtime;
+    private final long size;
+
+    /**
+     * @param data  bytes read.
+     * @param mtime last modification time of the file.
+     * @param size  size of the file in bytes.
+     */
+    public FileRange(byte[] data, long mtime, long size) {
+        this.data = data;
+        this.mtime = mtime;
+        this.size = size;
+    }
+
+    /**
+     * @param mtime modification time of the file, which the client already has.
+     * @return a range for a file that has not been modified.
+     */
+    public static FileRange notModified(long mtime) {
+        return new FileRange(null, mtime, -1);
+    }
+
+    /**
+     * @return false if the range was read conditionally and the file had not been modified.
+     */
+    public boolean isModified() {
+        return data != null;
+    }
+
+    /**
+     * @return bytes read, or null if the file has not been modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    /**
+     * @return size of the file in bytes, or -1 if the file has not been modified.
+     */
+    public long getSize() {
+        return size;
+    }
+}
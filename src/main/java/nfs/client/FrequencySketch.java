@@ -0,0 +1,101 @@
+package nfs.client;
+
+/**
+ * A count-min sketch with 4-bit counters that estimates how often keys were accessed recently.
+ * Each key maps to one counter in each of four rows, packed sixteen counters to a long.
+ * Once the number of increments reaches ten times the table width, all counters are halved,
+ * so that the estimate favours recent popularity.
+ */
+class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int[] SEEDS = {0x97cb3127, 0xb1a6c5e9, 0x3c6ef372, 0xa54ff53b};
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * @param expectedSize the expected number of distinct keys in the cache.
+     */
+    FrequencySketch(int expectedSize) {
+        int length = Integer.highestOneBit(Math.max(16, Math.min(expectedSize, 1 << 24)) - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * Get the estimated number of recent accesses of a key.
+     *
+     * @param key the key.
+     * @return the estimate, between 0 and 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, count(hash, row));
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access of a key.
+     *
+     * @param key the key.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            added |= incrementAt(hash, row);
+        }
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    private int count(int hash, int row) {
+        int index = indexOf(hash, row);
+        int shift = offsetOf(hash, row);
+        return (int) ((table[index] >>> shift) & 0xfL);
+    }
+
+    private boolean incrementAt(int hash, int row) {
+        int index = indexOf(hash, row);
+        int shift = offsetOf(hash, row);
+        long mask = 0xfL << shift;
+        if ((table[index] & mask) == mask)
+            return false;
+        table[index] += 1L << shift;
+        return true;
+    }
+
+    /**
+     * Halve all counters, and the sample size accordingly.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        return (h ^ (h >>> 16)) & tableMask;
+    }
+
+    private int offsetOf(int hash, int row) {
+        // Each row uses a different one of the 16 counters in the selected long.
+        return (((hash >>> (row << 3)) & 3) << 2 | row) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,48 @@
+package nfs.client;
+
+/**
+ * Entry in the client cache whose file content is stored off the Java heap by a {@link SlabAllocator}.
+ * The entry only holds the indices of the pages, so cached contents do not add to the heap size or GC work.
+ */
+class OffHeapCacheEntry extends CacheEntry {
+    private final SlabAllocator allocator;
+    private final int length;
+    private int[] pages;
+
+    /**
+     * @param allocator   allocator storing the content.
+     * @param fileContent file content of the entry, copied off the heap.
+     * @param tC          last validation time.
+     * @param tMclient    last modification time.
+     */
+    OffHeapCacheEntry(SlabAllocator allocator, byte[] fileContent, long tC, long tMclient) {
+        super(tC, tMclient, (long) SlabAllocator.pagesFor(fileContent.length) * SlabAllocator.PAGE_SIZE);
+        this.allocator = allocator;
+        this.length = fileContent.length;
+        this.pages = allocator.store(fileContent);
+    }
+
+    /**
+     * Copy the file content to the heap.
+     *
+     * @return the content, or null if the entry has been released.
+     */
+    @Override
+    public byte[] getFileContent() {
+        synchronized (allocator) {
+            if (pages == null)
+                return null;
+            return allocator.load(pages, length);
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (allocator) {
+            if (pages != null) {
+                allocator.free(pages);
+                pages = null;
+            }
+        }
+    }
+}
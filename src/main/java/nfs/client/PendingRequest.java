@@ -0,0 +1,78 @@
+package nfs.client;
+
+import nfs.common.requests.Request;
+import nfs.common.responses.Response;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A request that has been sent to the server and is waiting for its response.
+ */
+class PendingRequest {
+    private final Request request;
+    private final ByteBuffer payload;
+    private final CompletableFuture<Response> future = new CompletableFuture<>();
+    private volatile int attempts = 0;
+    private volatile long firstSentAt;
+    private ScheduledFuture<?> retransmission;
+
+    /**
+     * @param request the request.
+     * @param payload the marshalled request, kept for retransmission.
+     */
+    PendingRequest(Request request, ByteBuffer payload) {
+        this.request = request;
+        this.payload = payload;
+    }
+
+    Request getRequest() {
+        return request;
+    }
+
+    /**
+     * Get the marshalled request, rewound for sending.
+     *
+     * @return the payload.
+     */
+    ByteBuffer getPayload() {
+        payload.rewind();
+        return payload;
+    }
+
+    CompletableFuture<Response> getFuture() {
+        return future;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    int incrementAttempts() {
+        return ++attempts;
+    }
+
+    /**
+     * @return the time of the first transmission, from System.nanoTime.
+     */
+    long getFirstSentAt() {
+        return firstSentAt;
+    }
+
+    void setFirstSentAt(long firstSentAt) {
+        this.firstSentAt = firstSentAt;
+    }
+
+    synchronized void setRetransmission(ScheduledFuture<?> retransmission) {
+        this.retransmission = retransmission;
+    }
+
+    /**
+     * Cancel the scheduled retransmission, if any.
+     */
+    synchronized void cancelRetransmission() {
+        if (retransmission != null)
+            retransmission.cancel(false);
+    }
+}
@@ -1,56 +1,344 @@
 package nfs.client;
 
+import nfs.common.BufferPool;
 import nfs.common.Serializer;
 import nfs.common.requests.*;
 import nfs.common.responses.Response;
 import nfs.common.responses.ResponseStatus;
-import nfs.common.values.Value;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InvalidObjectException;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.file.Paths;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
+/**
+ * The client stub of the file server.
+ * Every operation has an asynchronous variant returning a CompletableFuture, so that many requests
+ * can be in flight at once. Responses are received by a dedicated thread and routed to the waiting
+ * caller by request id; the blocking variants simply wait for the asynchronous ones.
+ * Retransmission timeouts adapt to the round trip times measured for each request type,
+ * and a request fails once its deadline has passed.
+ */
 public class Proxy {
     private static final Logger logger = LogManager.getLogger();
+    private static final int RECV_BUF_SIZE = 1 << 18; // socket receive buffer, in bytes
+    // Bytes requested per READ_RANGE once compression is negotiated. The server returns as many as fit in
+    // a datagram compressed, and at least as many as fit uncompressed.
+    public static final int COMPRESSED_CHUNK_SIZE = 8 * Serializer.BLOCK_SIZE;
     private final InetAddress address;
     private final int port;
-    private final DatagramSocket socket;
+    private final DatagramChannel channel;
     private final DatagramSocket callbackSocket;
     private final BlockingQueue<Response> queue;
-    private final int timeout = 5000; // in milliseconds
-    private final int maxRecvAttempts = 5;
+    private final int timeout = 5000; // for register requests, in milliseconds
+    private final long initialRto = 1000; // in milliseconds
+    private final long minRto = 10; // in milliseconds
+    private final long maxRto = 5000; // in milliseconds
+    private final double jitter = 0.25; // fraction of the RTO added at random to every retransmission
+    private final long defaultDeadline = 15000; // in milliseconds
+    private final long metadataDeadline = 5000; // for cheap metadata requests, in milliseconds
+    private final int maxReadRestarts = 3;
+    private final int readWindow = 32; // maximum number of READ_RANGE requests in flight per read
+    private final int listDirPageSize = 256; // maximum number of names per LIST_DIR_PAGE response
     private final double lossProb;
+    private final BufferPool pool;
+    private final Random random = new Random();
+    private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+    // Both maps are filled in the constructor and only read afterwards.
+    private final Map<RequestName, RttEstimator> estimators = new EnumMap<>(RequestName.class);
+    private final Map<RequestName, Long> deadlines = new EnumMap<>(RequestName.class);
+    private final ScheduledThreadPoolExecutor timer;
+    private final Thread receiver;
+    private volatile boolean compression = false; // whether large payloads are sent compressed
+    private volatile boolean compound = false; // whether batches are sent in COMPOUND requests
 
     public Proxy(InetAddress address, int port, DatagramSocket callbackSocket,
-                 BlockingQueue<Response> queue, double lossProb) throws SocketException {
+                 BlockingQueue<Response> queue, double lossProb, BufferPool pool) throws IOException {
         this.address = address;
         this.port = port;
         this.callbackSocket = callbackSocket;
         this.queue = queue;
-        this.socket = new DatagramSocket();
-        this.socket.setSoTimeout(timeout);
         this.lossProb = lossProb;
+        this.pool = pool;
+        for (RequestName name : RequestName.values()) {
+            estimators.put(name, new RttEstimator(initialRto, minRto, maxRto));
+            deadlines.put(name, defaultDeadline);
+        }
+        deadlines.put(RequestName.EMPTY, metadataDeadline);
+        deadlines.put(RequestName.GET_ATTR, metadataDeadline);
+        deadlines.put(RequestName.TOUCH, metadataDeadline);
+        deadlines.put(RequestName.NEGOTIATE, metadataDeadline);
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECV_BUF_SIZE);
+        this.channel.connect(new InetSocketAddress(address, port));
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "proxy-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.receiver = new Thread(this::receive, "proxy-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Negotiate the optional protocol features with the server
+     * Compression, once accepted, is negotiated for the callback socket as well, so that callbacks
+     * are compressed too. A server that does not know NEGOTIATE accepts none.
+     *
+     * @param features the bitwise OR of the feature flags in NegotiateRequest
+     * @return the features accepted by the server
+     */
+    public int negotiate(int features) throws IOException {
+        Optional<Response> optRes = invoke(new NegotiateRequest(features));
+        int accepted = optRes.map(res -> res.getInt(0)).orElse(0);
+        int callbackFeatures = accepted & NegotiateRequest.COMPRESSION;
+        if (callbackFeatures != 0) {
+            Response res = invokeOnCallbackSocket(new NegotiateRequest(callbackFeatures));
+            if (res == null || res.getStatus() != ResponseStatus.OK)
+                logger.warn("Unable to negotiate features for callbacks.");
+        }
+        compression = (accepted & NegotiateRequest.COMPRESSION) != 0;
+        compound = (accepted & NegotiateRequest.COMPOUND) != 0;
+        return accepted;
+    }
+
+    /**
+     * @return true if large payloads are sent compressed
+     */
+    public boolean isCompressionEnabled() {
+        return compression;
     }
 
     /**
-     * Send a read request to the server
+     * Read the whole file from the server
+     * Large files are transferred in several datagrams
      *
      * @param filePath file path on server
      * @return file content in bytes
      */
     public Optional<byte[]> requestFile(String filePath) throws IOException {
-        return invoke(new ReadRequest(filePath)).map(res -> (byte[]) res.get(0));
+        return await(requestFileAsync(filePath));
+    }
+
+    /**
+     * Asynchronously read the whole file from the server
+     *
+     * @param filePath file path on server
+     * @return future of the file content in bytes
+     */
+    public CompletableFuture<Optional<byte[]>> requestFileAsync(String filePath) {
+        return readRangeAsync(filePath, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read count bytes of a file starting at offset
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes to read
+     * @return bytes read, which may be fewer than count at the end of the file
+     */
+    public Optional<byte[]> readRange(String filePath, int offset, int count) throws IOException {
+        return await(readRangeAsync(filePath, offset, count));
+    }
+
+    /**
+     * Asynchronously read count bytes of a file starting at offset
+     * One READ_RANGE request is sent for every BLOCK_SIZE bytes, or every COMPRESSED_CHUNK_SIZE bytes once
+     * compression is negotiated. Once the first chunk tells the size of the file, the remaining chunks are
+     * requested together, up to readWindow at a time.
+     * If the file is modified in the middle of the transfer, the read starts over so that the result
+     * is consistent.
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes to read
+     * @return future of the bytes read
+     */
+    public CompletableFuture<Optional<byte[]>> readRangeAsync(String filePath, int offset, int count) {
+        return readFileRangeAsync(filePath, offset, count).thenApply(optRange -> optRange.map(FileRange::getData));
+    }
+
+    /**
+     * Read count bytes of a file starting at offset, together with the attributes of the file
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes to read
+     * @return bytes read, with the modification time and the size of the file they were read from
+     */
+    public Optional<FileRange> readFileRange(String filePath, int offset, int count) throws IOException {
+        return await(readFileRangeAsync(filePath, offset, count));
+    }
+
+    /**
+     * Asynchronously read count bytes of a file starting at offset, together with the attributes of the file
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes to read
+     * @return future of the bytes read, with the modification time and the size of the file
+     */
+    public CompletableFuture<Optional<FileRange>> readFileRangeAsync(String filePath, int offset, int count) {
+        return readFileRangeAsync(filePath, offset, count, 0);
+    }
+
+    /**
+     * Read count bytes of a file starting at offset, unless the file has not been modified since tMclient
+     *
+     * @param filePath file path on server
+     * @param tMclient modification time of the cached copy
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes to read
+     * @return the bytes read with the attributes of the file, or a range that is not modified
+     */
+    public Optional<FileRange> readIfModified(String filePath, long tMclient, int offset, int count)
+            throws IOException {
+        return await(readIfModifiedAsync(filePath, tMclient, offset, count));
+    }
+
+    /**
+     * Asynchronously read count bytes of a file starting at offset, unless the file has not been modified
+     * since tMclient
+     * The first block is requested with READ_IF_MODIFIED, so that an unmodified file costs a single round
+     * trip with an empty response. If the file has been modified, the rest is read as for readFileRange.
+     *
+     * @param filePath file path on server
+     * @param tMclient modification time of the cached copy
+     * @param offset   offset in bytes
+     * @param count    maximum number of bytes to read
+     * @return future of the bytes read with the attributes of the file, or of a range that is not modified
+     */
+    public CompletableFuture<Optional<FileRange>> readIfModifiedAsync(String filePath, long tMclient,
+                                                                      int offset, int count) {
+        int first = Math.min(count, chunkSize());
+        Request request = new ReadIfModifiedRequest(filePath, tMclient, offset, first);
+        return send(request).thenCompose(response -> {
+            if (response.getStatus() == ResponseStatus.NOT_MODIFIED)
+                return CompletableFuture.completedFuture(Optional.of(FileRange.notModified(tMclient)));
+            return readRestAsync(filePath, offset, count, 0, resultOf(request, response));
+        });
+    }
+
+    private CompletableFuture<Optional<FileRange>> readFileRangeAsync(String filePath, int offset, int count,
+                                                                      int restarts) {
+        int first = Math.min(count, chunkSize());
+        return invokeAsync(new ReadRangeRequest(filePath, offset, first))
+                .thenCompose(optHead -> readRestAsync(filePath, offset, count, restarts, optHead));
+    }
+
+    /**
+     * Read the remaining blocks of a range, given the response to the read of its first block
+     *
+     * @param optHead response to the first block
+     */
+    private CompletableFuture<Optional<FileRange>> readRestAsync(String filePath, int offset, int count,
+                                                                 int restarts, Optional<Response> optHead) {
+        if (optHead.isEmpty())
+            return CompletableFuture.completedFuture(Optional.<FileRange>empty());
+        Response head = optHead.get();
+        ByteBuffer headData = head.getBuffer(0);
+        long mtime = head.getLong(1);
+        long size = head.getLong(2);
+        long end = Math.min((long) offset + count, size);
+        long start = (long) offset + headData.remaining();
+        int chunkSize = chunkSize();
+        int numChunks = !headData.hasRemaining() || start >= end ? 0 :
+                (int) ((end - start + chunkSize - 1) / chunkSize);
+
+        List<CompletableFuture<Optional<List<Response>>>> chunks = new ArrayList<>(numChunks);
+        CompletableFuture<Void> window = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < numChunks; i += readWindow) {
+            int from = i;
+            int to = Math.min(i + readWindow, numChunks);
+            window = window.thenCompose(ignored -> {
+                for (int j = from; j < to; j++) {
+                    long pos = start + (long) j * chunkSize;
+                    int chunk = (int) Math.min(end - pos, chunkSize);
+                    chunks.add(readChunkAsync(filePath, pos, chunk));
+                }
+                return CompletableFuture.allOf(chunks.subList(from, to).toArray(new CompletableFuture<?>[0]));
+            });
+        }
+
+        return window.thenCompose(ignored -> {
+            // The data is copied once, from the views of the responses into the content of the range.
+            List<ByteBuffer> parts = new ArrayList<>(1 + numChunks);
+            parts.add(headData);
+            int length = headData.remaining();
+            for (CompletableFuture<Optional<List<Response>>> chunk : chunks) {
+                Optional<List<Response>> optParts = chunk.join();
+                if (optParts.isEmpty())
+                    return CompletableFuture.completedFuture(Optional.<FileRange>empty());
+                for (Response part : optParts.get()) {
+                    if (part.getLong(1) != mtime) {
+                        if (restarts == maxReadRestarts) {
+                            logger.warn(String.format("Error reading %s: file kept changing after %d attempts.",
+                                    filePath, maxReadRestarts + 1));
+                            return CompletableFuture.completedFuture(Optional.<FileRange>empty());
+                        }
+                        logger.warn(filePath + " was modified during the read. Reading again...");
+                        return readFileRangeAsync(filePath, offset, count, restarts + 1);
+                    }
+                    ByteBuffer data = part.getBuffer(0);
+                    parts.add(data);
+                    length += data.remaining();
+                }
+            }
+            ByteBuffer content = ByteBuffer.allocate(length);
+            for (ByteBuffer part : parts) {
+                content.put(part);
+            }
+            return CompletableFuture.completedFuture(Optional.of(new FileRange(content.array(), mtime, size)));
+        });
+    }
+
+    /**
+     * Read a chunk of a range, requesting the rest again while the server returns fewer bytes than asked,
+     * as it does when a compressed chunk does not fit in a datagram
+     *
+     * @return future of the responses to the parts of the chunk, in order
+     */
+    private CompletableFuture<Optional<List<Response>>> readChunkAsync(String filePath, long pos, int count) {
+        return invokeAsync(new ReadRangeRequest(filePath, (int) pos, count)).thenCompose(optRes -> {
+            if (optRes.isEmpty())
+                return CompletableFuture.completedFuture(Optional.<List<Response>>empty());
+            Response part = optRes.get();
+            // An empty part is the end of a file that shrank, which its modification time tells.
+            int read = part.getBuffer(0).remaining();
+            if (read == 0 || read >= count)
+                return CompletableFuture.completedFuture(Optional.of(List.of(part)));
+            return readChunkAsync(filePath, pos + read, count - read).thenApply(optRest -> optRest.map(rest -> {
+                List<Response> parts = new ArrayList<>(1 + rest.size());
+                parts.add(part);
+                parts.addAll(rest);
+                return parts;
+            }));
+        });
+    }
+
+    /**
+     * @return number of bytes requested by each READ_RANGE of a read
+     */
+    private int chunkSize() {
+        return compression ? COMPRESSED_CHUNK_SIZE : Serializer.BLOCK_SIZE;
     }
 
     /**
@@ -62,8 +350,47 @@ public class Proxy {
      * @param data     bytes to write
      */
     public void insert(String filePath, int offset, byte[] data) throws IOException {
-        invoke(new InsertRequest(filePath, offset, data))
-                .ifPresent(res -> System.out.println("Success"));
+        if (await(insertAsync(filePath, offset, data)))
+            System.out.println("Success");
+    }
+
+    /**
+     * Asynchronously send an insert request to the server
+     *
+     * @param filePath file path on server
+     * @param offset   offset of content insertion, measured in number of bytes
+     * @param data     bytes to write
+     * @return future of whether the insert succeeded
+     */
+    public CompletableFuture<Boolean> insertAsync(String filePath, int offset, byte[] data) {
+        return insertFileAsync(filePath, offset, data).thenApply(Optional::isPresent);
+    }
+
+    /**
+     * Send an insert request to the server and return the modified times of the file
+     *
+     * @param filePath file path on server
+     * @param offset   offset of content insertion, measured in number of bytes
+     * @param data     bytes to write
+     * @return modified time of the file after and before the insertion
+     */
+    public Optional<long[]> insertFile(String filePath, int offset, byte[] data) throws IOException {
+        return await(insertFileAsync(filePath, offset, data));
+    }
+
+    /**
+     * Asynchronously send an insert request to the server
+     *
+     * @param filePath file path on server
+     * @param offset   offset of content insertion, measured in number of bytes
+     * @param data     bytes to write
+     * @return future of the modified time of the file after and before the insertion
+     */
+    public CompletableFuture<Optional<long[]>> insertFileAsync(String filePath, int offset, byte[] data) {
+        InsertRequest request = new InsertRequest(filePath, offset, data);
+        if (compression)
+            request.compress();
+        return invokeAsync(request).thenApply(Proxy::mtimesOf);
     }
 
     /**
@@ -74,36 +401,116 @@ public class Proxy {
      * @param data     bytes to write
      */
     public void append(String filePath, byte[] data) throws IOException {
-        invoke(new AppendRequest(filePath, data))
-                .ifPresent(res -> System.out.println("Success"));
+        if (await(appendAsync(filePath, data)))
+            System.out.println("Success");
+    }
+
+    /**
+     * Asynchronously send an append request to the server
+     *
+     * @param filePath file path on server
+     * @param data     bytes to write
+     * @return future of whether the append succeeded
+     */
+    public CompletableFuture<Boolean> appendAsync(String filePath, byte[] data) {
+        return appendFileAsync(filePath, data).thenApply(Optional::isPresent);
+    }
+
+    /**
+     * Send an append request to the server and return the modified times of the file
+     *
+     * @param filePath file path on server
+     * @param data     bytes to write
+     * @return modified time of the file after and before the append
+     */
+    public Optional<long[]> appendFile(String filePath, byte[] data) throws IOException {
+        return await(appendFileAsync(filePath, data));
+    }
+
+    /**
+     * Asynchronously send an append request to the server
+     *
+     * @param filePath file path on server
+     * @param data     bytes to write
+     * @return future of the modified time of the file after and before the append
+     */
+    public CompletableFuture<Optional<long[]>> appendFileAsync(String filePath, byte[] data) {
+        AppendRequest request = new AppendRequest(filePath, data);
+        if (compression)
+            request.compress();
+        return invokeAsync(request).thenApply(Proxy::mtimesOf);
+    }
+
+    /**
+     * Get the modified times returned by a write
+     *
+     * @param optRes response to the write
+     * @return modified time of the file after and before the write
+     */
+    private static Optional<long[]> mtimesOf(Optional<Response> optRes) {
+        return optRes.map(res -> new long[]{res.getLong(0), res.getLong(1)});
     }
 
     /**
      * Request to touch a file on the server
-     * if file exists, last modified time of the file will be returned
+     * if file exists, its last access time and last modified time are updated
      * otherwise, file will be created on the server
      *
      * @param filePath file path on server
+     * @return last access time of the file
      */
-    public void touch(String filePath) throws IOException {
-        invoke(new TouchRequest(filePath)).ifPresent(res -> {
-            long atime = (long) res.get(0);
-            LocalDateTime dateTime = LocalDateTime.ofInstant(
-                    Instant.ofEpochMilli(atime), ZoneId.systemDefault());
-            System.out.println(filePath + " last accessed at: " + dateTime);
-        });
+    public Optional<Long> touch(String filePath) throws IOException {
+        return await(touchAsync(filePath));
+    }
+
+    /**
+     * Asynchronously request to touch a file on the server
+     *
+     * @param filePath file path on server
+     * @return future of the last access time of the file
+     */
+    public CompletableFuture<Optional<Long>> touchAsync(String filePath) {
+        return invokeAsync(new TouchRequest(filePath)).thenApply(optRes -> optRes.map(res -> res.getLong(0)));
+    }
+
+    /**
+     * Request the contents of a directory on the server
+     * Large directories are listed in several pages
+     *
+     * @param dir directory of interest on server
+     * @return names in the directory, in order
+     */
+    public Optional<List<String>> listDir(String dir) throws IOException {
+        return await(listDirAsync(dir));
     }
 
     /**
-     * Send a request to list the contents of a directory on the server
+     * Asynchronously request the contents of a directory on the server
      *
      * @param dir directory of interest on server
+     * @return future of the names in the directory, in order
      */
-    public void listDir(String dir) throws IOException {
-        invoke(new ListDirRequest(dir)).ifPresent(res -> {
-            for (Object filename : res) {
-                System.out.println(filename);
+    public CompletableFuture<Optional<List<String>>> listDirAsync(String dir) {
+        return listDirAsync(dir, "", new ArrayList<>());
+    }
+
+    /**
+     * Request the pages of a directory listing one after another, starting after the start token
+     *
+     * @param names names listed in the previous pages
+     */
+    private CompletableFuture<Optional<List<String>>> listDirAsync(String dir, String start, List<String> names) {
+        return invokeAsync(new ListDirPageRequest(dir, start, listDirPageSize)).thenCompose(optRes -> {
+            if (optRes.isEmpty())
+                return CompletableFuture.completedFuture(Optional.empty());
+            Response res = optRes.get();
+            String next = res.getString(0);
+            for (int i = 1; i < res.getNumValues(); i++) {
+                names.add(res.getString(i));
             }
+            if (next.isEmpty())
+                return CompletableFuture.completedFuture(Optional.of(names));
+            return listDirAsync(dir, next, names);
         });
     }
 
@@ -114,11 +521,91 @@ public class Proxy {
      * @return last modified time and last access time of the file
      */
     public Optional<long[]> getAttr(String filePath) throws IOException {
-        return invoke(new GetAttrRequest(filePath)).map(res -> {
-            long mtime = (long) res.get(0);
-            long atime = (long) res.get(1);
-            return new long[]{mtime, atime};
-        });
+        return await(getAttrAsync(filePath));
+    }
+
+    /**
+     * Asynchronously request the last access time and last modified time of a file on the server
+     *
+     * @param filePath file path on server
+     * @return future of the last modified time and last access time of the file
+     */
+    public CompletableFuture<Optional<long[]>> getAttrAsync(String filePath) {
+        return invokeAsync(new GetAttrRequest(filePath)).thenApply(Proxy::attributesOf);
+    }
+
+    /**
+     * Request the attributes of many files at once
+     * The requests are sent together in as few COMPOUND requests as possible.
+     *
+     * @param filePaths file paths on server
+     * @return last modified time and last access time of each file, in order
+     */
+    public List<Optional<long[]>> getAttrAll(List<String> filePaths) throws IOException {
+        return await(getAttrAllAsync(filePaths));
+    }
+
+    /**
+     * Asynchronously request the attributes of many files at once
+     *
+     * @param filePaths file paths on server
+     * @return future of the last modified time and last access time of each file, in order
+     */
+    public CompletableFuture<List<Optional<long[]>>> getAttrAllAsync(List<String> filePaths) {
+        List<Request> requests = filePaths.stream().map(GetAttrRequest::new).collect(Collectors.toList());
+        List<CompletableFuture<Optional<long[]>>> results = invokeAllAsync(requests).stream()
+                .map(future -> future.thenApply(Proxy::attributesOf))
+                .collect(Collectors.toList());
+        return joinAll(results);
+    }
+
+    /**
+     * Read count bytes starting at offset of many files at once
+     * The first block of every file is requested together in as few COMPOUND requests as possible,
+     * so that small files are read in a single round trip. The rest of larger files is read as for
+     * readFileRange.
+     *
+     * @param filePaths file paths on server
+     * @param offset    offset in bytes
+     * @param count     maximum number of bytes to read from each file
+     * @return bytes read with the attributes of each file, in order
+     */
+    public List<Optional<FileRange>> readFileRangeAll(List<String> filePaths, int offset, int count)
+            throws IOException {
+        return await(readFileRangeAllAsync(filePaths, offset, count));
+    }
+
+    /**
+     * Asynchronously read count bytes starting at offset of many files at once
+     *
+     * @param filePaths file paths on server
+     * @param offset    offset in bytes
+     * @param count     maximum number of bytes to read from each file
+     * @return future of the bytes read with the attributes of each file, in order
+     */
+    public CompletableFuture<List<Optional<FileRange>>> readFileRangeAllAsync(List<String> filePaths,
+                                                                             int offset, int count) {
+        int first = Math.min(count, Serializer.BLOCK_SIZE);
+        List<Request> requests = filePaths.stream()
+                .map(filePath -> new ReadRangeRequest(filePath, offset, first))
+                .collect(Collectors.toList());
+        List<CompletableFuture<Optional<Response>>> heads = invokeAllAsync(requests);
+        List<CompletableFuture<Optional<FileRange>>> results = new ArrayList<>(heads.size());
+        for (int i = 0; i < heads.size(); i++) {
+            String filePath = filePaths.get(i);
+            results.add(heads.get(i).thenCompose(optHead -> readRestAsync(filePath, offset, count, 0, optHead)));
+        }
+        return joinAll(results);
+    }
+
+    /**
+     * Get the attributes returned by GET_ATTR
+     *
+     * @param optRes response to GET_ATTR
+     * @return last modified time and last access time of the file
+     */
+    private static Optional<long[]> attributesOf(Optional<Response> optRes) {
+        return optRes.map(res -> new long[]{res.getLong(0), res.getLong(1)});
     }
 
     /**
@@ -133,33 +620,57 @@ public class Proxy {
             logger.warn("monitorInterval should be greater than 0.");
             return;
         }
-        Request request = new RegisterRequest(filePath, monitorInterval);
-        DatagramPacket req = new DatagramPacket(request.toBytes(), Serializer.BUF_SIZE, address, port);
-        callbackSocket.send(req);
+        Response res = invokeOnCallbackSocket(new RegisterRequest(filePath, monitorInterval));
+        if (res == null) {
+            logger.warn(String.format(
+                    "Callback register error: No response received after %d ms.", timeout));
+        } else if (res.getStatus() == ResponseStatus.OK) {
+            System.out.println("Success");
+        } else {
+            String errorMsg = res.getNumValues() > 0 ? res.getString(0) : "";
+            logger.warn(String.format("Callback register error: response status %s: %s",
+                    res.getStatus(), errorMsg));
+        }
+    }
+
+    /**
+     * Send a request from the callback socket, so that the server associates it with the callbacks,
+     * and wait for the response received by the callback handler
+     *
+     * @param request client request
+     * @return server response, or null if none is received within the timeout
+     */
+    private Response invokeOnCallbackSocket(Request request) throws IOException {
+        ByteBuffer buf = pool.acquire();
+        try {
+            request.putBytes(buf);
+            callbackSocket.send(new DatagramPacket(buf.array(), buf.position(), address, port));
+        } finally {
+            pool.release(buf);
+        }
         try {
-            Response res = queue.poll(timeout, TimeUnit.MILLISECONDS);
-            if (res == null) {
-                logger.warn(String.format(
-                        "Callback register error: No response received after %d ms.", timeout));
-            } else if (res.getStatus() == ResponseStatus.OK) {
-                System.out.println("Success");
-            } else {
-                String errorMsg = res.getValues().size() > 0 ?
-                        (String) res.getValues().get(0).getVal() : "";
-                logger.warn(String.format("Callback register error: response status %s: %s",
-                        res.getStatus(), errorMsg));
-            }
+            return queue.poll(timeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             logger.error(e);
+            return null;
         }
     }
 
     /**
      * Close all the sockets.
+     * Requests still waiting for a response fail with an IOException.
      */
     public void close() {
-        socket.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error(e);
+        }
         callbackSocket.close();
+        timer.shutdownNow();
+        for (PendingRequest call : pending.values()) {
+            call.getFuture().completeExceptionally(new ClosedChannelException());
+        }
     }
 
     /**
@@ -168,62 +679,314 @@ public class Proxy {
      * @return boolean indicating if a request is lost
      */
     private boolean requestLost() {
-        Random rand = new Random();
-        double randNum = rand.nextDouble();
+        double randNum = random.nextDouble();
         return randNum < lossProb;
     }
 
     /**
-     * Invoke a remote procedure on the server and get response
-     * If timeout, retry within maximum possible attempts
+     * Invoke a remote procedure on the server and wait for the response
      *
      * @param request client request
      * @return server response
      */
-    private Optional<List<Object>> invoke(Request request) throws IOException {
-        int count = 0;
+    private Optional<Response> invoke(Request request) throws IOException {
+        return await(invokeAsync(request));
+    }
 
-        // Marshall and send the request.
-        DatagramPacket req = new DatagramPacket(request.toBytes(), Serializer.BUF_SIZE, address, port);
+    /**
+     * Invoke a remote procedure on the server without waiting for the response
+     * If timeout, retry within maximum possible attempts
+     *
+     * @param request client request
+     * @return future of the response, or empty if the server reported an error
+     */
+    private CompletableFuture<Optional<Response>> invokeAsync(Request request) {
+        return send(request).thenApply(response -> resultOf(request, response));
+    }
 
-        while (true) {
+    /**
+     * Invoke many remote procedures on the server without waiting for the responses
+     * If the server supports COMPOUND, consecutive requests are packed into compound requests, as long as
+     * both the requests and their expected responses fit in a datagram. Otherwise, they are all sent at once
+     * as separate requests.
+     *
+     * @param requests client requests
+     * @return futures of the responses, in order
+     */
+    private List<CompletableFuture<Optional<Response>>> invokeAllAsync(List<Request> requests) {
+        List<CompletableFuture<Optional<Response>>> results = new ArrayList<>(requests.size());
+        int from = 0;
+        while (from < requests.size()) {
+            int to = from + 1;
+            if (compound) {
+                int requestSize = requests.get(from).size();
+                int responseSize = 1 + Integer.BYTES + expectedResponseSize(requests.get(from));
+                while (to < requests.size()) {
+                    requestSize += requests.get(to).size();
+                    responseSize += 1 + Integer.BYTES + expectedResponseSize(requests.get(to));
+                    if (requestSize > CompoundRequest.MAX_COMPOUND_SIZE
+                            || responseSize > CompoundRequest.MAX_COMPOUND_SIZE)
+                        break;
+                    to++;
+                }
+            }
+            if (to - from == 1) {
+                results.add(invokeAsync(requests.get(from)));
+            } else {
+                List<Request> batch = requests.subList(from, to);
+                CompoundRequest request = new CompoundRequest(batch);
+                CompletableFuture<List<Optional<Response>>> future = send(request)
+                        .thenApply(response -> resultsOf(request, batch, response));
+                for (int i = 0; i < batch.size(); i++) {
+                    int index = i;
+                    results.add(future.thenApply(values -> values.get(index)));
+                }
+            }
+            from = to;
+        }
+        return results;
+    }
+
+    /**
+     * Get the sub-responses to a compound request
+     *
+     * @param request  compound request
+     * @param requests sub-requests of the compound request
+     * @param response server response to the compound request
+     * @return the sub-responses, or empty for the requests that failed
+     */
+    private static List<Optional<Response>> resultsOf(CompoundRequest request, List<Request> requests,
+                                                      Response response) {
+        List<Optional<Response>> values = new ArrayList<>(requests.size());
+        if (resultOf(request, response).isPresent()) {
+            try {
+                List<Response> responses = CompoundRequest.getResponses(response);
+                for (int i = 0; i < requests.size() && i < responses.size(); i++) {
+                    values.add(resultOf(requests.get(i), responses.get(i)));
+                }
+            } catch (InvalidObjectException e) {
+                logger.error("Unable to parse the responses to a compound request", e);
+                values.clear();
+            }
+        }
+        while (values.size() < requests.size()) {
+            values.add(Optional.empty());
+        }
+        return values;
+    }
+
+    /**
+     * Estimate the byte size of the response to a request, for packing requests into compound requests
+     * Requests with responses of unknown size are given the maximum size, so that they are sent alone.
+     *
+     * @param request client request
+     * @return byte size of the response
+     */
+    private static int expectedResponseSize(Request request) {
+        int int64Size = 1 + Long.BYTES;
+        switch (request.getName()) {
+            case EMPTY:
+                return Response.HEADER_SIZE;
+            case TOUCH:
+                return Response.HEADER_SIZE + int64Size;
+            case GET_ATTR:
+            case INSERT:
+            case APPEND:
+                return Response.HEADER_SIZE + 2 * int64Size;
+            case READ_RANGE:
+                return Response.HEADER_SIZE + 1 + Integer.BYTES + ((ReadRangeRequest) request).getCount()
+                        + 2 * int64Size;
+            case READ_IF_MODIFIED:
+                return Response.HEADER_SIZE + 1 + Integer.BYTES + ((ReadIfModifiedRequest) request).getCount()
+                        + 2 * int64Size;
+            default:
+                return CompoundRequest.MAX_COMPOUND_SIZE;
+        }
+    }
+
+    /**
+     * Wait for many futures
+     *
+     * @param futures futures of the results
+     * @return future of the results, in order
+     */
+    private static <T> CompletableFuture<List<T>> joinAll(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    /**
+     * Get a successful response, logging the error if the status is not OK
+     *
+     * @param request  client request
+     * @param response server response
+     * @return the response, or empty if the server reported an error
+     */
+    private static Optional<Response> resultOf(Request request, Response response) {
+        if (response.getStatus() == ResponseStatus.OK)
+            return Optional.of(response);
+        String errorMsg = response.getNumValues() > 0 ? response.getString(0) : "";
+        logger.warn(String.format("Error invoking %s: response status %s: %s",
+                request.getName(),
+                response.getStatus(),
+                errorMsg));
+        return Optional.empty();
+    }
+
+    /**
+     * Marshall and send a request, and register it for the response
+     * The request is marshalled once into a pooled buffer, which is reused for every retry
+     * and returned to the pool when the request completes.
+     *
+     * @param request client request
+     * @return future of the response
+     */
+    private CompletableFuture<Response> send(Request request) {
+        ByteBuffer payload = pool.acquire();
+        try {
+            request.putBytes(payload);
+        } catch (IOException e) {
+            pool.release(payload);
+            return CompletableFuture.failedFuture(e);
+        } catch (BufferOverflowException e) {
+            pool.release(payload);
+            return CompletableFuture.failedFuture(new IOException(String.format(
+                    "Error invoking %s: request exceeds the maximum datagram size", request.getName()), e));
+        }
+        payload.flip();
+        PendingRequest call = new PendingRequest(request, payload);
+        if (pending.putIfAbsent(request.getId(), call) != null) {
+            pool.release(payload);
+            return CompletableFuture.failedFuture(new IOException(String.format(
+                    "Error invoking %s: request #%d is already in flight", request.getName(), request.getId())));
+        }
+        call.getFuture().whenComplete((response, e) -> {
+            pending.remove(request.getId(), call);
+            synchronized (call) {
+                call.cancelRetransmission();
+                pool.release(payload);
+            }
+        });
+        transmit(call);
+        return call.getFuture();
+    }
+
+    /**
+     * Send a pending request and schedule its retransmission
+     * The n-th transmission waits RTO * 2^(n-1) plus a random jitter, but never past the deadline.
+     *
+     * @param call pending request
+     */
+    private void transmit(PendingRequest call) {
+        synchronized (call) {
+            if (call.getFuture().isDone())
+                return;
+            RequestName name = call.getRequest().getName();
+            int count = call.incrementAttempts();
+            long now = System.nanoTime();
+            if (count == 1)
+                call.setFirstSentAt(now);
             try {
                 if (!requestLost())
-                    socket.send(req);
+                    channel.write(call.getPayload());
                 else
-                    logger.warn("The " + request.getName() + " request is lost " + (count + 1) + " time(s)");
-
-                // Receive and unmarshal the response.
-                byte[] buffer = new byte[Serializer.BUF_SIZE];
-                DatagramPacket res = new DatagramPacket(buffer, Serializer.BUF_SIZE);
-                socket.receive(res);
-                Response response = Response.Builder.parseFrom(buffer);
-                if (response.getReqId() != request.getId()) {
-                    logger.error(String.format("Error invoking %s: Request id mismatch", request.getName()));
-                    return Optional.empty();
-                }
-                if (response.getStatus() == ResponseStatus.OK) {
-                    return Optional.of(response.getValues()
-                            .stream()
-                            .map(Value::getVal)
-                            .collect(Collectors.toList()));
-                } else {
-                    String errorMsg = response.getValues().size() > 0 ?
-                            (String) response.getValues().get(0).getVal() : "";
-                    logger.warn(String.format("Error invoking %s: response status %s: %s",
-                            request.getName(),
-                            response.getStatus(),
-                            errorMsg));
-                    return Optional.empty();
-                }
-            } catch (SocketTimeoutException e) {
+                    logger.warn("The " + name + " request is lost " + count + " time(s)");
+                long rto = estimators.get(name).getBackoffRto(count);
+                long delay = rto + (long) (rto * jitter * random.nextDouble());
+                long remaining = call.getFirstSentAt() + TimeUnit.MILLISECONDS.toNanos(deadlines.get(name)) - now;
+                call.setRetransmission(timer.schedule(() -> retransmit(call),
+                        Math.max(0, Math.min(delay, remaining)), TimeUnit.NANOSECONDS));
+            } catch (IOException | RejectedExecutionException e) {
+                call.getFuture().completeExceptionally(e);
+            }
+        }
+    }
 
-                if (++count == maxRecvAttempts) {
-                    logger.warn(String.format("No response received after %d attempts.", maxRecvAttempts));
-                    throw e;
+    /**
+     * Called when no response is received for a pending request within the timeout
+     *
+     * @param call pending request
+     */
+    private void retransmit(PendingRequest call) {
+        if (call.getFuture().isDone())
+            return;
+        RequestName name = call.getRequest().getName();
+        int count = call.getAttempts();
+        long deadline = deadlines.get(name);
+        if (System.nanoTime() - call.getFirstSentAt() >= TimeUnit.MILLISECONDS.toNanos(deadline)) {
+            logger.warn(String.format("No response received after %d attempts.", count));
+            call.getFuture().completeExceptionally(new SocketTimeoutException(String.format(
+                    "No response received for %s within %d ms after %d attempts.", name, deadline, count)));
+            return;
+        }
+        logger.warn(String.format("No response received after %d attempt(s), retrying...", count));
+        transmit(call);
+    }
+
+    /**
+     * Receive responses and complete the matching pending requests, until the channel is closed
+     * Each datagram is copied out of the receive buffer into a buffer of its own size, which the response is
+     * parsed as a view of, so the receive buffer is reused for every datagram.
+     */
+    private void receive() {
+        ByteBuffer buf = pool.acquire();
+        try {
+            while (true) {
+                buf.clear();
+                try {
+                    channel.receive(buf);
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (PortUnreachableException e) {
+                    logger.warn("The server is unreachable.");
+                    continue;
+                } catch (IOException e) {
+                    logger.error(e);
+                    continue;
+                }
+                buf.flip();
+                try {
+                    ByteBuffer datagram = ByteBuffer.allocate(buf.remaining()).put(buf).flip();
+                    Response response = Response.Builder.parseView(datagram);
+                    PendingRequest call = pending.get(response.getReqId());
+                    if (call == null) {
+                        // A duplicate response to a retransmitted request, or a response that came too late.
+                        logger.debug(String.format("Dropped response to request #%d: no pending request",
+                                response.getReqId()));
+                        continue;
+                    }
+                    // Karn's rule: the response to a retransmitted request may answer any of its transmissions,
+                    // so only requests sent once yield an RTT sample.
+                    if (call.getAttempts() == 1)
+                        estimators.get(call.getRequest().getName()).addSample(System.nanoTime() - call.getFirstSentAt());
+                    call.getFuture().complete(response);
+                } catch (Exception e) {
+                    logger.error("Unable to handle response", e);
                 }
-                logger.warn(String.format("No response received after %d attempt(s), retrying...", count));
             }
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    /**
+     * Wait for an asynchronous call
+     *
+     * @param future future of the call
+     * @return the result of the call
+     * @throws IOException if the call failed with an IOException, or was interrupted
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
         }
     }
 }
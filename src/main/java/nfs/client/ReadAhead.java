@@ -0,0 +1,117 @@
+package nfs.client;
+
+import nfs.common.Serializer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detection of sequential reads, per file, to decide which ranges to read ahead.
+ * A read is sequential if it starts where the previous read of the file ended, or at the start of the file.
+ * The read-ahead window starts at INITIAL_WINDOW, or twice the size of the reads if larger, and doubles every
+ * time a range is read ahead, up to maxWindow. A read elsewhere in the file, or a write to it, starts over.
+ * The next range is read ahead once the reader has consumed half of the previous one, so that it arrives
+ * before it is needed.
+ * Only the most recently read MAX_STREAMS files are tracked.
+ */
+class ReadAhead {
+    static final int INITIAL_WINDOW = 4 * Serializer.BLOCK_SIZE;
+    static final int MAX_STREAMS = 64;
+    private final int maxWindow;
+    private final LinkedHashMap<String, Stream> streams = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    /**
+     * @param maxWindow maximum number of bytes read ahead at once
+     */
+    ReadAhead(int maxWindow) {
+        if (maxWindow <= 0)
+            throw new IllegalArgumentException("Read-ahead window should be positive.");
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Record a read and return the range to read ahead, if any
+     *
+     * @param filePath file path on server
+     * @param offset   offset of the read in bytes
+     * @param count    number of bytes requested
+     * @param read     number of bytes read, fewer than count at the end of the file
+     * @return offset and count of the range to read ahead, or null
+     */
+    synchronized int[] onRead(String filePath, int offset, int count, int read) {
+        long end = (long) offset + read;
+        Stream stream = streams.get(filePath);
+        boolean sequential = stream == null ? offset == 0 : stream.next == offset;
+        if (stream == null || !sequential) {
+            stream = new Stream(end);
+            streams.put(filePath, stream);
+        }
+        stream.next = end;
+        if (read < count)
+            stream.eof = Math.min(stream.eof, end);
+        if (!sequential)
+            return null;
+        stream.readAhead = Math.max(stream.readAhead, end);
+        if (stream.readAhead >= stream.eof || stream.readAhead - end > stream.window / 2)
+            return null;
+
+        if (stream.window == 0) {
+            long initial = Math.max(INITIAL_WINDOW, 2L * count);
+            stream.window = (int) Math.min(initial, maxWindow);
+        } else {
+            stream.window = (int) Math.min(2L * stream.window, maxWindow);
+        }
+        long from = stream.readAhead;
+        // Read ahead whole blocks, since the cache holds whole blocks.
+        long to = Math.min((end + stream.window + Serializer.BLOCK_SIZE - 1)
+                / Serializer.BLOCK_SIZE * Serializer.BLOCK_SIZE, Integer.MAX_VALUE);
+        if (to <= from)
+            return null;
+        stream.readAhead = to;
+        return new int[]{(int) from, (int) (to - from)};
+    }
+
+    /**
+     * Record the result of reading a range ahead
+     *
+     * @param filePath file path on server
+     * @param offset   offset of the range in bytes
+     * @param count    number of bytes requested
+     * @param read     number of bytes read, or -1 if the read failed
+     */
+    synchronized void onReadAhead(String filePath, int offset, int count, int read) {
+        Stream stream = streams.get(filePath);
+        if (stream == null)
+            return;
+        if (read < 0)
+            streams.remove(filePath);
+        else if (read < count)
+            stream.eof = Math.min(stream.eof, (long) offset + read);
+    }
+
+    /**
+     * Forget the reads of a file, which has been written to
+     *
+     * @param filePath file path on server
+     */
+    synchronized void reset(String filePath) {
+        streams.remove(filePath);
+    }
+
+    private static class Stream {
+        private long next; // offset where the next sequential read starts
+        private long readAhead; // offset up to which the file has been read ahead
+        private long eof = Long.MAX_VALUE; // offset of the end of the file, if reached
+        private int window = 0;
+
+        Stream(long next) {
+            this.next = next;
+            this.readAhead = next;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package nfs.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the retransmission timeout from measured round trip times, following Jacobson/Karels
+ * as specified in RFC 6298: RTO = SRTT + 4 * RTTVAR, clamped to [minRto, maxRto].
+ * Callers must only feed samples of requests that were sent once (Karn's rule),
+ * since the response to a retransmitted request cannot be matched to a transmission.
+ */
+public class RttEstimator {
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private final long initialRto;
+    private final long minRto;
+    private final long maxRto;
+    private double srtt;
+    private double rttvar;
+    private boolean hasSample = false;
+
+    /**
+     * @param initialRto RTO before the first sample, in milliseconds.
+     * @param minRto     lower bound of the RTO, in milliseconds.
+     * @param maxRto     upper bound of the RTO, in milliseconds.
+     */
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+        this.initialRto = TimeUnit.MILLISECONDS.toNanos(initialRto);
+        this.minRto = TimeUnit.MILLISECONDS.toNanos(minRto);
+        this.maxRto = TimeUnit.MILLISECONDS.toNanos(maxRto);
+    }
+
+    /**
+     * Update the estimate with a round trip time.
+     *
+     * @param rtt measured round trip time, in nanoseconds.
+     */
+    public synchronized void addSample(long rtt) {
+        if (!hasSample) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+            hasSample = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+    }
+
+    /**
+     * Get the retransmission timeout for the first transmission of a request.
+     *
+     * @return RTO in nanoseconds.
+     */
+    public synchronized long getRto() {
+        if (!hasSample)
+            return initialRto;
+        long rto = (long) (srtt + K * rttvar);
+        return Math.max(minRto, Math.min(maxRto, rto));
+    }
+
+    /**
+     * Get the retransmission timeout for the given transmission, doubling the RTO after every
+     * unanswered transmission.
+     *
+     * @param attempt the transmission count, starting from 1.
+     * @return RTO in nanoseconds, at most maxRto.
+     */
+    public long getBackoffRto(int attempt) {
+        long rto = getRto();
+        for (int i = 1; i < attempt && rto < maxRto; i++) {
+            rto *= 2;
+        }
+        return Math.min(maxRto, rto);
+    }
+
+    /**
+     * @return smoothed round trip time in nanoseconds, or -1 if there is no sample yet.
+     */
+    public synchronized long getSrtt() {
+        return hasSample ? (long) srtt : -1;
+    }
+}
@@ -0,0 +1,110 @@
+package nfs.client;
+
+import nfs.common.Serializer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocates fixed-size pages from slabs of direct memory, outside of the Java heap.
+ * A file is stored in a list of pages which need not be contiguous, so freed pages can be
+ * reused by files of any size. Slabs are allocated on demand and kept for reuse.
+ */
+class SlabAllocator {
+    static final int PAGE_SIZE = Serializer.BLOCK_SIZE;
+    static final int PAGES_PER_SLAB = 1024;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private int[] freePages = new int[PAGES_PER_SLAB];
+    private int numFreePages = 0;
+
+    /**
+     * Get the number of pages needed to store the given number of bytes.
+     *
+     * @param length size in bytes.
+     * @return number of pages.
+     */
+    static int pagesFor(int length) {
+        return (length + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    /**
+     * Store the content in newly allocated pages.
+     *
+     * @param content content to store.
+     * @return the indices of the pages holding the content, in order.
+     */
+    synchronized int[] store(byte[] content) {
+        int[] pages = new int[pagesFor(content.length)];
+        for (int i = 0; i < pages.length; i++) {
+            if (numFreePages == 0)
+                addSlab();
+            pages[i] = freePages[--numFreePages];
+            int from = i * PAGE_SIZE;
+            pageOf(pages[i]).put(content, from, Math.min(PAGE_SIZE, content.length - from));
+        }
+        return pages;
+    }
+
+    /**
+     * Copy the content stored in the pages to the heap.
+     *
+     * @param pages  the indices of the pages, as returned by {@link #store(byte[])}.
+     * @param length size of the stored content in bytes.
+     * @return the content.
+     */
+    synchronized byte[] load(int[] pages, int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < pages.length; i++) {
+            int from = i * PAGE_SIZE;
+            pageOf(pages[i]).get(content, from, Math.min(PAGE_SIZE, length - from));
+        }
+        return content;
+    }
+
+    /**
+     * Return the pages to the allocator. They must not be used by the caller afterwards.
+     *
+     * @param pages the indices of the pages.
+     */
+    synchronized void free(int[] pages) {
+        for (int page : pages) {
+            freePages[numFreePages++] = page;
+        }
+    }
+
+    /**
+     * @return total size of the allocated slabs in bytes.
+     */
+    synchronized long getAllocated() {
+        return (long) slabs.size() * PAGES_PER_SLAB * PAGE_SIZE;
+    }
+
+    /**
+     * @return total size of the pages not in use in bytes.
+     */
+    synchronized long getFree() {
+        return (long) numFreePages * PAGE_SIZE;
+    }
+
+    private void addSlab() {
+        int first = slabs.size() * PAGES_PER_SLAB;
+        slabs.add(ByteBuffer.allocateDirect(PAGES_PER_SLAB * PAGE_SIZE));
+        if (freePages.length < first + PAGES_PER_SLAB)
+            freePages = Arrays.copyOf(freePages, first + PAGES_PER_SLAB);
+        // Push in reverse so that pages are handed out in address order.
+        for (int page = first + PAGES_PER_SLAB - 1; page >= first; page--) {
+            freePages[numFreePages++] = page;
+        }
+    }
+
+    private ByteBuffer pageOf(int page) {
+        ByteBuffer slab = slabs.get(page / PAGES_PER_SLAB);
+        int offset = (page % PAGES_PER_SLAB) * PAGE_SIZE;
+        // Absolute positioning on a duplicate keeps the slab itself untouched.
+        ByteBuffer view = slab.duplicate();
+        view.position(offset).limit(offset + PAGE_SIZE);
+        return view;
+    }
+}
@@ -0,0 +1,128 @@
+package nfs.client;
+
+import nfs.common.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes buffered on the client before they are sent to the server, in order, per file.
+ * A write is merged into the previous write of the file if both are appends, or if it inserts data
+ * right after the data inserted by the previous write, as long as the merged data fits in one request.
+ */
+class WriteBuffer {
+    static final int MAX_WRITE_SIZE = Serializer.BLOCK_SIZE;
+    private final Map<String, List<Write>> writes = new HashMap<>();
+    private final Map<String, Integer> sizes = new HashMap<>();
+
+    /**
+     * Buffer an insertion
+     *
+     * @param filePath file path on server
+     * @param offset   offset in bytes
+     * @param data     data in bytes
+     * @return number of bytes buffered for the file
+     */
+    synchronized int insert(String filePath, int offset, byte[] data) {
+        return add(filePath, offset, data);
+    }
+
+    /**
+     * Buffer an append
+     *
+     * @param filePath file path on server
+     * @param data     data in bytes
+     * @return number of bytes buffered for the file
+     */
+    synchronized int append(String filePath, byte[] data) {
+        return add(filePath, Write.APPEND, data);
+    }
+
+    /**
+     * Remove the buffered writes of a file, to be sent to the server
+     *
+     * @param filePath file path on server
+     * @return the writes in order, empty if there are none
+     */
+    synchronized List<Write> take(String filePath) {
+        sizes.remove(filePath);
+        List<Write> taken = writes.remove(filePath);
+        return taken == null ? Collections.emptyList() : taken;
+    }
+
+    /**
+     * @return true if a write to the file is buffered
+     */
+    synchronized boolean contains(String filePath) {
+        return writes.containsKey(filePath);
+    }
+
+    /**
+     * @return paths of the files with buffered writes
+     */
+    synchronized Set<String> getFiles() {
+        return Set.copyOf(writes.keySet());
+    }
+
+    private int add(String filePath, int offset, byte[] data) {
+        List<Write> fileWrites = writes.computeIfAbsent(filePath, path -> new ArrayList<>());
+        Write last = fileWrites.isEmpty() ? null : fileWrites.get(fileWrites.size() - 1);
+        if (last == null || !last.merge(offset, data)) {
+            // Split data larger than a request into several writes.
+            int from = 0;
+            do {
+                int to = Math.min(data.length, from + MAX_WRITE_SIZE);
+                Write write = new Write(offset == Write.APPEND ? Write.APPEND : offset + from);
+                write.data.write(data, from, to - from);
+                fileWrites.add(write);
+                from = to;
+            } while (from < data.length);
+        }
+        return sizes.merge(filePath, data.length, Integer::sum);
+    }
+
+    /**
+     * A write to send in one INSERT or APPEND request
+     */
+    static class Write {
+        static final int APPEND = -1;
+        private final int offset;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private Write(int offset) {
+            this.offset = offset;
+        }
+
+        /**
+         * @return true if the write appends data to the end of the file
+         */
+        boolean isAppend() {
+            return offset == APPEND;
+        }
+
+        /**
+         * @return offset of the insertion in bytes
+         */
+        int getOffset() {
+            return offset;
+        }
+
+        byte[] getData() {
+            return data.toByteArray();
+        }
+
+        private boolean merge(int nextOffset, byte[] nextData) {
+            if (data.size() + nextData.length > MAX_WRITE_SIZE)
+                return false;
+            if (isAppend() ? nextOffset != APPEND : nextOffset != offset + data.size())
+                return false;
+            data.write(nextData, 0, nextData.length);
+            return true;
+        }
+    }
+}
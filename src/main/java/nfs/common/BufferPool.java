@@ -0,0 +1,59 @@
+package nfs.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of fixed-size heap buffers for the send and receive path.
+ * Buffers are backed by arrays so that they can be handed to a DatagramPacket directly.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * @param bufferSize size of each buffer in bytes.
+     * @param capacity   maximum number of idle buffers kept by the pool.
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Take a cleared buffer from the pool, or allocate one if the pool is empty.
+     *
+     * @return a buffer with position 0 and limit equal to its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null)
+            return ByteBuffer.allocate(bufferSize);
+        return buf;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used by the caller afterwards.
+     * Buffers of a different size are dropped.
+     *
+     * @param buf the buffer to return.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize || !buf.hasArray())
+            return;
+        buf.clear();
+        buffers.offer(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of idle buffers in the pool.
+     */
+    public int available() {
+        return buffers.size();
+    }
+}
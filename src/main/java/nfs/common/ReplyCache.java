@@ -0,0 +1,163 @@
+package nfs.common;
+
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The reply cache of at-most-once semantics.
+ * The encoded reply to each request is kept by client address and request id, and sent again for the
+ * retransmissions of the request instead of executing it again. A retransmission of a request that is
+ * still being executed gets the reply once the execution completes.
+ * The cache is split into NUM_SHARDS shards, locked independently. Each shard drops the replies older than
+ * the time-to-live, and its oldest completed replies beyond its share of the capacity. Requests still being
+ * executed are skipped, so a shard only exceeds its capacity by the requests being executed.
+ */
+public class ReplyCache {
+    static final int NUM_SHARDS = 16;
+    private final long ttl;
+    private final Shard[] shards = new Shard[NUM_SHARDS];
+
+    /**
+     * @param capacity maximum number of replies kept
+     * @param ttl      time-to-live of the replies in ms, which should exceed the time a client retransmits
+     */
+    public ReplyCache(int capacity, long ttl) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Reply cache capacity should be positive.");
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Reply TTL should be positive.");
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        int shardCapacity = Math.max(1, (capacity + NUM_SHARDS - 1) / NUM_SHARDS);
+        for (int i = 0; i < NUM_SHARDS; i++) {
+            shards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    /**
+     * Get the reply to a request, executing the request if it has not been seen
+     * A request that fails to execute is forgotten, so that a retransmission executes it again.
+     *
+     * @param client  client address
+     * @param epoch   session epoch of the client
+     * @param id      request id
+     * @param execute executes the request and returns the encoded reply
+     * @return future of the reply, already completed unless the request is being executed by another thread
+     */
+    public CompletableFuture<byte[]> computeIfAbsent(SocketAddress client, long epoch, long id,
+                                                     Supplier<byte[]> execute) {
+        Key key = new Key(client, epoch, id);
+        Shard shard = shards[Math.floorMod(key.hashCode(), NUM_SHARDS)];
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = shard.putIfAbsent(key, reply, System.nanoTime());
+        if (existing != null)
+            return existing;
+        try {
+            reply.complete(execute.get());
+        } catch (Throwable e) {
+            shard.remove(key, reply);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    /**
+     * @return number of replies kept, including expired ones not removed yet
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private class Shard {
+        private final int capacity;
+        // In the order the requests were first received, which is also the order of expiry.
+        private final LinkedHashMap<Key, CachedReply> entries = new LinkedHashMap<>();
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Add the reply to a request, unless the request has been seen
+         *
+         * @return the reply to the request if it has been seen, or null
+         */
+        synchronized CompletableFuture<byte[]> putIfAbsent(Key key, CompletableFuture<byte[]> reply, long now) {
+            evict(now);
+            CachedReply entry = entries.get(key);
+            if (entry != null)
+                return entry.reply;
+            entries.put(key, new CachedReply(reply, now));
+            evict(now);
+            return null;
+        }
+
+        synchronized void remove(Key key, CompletableFuture<byte[]> reply) {
+            CachedReply entry = entries.get(key);
+            if (entry != null && entry.reply == reply)
+                entries.remove(key);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        /**
+         * Remove the expired replies, and the oldest ones beyond the capacity
+         */
+        private void evict(long now) {
+            Iterator<CachedReply> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CachedReply entry = iterator.next();
+                if (now - entry.tReceived < ttl && entries.size() <= capacity)
+                    break;
+                // A request still being executed is kept, so that its retransmissions wait for it.
+                if (entry.reply.isDone())
+                    iterator.remove();
+            }
+        }
+    }
+
+    private static class CachedReply {
+        private final CompletableFuture<byte[]> reply;
+        private final long tReceived;
+
+        CachedReply(CompletableFuture<byte[]> reply, long tReceived) {
+            this.reply = reply;
+            this.tReceived = tReceived;
+        }
+    }
+
+    private static class Key {
+        private final SocketAddress client;
+        private final long epoch;
+        private final long id;
+
+        Key(SocketAddress client, long epoch, long id) {
+            this.client = client;
+            this.epoch = epoch;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return epoch == other.epoch && id == other.id && Objects.equals(client, other.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Objects.hashCode(client) * 31 + Long.hashCode(epoch)) * 31 + Long.hashCode(id);
+        }
+    }
+}
@@ -1,9 +1,23 @@
 package nfs.common;
 
 import java.io.InvalidClassException;
+import java.nio.ByteBuffer;
 
 public interface Serializer {
     int BUF_SIZE = 4096;
+    /**
+     * Maximum number of file bytes requested in one datagram,
+     * leaving headroom in BUF_SIZE for the headers and other values.
+     */
+    int BLOCK_SIZE = 2048;
 
     byte[] toBytes() throws InvalidClassException;
+
+    /**
+     * Serialize into a caller-supplied buffer, starting at its current position.
+     * The position is advanced past the written bytes.
+     *
+     * @param buf the destination buffer.
+     */
+    void putBytes(ByteBuffer buf) throws InvalidClassException;
 }
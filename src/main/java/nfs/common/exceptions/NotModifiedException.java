@@ -0,0 +1,7 @@
+package nfs.common.exceptions;
+
+public class NotModifiedException extends Exception {
+    public NotModifiedException(String message) {
+        super(message);
+    }
+}
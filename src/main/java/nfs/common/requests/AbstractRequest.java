@@ -40,18 +40,33 @@ abstract class AbstractRequest implements Request {
 
     @Override
     public byte[] toBytes() throws InvalidClassException {
+        ByteBuffer payload = ByteBuffer.allocate(BUF_SIZE);
+        putBytes(payload);
+        return payload.array();
+    }
+
+    @Override
+    public void putBytes(ByteBuffer buf) throws InvalidClassException {
         if (numParams != params.size())
             throw new InvalidClassException(String.format(
                     "Unable to serialize request %s: wrong number of parameters. Expected: %d, Actual: %d .",
                     name.name(), numParams, params.size()));
-        ByteBuffer payload = ByteBuffer.allocate(BUF_SIZE);
-        payload.putInt(id.getId())
+        buf.putLong(id.getEpoch())
+                .putLong(id.getId())
                 .put((byte) name.ordinal())
                 .putInt(numParams);
-        for (Value val : params) {
-            val.putBytes(payload);
+        for (int i = 0; i < numParams; i++) {
+            params.get(i).putBytes(buf);
         }
-        return payload.array();
+    }
+
+    @Override
+    public int size() {
+        int size = HEADER_SIZE;
+        for (Value param : params) {
+            size += 1 + param.size();
+        }
+        return size;
     }
 
     @Override
@@ -60,7 +75,12 @@ abstract class AbstractRequest implements Request {
     }
 
     @Override
-    public int getId() {
+    public long getEpoch() {
+        return id.getEpoch();
+    }
+
+    @Override
+    public long getId() {
         return id.getId();
     }
 
@@ -1,6 +1,7 @@
 package nfs.common.requests;
 
 import nfs.common.values.Bytes;
+import nfs.common.values.CompressedBytes;
 import nfs.common.values.Str;
 
 public class AppendRequest extends AbstractRequest {
@@ -35,4 +36,12 @@ public class AppendRequest extends AbstractRequest {
     public void setData(byte[] data) {
         setParam(1, new Bytes(data));
     }
+
+    /**
+     * Send the data compressed, if it is large enough to be worth it.
+     * Only for servers that have accepted {@link NegotiateRequest#COMPRESSION}.
+     */
+    public void compress() {
+        setParam(1, CompressedBytes.of(getData()));
+    }
 }
@@ -0,0 +1,88 @@
+package nfs.common.requests;
+
+import nfs.common.responses.Response;
+import nfs.common.values.Bytes;
+import nfs.common.values.Int32;
+import nfs.common.values.Value;
+
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompoundRequest extends AbstractRequest {
+    /**
+     * Maximum byte size of the sub-requests carried by a compound request,
+     * and of the sub-responses carried by its response, each including the Bytes value wrapping it.
+     */
+    public static final int MAX_COMPOUND_SIZE = BUF_SIZE - 64;
+
+    CompoundRequest(RequestId id) {
+        super(id, RequestName.COMPOUND);
+    }
+
+    /**
+     * Send several requests in one datagram.
+     * The server handles them in order, each on its own, and responds with one Bytes value per request,
+     * holding the serialized response to it.
+     *
+     * @param requests the sub-requests, of at most MAX_COMPOUND_SIZE bytes in total.
+     */
+    public CompoundRequest(List<? extends Request> requests) {
+        super(RequestName.COMPOUND);
+        int size = 0;
+        for (Request request : requests) {
+            size += request.size();
+        }
+        if (size > MAX_COMPOUND_SIZE)
+            throw new IllegalArgumentException(String.format(
+                    "Sub-requests of %d bytes exceed the maximum of %d bytes", size, MAX_COMPOUND_SIZE));
+        ByteBuffer body = ByteBuffer.allocate(size);
+        try {
+            for (Request request : requests) {
+                request.putBytes(body);
+            }
+        } catch (InvalidClassException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        addParam(new Int32(requests.size()));
+        addParam(new Bytes(body.array()));
+    }
+
+    public int getNumRequests() {
+        return (int) getParam(0).getVal();
+    }
+
+    /**
+     * Parse the sub-requests.
+     *
+     * @return the sub-requests in order.
+     */
+    public List<Request> getRequests() throws InvalidObjectException {
+        ByteBuffer body = ByteBuffer.wrap((byte[]) getParam(1).getVal());
+        List<Request> requests = new ArrayList<>(getNumRequests());
+        for (int i = 0; i < getNumRequests(); i++) {
+            requests.add(Request.Builder.parseFrom(body));
+        }
+        return requests;
+    }
+
+    /**
+     * Parse the sub-responses from the response to a compound request.
+     * Sub-responses held as Bytes are parsed as views of them, without copying.
+     *
+     * @param response the response to a compound request.
+     * @return the sub-responses in the order of the sub-requests.
+     */
+    public static List<Response> getResponses(Response response) throws InvalidObjectException {
+        List<Response> responses = new ArrayList<>(response.getValues().size());
+        for (Value value : response.getValues()) {
+            if (value instanceof Bytes)
+                responses.add(Response.Builder.parseView(((Bytes) value).getBuffer()));
+            else
+                responses.add(Response.Builder.parseFrom((byte[]) value.getVal()));
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,94 @@
+package nfs.common.requests;
+
+import nfs.common.values.Bytes;
+import nfs.common.values.CompressedBytes;
+import nfs.common.values.Int32;
+import nfs.common.values.Int64;
+import nfs.common.values.Str;
+
+public class FileDeltaCallback extends AbstractRequest {
+    FileDeltaCallback(RequestId id) {
+        super(id, RequestName.FILE_DELTA);
+    }
+
+    /**
+     * The callback from server to client to update the file with a delta.
+     * The file has changed from baseMtime to mtime by inserting data at offset, and is now length bytes long.
+     * An append inserts data at the previous length of the file.
+     * A delta without data whose baseMtime is mtime only invalidates the cached file, for a change too large
+     * to be sent in a datagram.
+     *
+     * @param path      the path of the updated file.
+     * @param offset    the offset of the inserted data.
+     * @param data      the inserted data.
+     * @param length    the length of the file after the update.
+     * @param baseMtime the modified time of the file before the update.
+     * @param mtime     the modified time of the file after the update.
+     */
+    public FileDeltaCallback(String path, int offset, byte[] data, long length, long baseMtime, long mtime) {
+        // Callbacks use the reserved epoch 0 and id 0, since no response is needed.
+        super(new RequestId(0, 0), RequestName.FILE_DELTA);
+        addParam(new Str(path));
+        addParam(new Int32(offset));
+        addParam(new Bytes(data));
+        addParam(new Int64(length));
+        addParam(new Int64(baseMtime));
+        addParam(new Int64(mtime));
+    }
+
+    public String getPath() {
+        return (String) getParam(0).getVal();
+    }
+
+    public void setPath(String path) {
+        setParam(0, new Str(path));
+    }
+
+    public int getOffset() {
+        return (int) getParam(1).getVal();
+    }
+
+    public void setOffset(int offset) {
+        setParam(1, new Int32(offset));
+    }
+
+    public byte[] getData() {
+        return (byte[]) getParam(2).getVal();
+    }
+
+    public void setData(byte[] data) {
+        setParam(2, new Bytes(data));
+    }
+
+    public long getLength() {
+        return (long) getParam(3).getVal();
+    }
+
+    public void setLength(long length) {
+        setParam(3, new Int64(length));
+    }
+
+    public long getBaseMtime() {
+        return (long) getParam(4).getVal();
+    }
+
+    public void setBaseMtime(long baseMtime) {
+        setParam(4, new Int64(baseMtime));
+    }
+
+    public long getMtime() {
+        return (long) getParam(5).getVal();
+    }
+
+    public void setMtime(long mtime) {
+        setParam(5, new Int64(mtime));
+    }
+
+    /**
+     * Send the data compressed, if it is large enough to be worth it.
+     * Only for clients that have accepted {@link NegotiateRequest#COMPRESSION}.
+     */
+    public void compress() {
+        setParam(2, CompressedBytes.of(getData()));
+    }
+}
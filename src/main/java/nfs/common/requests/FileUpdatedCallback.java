@@ -16,7 +16,8 @@ public class FileUpdatedCallback extends AbstractRequest {
      * @param data the updated file content.
      */
     public FileUpdatedCallback(String path, long mtime, byte[] data) {
-        super(RequestName.FILE_UPDATED);
+        // Callbacks use the reserved epoch 0 and id 0, since no response is needed.
+        super(new RequestId(0, 0), RequestName.FILE_UPDATED);
         addParam(new Str(path));
         addParam(new Int64(mtime));
         addParam(new Bytes(data));
@@ -1,6 +1,7 @@
 package nfs.common.requests;
 
 import nfs.common.values.Bytes;
+import nfs.common.values.CompressedBytes;
 import nfs.common.values.Int32;
 import nfs.common.values.Str;
 
@@ -46,4 +47,12 @@ public class InsertRequest extends AbstractRequest {
     public void setData(byte[] data) {
         setParam(2, new Bytes(data));
     }
+
+    /**
+     * Send the data compressed, if it is large enough to be worth it.
+     * Only for servers that have accepted {@link NegotiateRequest#COMPRESSION}.
+     */
+    public void compress() {
+        setParam(2, CompressedBytes.of(getData()));
+    }
 }
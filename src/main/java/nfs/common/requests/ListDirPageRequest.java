@@ -0,0 +1,50 @@
+package nfs.common.requests;
+
+import nfs.common.values.Int32;
+import nfs.common.values.Str;
+
+public class ListDirPageRequest extends AbstractRequest {
+    ListDirPageRequest(RequestId id) {
+        super(id, RequestName.LIST_DIR_PAGE);
+    }
+
+    /**
+     * List at most maxEntries names in the directory, in order, starting after the start token.
+     * The server replies with the token to continue from, followed by the names. The token is empty
+     * once the listing is complete. Fewer names than maxEntries are returned if they do not fit in a response.
+     *
+     * @param path       the directory path.
+     * @param start      the token returned with the previous page, or empty for the first page.
+     * @param maxEntries the maximum number of names to return.
+     */
+    public ListDirPageRequest(String path, String start, int maxEntries) {
+        super(RequestName.LIST_DIR_PAGE);
+        addParam(new Int32(maxEntries));
+        addParam(new Str(start));
+        addParam(new Str(path));
+    }
+
+    public int getMaxEntries() {
+        return (int) getParam(0).getVal();
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        setParam(0, new Int32(maxEntries));
+    }
+
+    public String getStart() {
+        return (String) getParam(1).getVal();
+    }
+
+    public void setStart(String start) {
+        setParam(1, new Str(start));
+    }
+
+    public String getPath() {
+        return (String) getParam(2).getVal();
+    }
+
+    public void setPath(String path) {
+        setParam(2, new Str(path));
+    }
+}
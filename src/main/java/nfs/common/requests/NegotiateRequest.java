@@ -0,0 +1,38 @@
+package nfs.common.requests;
+
+import nfs.common.values.Int32;
+
+public class NegotiateRequest extends AbstractRequest {
+    /**
+     * Feature flag for values sent as {@link nfs.common.values.CompressedBytes}.
+     */
+    public static final int COMPRESSION = 1;
+    /**
+     * Feature flag for {@link CompoundRequest}.
+     */
+    public static final int COMPOUND = 2;
+
+    NegotiateRequest(RequestId id) {
+        super(id, RequestName.NEGOTIATE);
+    }
+
+    /**
+     * Negotiate the optional protocol features used between the client and the server.
+     * The server replies with the features it supports among the requested ones, and uses them
+     * in its responses and callbacks to the client from then on.
+     *
+     * @param features the bitwise OR of the feature flags supported by the client.
+     */
+    public NegotiateRequest(int features) {
+        super(RequestName.NEGOTIATE);
+        addParam(new Int32(features));
+    }
+
+    public int getFeatures() {
+        return (int) getParam(0).getVal();
+    }
+
+    public void setFeatures(int features) {
+        setParam(0, new Int32(features));
+    }
+}
@@ -0,0 +1,61 @@
+package nfs.common.requests;
+
+import nfs.common.values.Int32;
+import nfs.common.values.Int64;
+import nfs.common.values.Str;
+
+public class ReadIfModifiedRequest extends AbstractRequest {
+    ReadIfModifiedRequest(RequestId id) {
+        super(id, RequestName.READ_IF_MODIFIED);
+    }
+
+    /**
+     * Read at most count bytes of the file starting at offset, unless the file has not been modified since mtime.
+     * The server replies with NOT_MODIFIED and no values if the modified time of the file equals mtime,
+     * otherwise with the bytes read, the modified time and the size of the file, as for READ_RANGE.
+     *
+     * @param path   the file path.
+     * @param mtime  the modified time of the cached copy.
+     * @param offset the starting point to read data.
+     * @param count  the maximum number of bytes to read.
+     */
+    public ReadIfModifiedRequest(String path, long mtime, int offset, int count) {
+        super(RequestName.READ_IF_MODIFIED);
+        addParam(new Int64(mtime));
+        addParam(new Int32(offset));
+        addParam(new Int32(count));
+        addParam(new Str(path));
+    }
+
+    public long getMtime() {
+        return (long) getParam(0).getVal();
+    }
+
+    public void setMtime(long mtime) {
+        setParam(0, new Int64(mtime));
+    }
+
+    public int getOffset() {
+        return (int) getParam(1).getVal();
+    }
+
+    public void setOffset(int offset) {
+        setParam(1, new Int32(offset));
+    }
+
+    public int getCount() {
+        return (int) getParam(2).getVal();
+    }
+
+    public void setCount(int count) {
+        setParam(2, new Int32(count));
+    }
+
+    public String getPath() {
+        return (String) getParam(3).getVal();
+    }
+
+    public void setPath(String path) {
+        setParam(3, new Str(path));
+    }
+}
@@ -0,0 +1,49 @@
+package nfs.common.requests;
+
+import nfs.common.values.Int32;
+import nfs.common.values.Str;
+
+public class ReadRangeRequest extends AbstractRequest {
+    ReadRangeRequest(RequestId id) {
+        super(id, RequestName.READ_RANGE);
+    }
+
+    /**
+     * Read at most count bytes of the file starting at offset.
+     * The server replies with the bytes read, the modified time and the size of the file.
+     *
+     * @param path   the file path.
+     * @param offset the starting point to read data.
+     * @param count  the maximum number of bytes to read.
+     */
+    public ReadRangeRequest(String path, int offset, int count) {
+        super(RequestName.READ_RANGE);
+        addParam(new Int32(offset));
+        addParam(new Int32(count));
+        addParam(new Str(path));
+    }
+
+    public int getOffset() {
+        return (int) getParam(0).getVal();
+    }
+
+    public void setOffset(int offset) {
+        setParam(0, new Int32(offset));
+    }
+
+    public int getCount() {
+        return (int) getParam(1).getVal();
+    }
+
+    public void setCount(int count) {
+        setParam(1, new Int32(count));
+    }
+
+    public String getPath() {
+        return (String) getParam(2).getVal();
+    }
+
+    public void setPath(String path) {
+        setParam(2, new Str(path));
+    }
+}
@@ -7,13 +7,26 @@ import java.io.InvalidObjectException;
 import java.nio.ByteBuffer;
 
 public interface Request extends Serializer {
+    /**
+     * Byte size of the request header: epoch, request ID, request name and number of parameters.
+     */
+    int HEADER_SIZE = 2 * Long.BYTES + 1 + Integer.BYTES;
+
+    /**
+     * Get the session epoch of the client that created the request.
+     * Together with the request ID, it identifies the request across client restarts.
+     *
+     * @return session epoch.
+     */
+    long getEpoch();
+
     /**
      * Get the request ID. This ID does not include IP and port information.
      * Transport information is extracted through Datagram.
      *
      * @return request ID.
      */
-    int getId();
+    long getId();
 
     /**
      * Get the name of the request.
@@ -29,12 +42,29 @@ public interface Request extends Serializer {
      */
     int getNumParams();
 
+    /**
+     * Get the byte size of the serialized request, including the header.
+     *
+     * @return byte size of the request.
+     */
+    int size();
+
     class Builder {
         private static final RequestName[] REQUEST_NAMES = RequestName.values();
 
         public static Request parseFrom(byte[] data) throws InvalidObjectException {
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            RequestId id = new RequestId(buf.getInt());
+            return parseFrom(ByteBuffer.wrap(data));
+        }
+
+        /**
+         * Parse a request from a buffer, starting at its current position.
+         *
+         * @param buf the buffer holding the serialized request.
+         * @return the parsed request.
+         */
+        public static Request parseFrom(ByteBuffer buf) throws InvalidObjectException {
+            long epoch = buf.getLong();
+            RequestId id = new RequestId(epoch, buf.getLong());
             int requestNameIndex = buf.get();
             if (requestNameIndex < 0 || requestNameIndex >= REQUEST_NAMES.length)
                 throw new InvalidObjectException("Unable to parse request: no matching request name.");
@@ -1,22 +1,51 @@
 package nfs.common.requests;
 
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The identifier of a request, made of the session epoch and a sequence number.
+ * The epoch is drawn at random when the client starts, so that the server never mistakes
+ * a request from a restarted client for one it has already seen.
+ * Epoch 0 is reserved for requests originated by the server, i.e. callbacks.
+ */
 class RequestId {
-    private static int nextId = 1;
-    private final int id;
+    static final long SESSION_EPOCH = newEpoch();
+    private static final AtomicLong nextId = new AtomicLong(1);
+    private final long epoch;
+    private final long id;
 
     RequestId() {
-        this(nextId++);
+        this(SESSION_EPOCH, nextId.getAndIncrement());
+    }
+
+    RequestId(long id) {
+        this(SESSION_EPOCH, id);
     }
 
-    RequestId(int id) {
+    RequestId(long epoch, long id) {
+        this.epoch = epoch;
         this.id = id;
     }
 
-    static int getNextId() {
-        return nextId;
+    private static long newEpoch() {
+        SecureRandom random = new SecureRandom();
+        long epoch;
+        do {
+            epoch = random.nextLong();
+        } while (epoch == 0);
+        return epoch;
+    }
+
+    static long getNextId() {
+        return nextId.get();
     }
 
-    int getId() {
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getId() {
         return id;
     }
 
@@ -24,6 +53,12 @@ class RequestId {
     public boolean equals(Object obj) {
         if (!(obj instanceof RequestId))
             return false;
-        return id == ((RequestId) obj).getId();
+        RequestId other = (RequestId) obj;
+        return epoch == other.getEpoch() && id == other.getId();
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(epoch) * 31 + Long.hashCode(id);
     }
 }
@@ -9,7 +9,13 @@ public enum RequestName {
     TOUCH(1, TouchRequest::new),
     REGISTER(2, RegisterRequest::new),
     APPEND(2, AppendRequest::new),
-    FILE_UPDATED(3, FileUpdatedCallback::new);
+    FILE_UPDATED(3, FileUpdatedCallback::new),
+    READ_RANGE(3, ReadRangeRequest::new),
+    READ_IF_MODIFIED(4, ReadIfModifiedRequest::new),
+    LIST_DIR_PAGE(3, ListDirPageRequest::new),
+    FILE_DELTA(6, FileDeltaCallback::new),
+    NEGOTIATE(1, NegotiateRequest::new),
+    COMPOUND(2, CompoundRequest::new);
 
     private final int numParams;
     private final RequestConstructor cls;
@@ -8,22 +8,22 @@ import java.util.Collections;
 import java.util.List;
 
 public class GenericResponse implements Response {
-    private final int reqId;
+    private final long reqId;
     private final ResponseStatus status;
     private final List<Value> values;
 
-    public GenericResponse(int reqId, ResponseStatus status) {
+    public GenericResponse(long reqId, ResponseStatus status) {
         this(reqId, status, Collections.emptyList());
     }
 
-    public GenericResponse(int reqId, ResponseStatus status, List<Value> values) {
+    public GenericResponse(long reqId, ResponseStatus status, List<Value> values) {
         this.reqId = reqId;
         this.status = status;
         this.values = values;
     }
 
     @Override
-    public int getReqId() {
+    public long getReqId() {
         return reqId;
     }
 
@@ -39,14 +39,19 @@ public class GenericResponse implements Response {
 
     @Override
     public byte[] toBytes() throws InvalidClassException {
-        int numValues = values.size();
         ByteBuffer payload = ByteBuffer.allocate(BUF_SIZE);
-        payload.putInt(reqId)
+        putBytes(payload);
+        return payload.array();
+    }
+
+    @Override
+    public void putBytes(ByteBuffer buf) {
+        int numValues = values.size();
+        buf.putLong(reqId)
                 .put((byte) status.ordinal())
                 .putInt(numValues);
-        for (Value val : values) {
-            val.putBytes(payload);
+        for (int i = 0; i < numValues; i++) {
+            values.get(i).putBytes(buf);
         }
-        return payload.array();
     }
 }
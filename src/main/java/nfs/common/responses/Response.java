@@ -9,12 +9,17 @@ import java.util.ArrayList;
 import java.util.List;
 
 public interface Response extends Serializer {
+    /**
+     * Byte size of the response header: request ID, status and number of values.
+     */
+    int HEADER_SIZE = Long.BYTES + 1 + Integer.BYTES;
+
     /**
      * Get the request id.
      *
      * @return request id.
      */
-    int getReqId();
+    long getReqId();
 
     /**
      * Get the response status.
@@ -30,12 +35,103 @@ public interface Response extends Serializer {
      */
     List<Value> getValues();
 
+    /**
+     * Get the number of values in the response.
+     *
+     * @return number of values.
+     */
+    default int getNumValues() {
+        return getValues().size();
+    }
+
+    /**
+     * Get an INT32 value.
+     *
+     * @param index index of the value.
+     * @return the value.
+     * @throws ClassCastException if the value is of another type.
+     */
+    default int getInt(int index) {
+        return (int) getValues().get(index).getVal();
+    }
+
+    /**
+     * Get an INT64 value.
+     *
+     * @param index index of the value.
+     * @return the value.
+     * @throws ClassCastException if the value is of another type.
+     */
+    default long getLong(int index) {
+        return (long) getValues().get(index).getVal();
+    }
+
+    /**
+     * Get a BYTES or COMPRESSED_BYTES value.
+     *
+     * @param index index of the value.
+     * @return the value.
+     * @throws ClassCastException if the value is of another type.
+     */
+    default byte[] getBytes(int index) {
+        return (byte[]) getValues().get(index).getVal();
+    }
+
+    /**
+     * Get a BYTES or COMPRESSED_BYTES value as a read-only buffer.
+     * For a response parsed as a view, the buffer of a BYTES value is a view of the received data, not a copy.
+     *
+     * @param index index of the value.
+     * @return the value, from the position to the limit of the buffer.
+     * @throws ClassCastException if the value is of another type.
+     */
+    default ByteBuffer getBuffer(int index) {
+        return ByteBuffer.wrap(getBytes(index)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a STRING value.
+     *
+     * @param index index of the value.
+     * @return the value.
+     * @throws ClassCastException if the value is of another type.
+     */
+    default String getString(int index) {
+        return (String) getValues().get(index).getVal();
+    }
+
     class Builder {
         private static final ResponseStatus[] RESPONSE_STATUSES = ResponseStatus.values();
 
         public static Response parseFrom(byte[] data) throws InvalidObjectException {
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            int reqId = buf.getInt();
+            return parseFrom(ByteBuffer.wrap(data));
+        }
+
+        /**
+         * Parse a response from a buffer, starting at its current position.
+         *
+         * @param buf the buffer holding the serialized response.
+         * @return the parsed response.
+         */
+        public static Response parseFrom(ByteBuffer buf) throws InvalidObjectException {
+            return parse(buf, false);
+        }
+
+        /**
+         * Parse a response as a view of a buffer, starting at its current position.
+         * Its values are read from the buffer when accessed: the typed accessors do not box or copy primitives,
+         * and neither Value objects nor copies of bytes and strings are created until needed.
+         * The buffer belongs to the response, and must not be modified or reused afterwards.
+         *
+         * @param buf the buffer holding the serialized response.
+         * @return the parsed response.
+         */
+        public static Response parseView(ByteBuffer buf) throws InvalidObjectException {
+            return parse(buf, true);
+        }
+
+        private static Response parse(ByteBuffer buf, boolean view) throws InvalidObjectException {
+            long reqId = buf.getLong();
             int statusIndex = buf.get();
             ResponseStatus status;
             if (statusIndex < 0 || statusIndex >= RESPONSE_STATUSES.length)
@@ -43,6 +139,8 @@ public interface Response extends Serializer {
             else
                 status = RESPONSE_STATUSES[statusIndex];
             int numValues = buf.getInt();
+            if (view)
+                return new ResponseView(reqId, status, buf, numValues);
             List<Value> values = new ArrayList<>(numValues);
             for (int i = 0; i < numValues; i++) {
                 values.add(Value.Builder.parseFrom(buf));
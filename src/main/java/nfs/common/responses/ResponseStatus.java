@@ -6,4 +6,5 @@ public enum ResponseStatus {
     NOT_FOUND,
     INTERNAL_ERROR,
     UNKNOWN,
+    NOT_MODIFIED,
 }
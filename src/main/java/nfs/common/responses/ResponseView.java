@@ -0,0 +1,145 @@
+package nfs.common.responses;
+
+import nfs.common.values.Value;
+import nfs.common.values.ValueType;
+
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A response parsed as a view of the buffer it was received in.
+ * Parsing only records where each value starts. The typed accessors read the values straight from the buffer,
+ * and Value objects are only created if getValues is called.
+ */
+class ResponseView implements Response {
+    private final long reqId;
+    private final ResponseStatus status;
+    // Read-only view of the values.
+    private final ByteBuffer buf;
+    private final int[] offsets;
+    private List<Value> values;
+
+    /**
+     * @param reqId     request id.
+     * @param status    response status.
+     * @param buf       the buffer positioned at the first value, which is advanced past the last value.
+     * @param numValues number of values.
+     */
+    ResponseView(long reqId, ResponseStatus status, ByteBuffer buf, int numValues) throws InvalidObjectException {
+        this.reqId = reqId;
+        this.status = status;
+        ByteBuffer view = buf.slice().asReadOnlyBuffer();
+        this.offsets = new int[numValues];
+        for (int i = 0; i < numValues; i++) {
+            offsets[i] = view.position();
+            Value.Builder.parseType(view).skip(view);
+        }
+        buf.position(buf.position() + view.position());
+        view.flip();
+        this.buf = view;
+    }
+
+    @Override
+    public long getReqId() {
+        return reqId;
+    }
+
+    @Override
+    public ResponseStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    public synchronized List<Value> getValues() {
+        if (values == null) {
+            List<Value> parsed = new ArrayList<>(offsets.length);
+            for (int offset : offsets) {
+                try {
+                    parsed.add(Value.Builder.parseView(buf.duplicate().position(offset)));
+                } catch (InvalidObjectException e) {
+                    // The types have been checked when parsing the response.
+                    throw new IllegalStateException(e);
+                }
+            }
+            values = Collections.unmodifiableList(parsed);
+        }
+        return values;
+    }
+
+    @Override
+    public int getNumValues() {
+        return offsets.length;
+    }
+
+    @Override
+    public int getInt(int index) {
+        return buf.getInt(offsetOf(index, ValueType.INT32));
+    }
+
+    @Override
+    public long getLong(int index) {
+        return buf.getLong(offsetOf(index, ValueType.INT64));
+    }
+
+    @Override
+    public byte[] getBytes(int index) {
+        if (buf.get(offsets[index]) == ValueType.COMPRESSED_BYTES.ordinal())
+            return (byte[]) getValues().get(index).getVal();
+        ByteBuffer val = slice(offsetOf(index, ValueType.BYTES));
+        byte[] bytes = new byte[val.remaining()];
+        val.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int index) {
+        if (buf.get(offsets[index]) == ValueType.COMPRESSED_BYTES.ordinal())
+            return ByteBuffer.wrap(getBytes(index)).asReadOnlyBuffer();
+        return slice(offsetOf(index, ValueType.BYTES));
+    }
+
+    @Override
+    public String getString(int index) {
+        return StandardCharsets.UTF_8.decode(slice(offsetOf(index, ValueType.STRING))).toString();
+    }
+
+    @Override
+    public byte[] toBytes() throws InvalidClassException {
+        ByteBuffer payload = ByteBuffer.allocate(BUF_SIZE);
+        putBytes(payload);
+        return payload.array();
+    }
+
+    @Override
+    public void putBytes(ByteBuffer buf) {
+        buf.putLong(reqId)
+                .put((byte) status.ordinal())
+                .putInt(offsets.length)
+                .put(this.buf.duplicate());
+    }
+
+    /**
+     * Get the offset of the data of a value, checking its type
+     */
+    private int offsetOf(int index, ValueType type) {
+        int offset = offsets[index];
+        if (buf.get(offset) != type.ordinal())
+            throw new ClassCastException(String.format("Value %d is not of type %s.", index, type));
+        return offset + 1;
+    }
+
+    /**
+     * Get a view of the data of a length-prefixed value
+     */
+    private ByteBuffer slice(int offset) {
+        ByteBuffer val = buf.duplicate();
+        val.position(offset + Integer.BYTES);
+        val.limit(offset + Integer.BYTES + buf.getInt(offset));
+        return val;
+    }
+}
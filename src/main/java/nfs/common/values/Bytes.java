@@ -1,28 +1,63 @@
 package nfs.common.values;
 
 import java.io.InvalidClassException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 public class Bytes implements Value {
-    private final byte[] val;
+    private volatile byte[] val;
+    // Read-only slice of the buffer the value was parsed from, copied into val on first access.
+    private final ByteBuffer view;
 
     public Bytes(byte[] val) {
-        this.val = val;
+        this(val, null);
     }
 
     public Bytes(ByteBuffer valBuffer) {
         int length = valBuffer.getInt();
         this.val = new byte[length];
+        this.view = null;
         valBuffer.get(val, 0, length);
     }
 
+    private Bytes(byte[] val, ByteBuffer view) {
+        this.val = val;
+        this.view = view;
+    }
+
+    /**
+     * Parse a value as a view of the buffer, without copying the bytes.
+     * The buffer must not be modified while the value is in use.
+     *
+     * @param valBuffer the buffer that points to the value.
+     * @return the value.
+     */
+    public static Bytes view(ByteBuffer valBuffer) {
+        return new Bytes(null, slice(valBuffer, valBuffer.getInt()));
+    }
+
     public byte[] getVal() {
-        return val;
+        byte[] bytes = val;
+        if (bytes == null) {
+            bytes = new byte[view.remaining()];
+            view.duplicate().get(bytes);
+            val = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the bytes without copying them.
+     *
+     * @return a read-only buffer of the bytes.
+     */
+    public ByteBuffer getBuffer() {
+        return view != null ? view.duplicate() : ByteBuffer.wrap(val).asReadOnlyBuffer();
     }
 
     @Override
     public int size() {
-        return Integer.BYTES + val.length;
+        return Integer.BYTES + length();
     }
 
     @Override
@@ -40,8 +75,27 @@ public class Bytes implements Value {
     @Override
     public void putBytes(ByteBuffer buf) {
         buf.put((byte) ValueType.BYTES.ordinal())
-                .putInt(val.length)
-                .put(val);
+                .putInt(length())
+                .put(getBuffer());
     }
 
+    private int length() {
+        return view != null ? view.remaining() : val.length;
+    }
+
+    /**
+     * Cut a read-only slice of the next bytes of a buffer, and advance the buffer past them.
+     *
+     * @param buf    the buffer.
+     * @param length number of bytes.
+     * @return the slice.
+     */
+    static ByteBuffer slice(ByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining())
+            throw new BufferUnderflowException();
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return slice.asReadOnlyBuffer();
+    }
 }
@@ -0,0 +1,144 @@
+package nfs.common.values;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidClassException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bytes sent compressed in the zlib format, which the Python server reads and writes with its zlib module.
+ * The value is the uncompressed bytes, so a CompressedBytes can be read wherever a Bytes is expected.
+ */
+public class CompressedBytes implements Value {
+    /**
+     * Payloads shorter than this are not worth compressing.
+     */
+    public static final int COMPRESSION_THRESHOLD = 256;
+    /**
+     * Longest payload sent compressed. Longer lengths read from the wire are rejected before allocating.
+     */
+    public static final int MAX_LENGTH = 1 << 16;
+    private final byte[] val;
+    private final ByteBuffer compressed;
+
+    public CompressedBytes(byte[] val) {
+        this(val, ByteBuffer.wrap(deflate(val)).asReadOnlyBuffer());
+    }
+
+    public CompressedBytes(ByteBuffer valBuffer) {
+        int length = checkLength(valBuffer.getInt());
+        ByteBuffer slice = Bytes.slice(valBuffer, valBuffer.getInt());
+        byte[] compressedBytes = new byte[slice.remaining()];
+        slice.get(compressedBytes);
+        this.compressed = ByteBuffer.wrap(compressedBytes).asReadOnlyBuffer();
+        this.val = inflate(compressed.duplicate(), length);
+    }
+
+    private CompressedBytes(byte[] val, ByteBuffer compressed) {
+        this.val = val;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Parse a value as a view of the buffer, inflating the bytes straight out of it.
+     * The buffer must not be modified while the value is in use.
+     *
+     * @param valBuffer the buffer that points to the value.
+     * @return the value.
+     */
+    public static CompressedBytes view(ByteBuffer valBuffer) {
+        int length = checkLength(valBuffer.getInt());
+        ByteBuffer compressed = Bytes.slice(valBuffer, valBuffer.getInt());
+        return new CompressedBytes(inflate(compressed.duplicate(), length), compressed);
+    }
+
+    /**
+     * Wrap a payload into a value, compressed if it is long enough and compression makes it shorter.
+     *
+     * @param val the payload.
+     * @return a CompressedBytes or a Bytes value of the payload.
+     */
+    public static Value of(byte[] val) {
+        if (val.length < COMPRESSION_THRESHOLD || val.length > MAX_LENGTH)
+            return new Bytes(val);
+        CompressedBytes compressedBytes = new CompressedBytes(val);
+        return compressedBytes.size() < Integer.BYTES + val.length ? compressedBytes : new Bytes(val);
+    }
+
+    public byte[] getVal() {
+        return val;
+    }
+
+    @Override
+    public int size() {
+        return 2 * Integer.BYTES + compressed.remaining();
+    }
+
+    @Override
+    public ValueType getType() {
+        return ValueType.COMPRESSED_BYTES;
+    }
+
+    @Override
+    public byte[] toBytes() throws InvalidClassException {
+        ByteBuffer buf = ByteBuffer.allocate(1 + size());
+        putBytes(buf);
+        return buf.array();
+    }
+
+    @Override
+    public void putBytes(ByteBuffer buf) {
+        buf.put((byte) ValueType.COMPRESSED_BYTES.ordinal())
+                .putInt(val.length)
+                .putInt(compressed.remaining())
+                .put(compressed.duplicate());
+    }
+
+    private static int checkLength(int length) {
+        if (length < 0 || length > MAX_LENGTH)
+            throw new IllegalArgumentException(String.format(
+                    "Unable to parse value: length %d of compressed bytes is out of range.", length));
+        return length;
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+            byte[] chunk = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                output.write(chunk, 0, n);
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer input, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            byte[] output = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(output, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += inflated;
+            }
+            if (n != length || !inflater.finished())
+                throw new IllegalArgumentException("Unable to parse value: corrupted compressed bytes.");
+            return output;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Unable to parse value: corrupted compressed bytes.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
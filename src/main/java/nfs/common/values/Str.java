@@ -4,30 +4,50 @@ import java.io.InvalidClassException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
+/**
+ * A UTF-8 string. A parsed string is decoded on first access, since many are never read.
+ */
 public class Str implements Value {
-    private final String val;
-    private final byte[] encodedVal;
+    private volatile String val;
+    // The encoded string, as an array or as a read-only slice of the buffer the value was parsed from.
+    private final ByteBuffer encodedVal;
 
     public Str(String val) {
-        this.val = val;
-        this.encodedVal = val.getBytes(StandardCharsets.UTF_8);
+        this(ByteBuffer.wrap(val.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer(), val);
     }
 
     public Str(ByteBuffer valBuffer) {
-        int length = valBuffer.getInt();
-        this.encodedVal = new byte[length];
-        valBuffer.get(encodedVal, 0, length);
-        this.val = new String(encodedVal, StandardCharsets.UTF_8);
+        this(copy(valBuffer), null);
     }
 
+    private Str(ByteBuffer encodedVal, String val) {
+        this.encodedVal = encodedVal;
+        this.val = val;
+    }
+
+    /**
+     * Parse a value as a view of the buffer, without copying the encoded string.
+     * The buffer must not be modified while the value is in use.
+     *
+     * @param valBuffer the buffer that points to the value.
+     * @return the value.
+     */
+    public static Str view(ByteBuffer valBuffer) {
+        return new Str(Bytes.slice(valBuffer, valBuffer.getInt()), null);
+    }
 
     public String getVal() {
-        return val;
+        String decoded = val;
+        if (decoded == null) {
+            decoded = StandardCharsets.UTF_8.decode(encodedVal.duplicate()).toString();
+            val = decoded;
+        }
+        return decoded;
     }
 
     @Override
     public int size() {
-        return Integer.BYTES + encodedVal.length;
+        return Integer.BYTES + encodedVal.remaining();
     }
 
     @Override
@@ -45,7 +65,14 @@ public class Str implements Value {
     @Override
     public void putBytes(ByteBuffer buf) {
         buf.put((byte) ValueType.STRING.ordinal())
-                .putInt(encodedVal.length)
-                .put(encodedVal);
+                .putInt(encodedVal.remaining())
+                .put(encodedVal.duplicate());
+    }
+
+    private static ByteBuffer copy(ByteBuffer valBuffer) {
+        int length = valBuffer.getInt();
+        byte[] encoded = new byte[length];
+        valBuffer.get(encoded, 0, length);
+        return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
     }
 }
@@ -36,11 +36,31 @@ public interface Value extends Serializer {
         private static final ValueType[] VALUE_TYPES = ValueType.values();
 
         public static Value parseFrom(ByteBuffer data) throws InvalidObjectException {
+            return parseType(data).build(data);
+        }
+
+        /**
+         * Parse a value as a view of the buffer: bytes are not copied and strings are not decoded until accessed.
+         * The buffer must not be modified while the value is in use.
+         *
+         * @param data the buffer that points to the value.
+         * @return the parsed value.
+         */
+        public static Value parseView(ByteBuffer data) throws InvalidObjectException {
+            return parseType(data).buildView(data);
+        }
+
+        /**
+         * Parse the type of a value, and advance the buffer past the type.
+         *
+         * @param data the buffer that points to the value.
+         * @return the value type.
+         */
+        public static ValueType parseType(ByteBuffer data) throws InvalidObjectException {
             int valueTypeIndex = data.get();
             if (valueTypeIndex < 0 || valueTypeIndex >= VALUE_TYPES.length)
                 throw new InvalidObjectException("Unable to parse value: no matching value type.");
-            ValueType type = VALUE_TYPES[valueTypeIndex];
-            return type.build(data);
+            return VALUE_TYPES[valueTypeIndex];
         }
     }
 }
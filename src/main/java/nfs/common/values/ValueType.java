@@ -1,22 +1,64 @@
 package nfs.common.values;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 public enum ValueType {
-    STRING(Str::new),
-    BYTES(Bytes::new),
-    INT32(Int32::new),
-    INT64(Int64::new);
+    STRING(Str::new, Str::view),
+    BYTES(Bytes::new, Bytes::view),
+    INT32(Int32::new, Int32::new),
+    INT64(Int64::new, Int64::new),
+    COMPRESSED_BYTES(CompressedBytes::new, CompressedBytes::view);
 
     private final ValueConstructor cls;
+    private final ValueConstructor view;
 
-    ValueType(ValueConstructor cls) {
+    ValueType(ValueConstructor cls, ValueConstructor view) {
         this.cls = cls;
+        this.view = view;
     }
 
     public Value build(ByteBuffer buf) {
         return cls.get(buf);
     }
+
+    /**
+     * Construct a value as a view of the buffer, which must not be modified while the value is in use.
+     *
+     * @param buf the buffer that points to the value.
+     * @return the constructed value.
+     */
+    public Value buildView(ByteBuffer buf) {
+        return view.get(buf);
+    }
+
+    /**
+     * Advance a buffer past a value of this type, without parsing it.
+     *
+     * @param buf the buffer that points to the value.
+     */
+    public void skip(ByteBuffer buf) {
+        switch (this) {
+            case INT32:
+                skip(buf, Integer.BYTES);
+                break;
+            case INT64:
+                skip(buf, Long.BYTES);
+                break;
+            case COMPRESSED_BYTES:
+                buf.getInt();
+                skip(buf, buf.getInt());
+                break;
+            default:
+                skip(buf, buf.getInt());
+        }
+    }
+
+    private static void skip(ByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining())
+            throw new BufferUnderflowException();
+        buf.position(buf.position() + length);
+    }
 }
 
 /**
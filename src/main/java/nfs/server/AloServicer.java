@@ -0,0 +1,597 @@
+package nfs.server;
+
+import nfs.common.Serializer;
+import nfs.common.exceptions.BadRequestException;
+import nfs.common.exceptions.NotFoundException;
+import nfs.common.exceptions.NotModifiedException;
+import nfs.common.requests.AppendRequest;
+import nfs.common.requests.CompoundRequest;
+import nfs.common.requests.FileDeltaCallback;
+import nfs.common.requests.GetAttrRequest;
+import nfs.common.requests.InsertRequest;
+import nfs.common.requests.ListDirPageRequest;
+import nfs.common.requests.ListDirRequest;
+import nfs.common.requests.NegotiateRequest;
+import nfs.common.requests.ReadIfModifiedRequest;
+import nfs.common.requests.ReadRangeRequest;
+import nfs.common.requests.ReadRequest;
+import nfs.common.requests.RegisterRequest;
+import nfs.common.requests.Request;
+import nfs.common.requests.RequestName;
+import nfs.common.requests.TouchRequest;
+import nfs.common.responses.GenericResponse;
+import nfs.common.responses.Response;
+import nfs.common.responses.ResponseStatus;
+import nfs.common.values.Bytes;
+import nfs.common.values.CompressedBytes;
+import nfs.common.values.Int32;
+import nfs.common.values.Int64;
+import nfs.common.values.Str;
+import nfs.common.values.Value;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The handlers of the requests, with at-least-once semantics: a retransmitted request is executed again.
+ * Requests may be handled concurrently. Accesses to a file are serialized by a lock striped by path,
+ * which reads share and writes hold exclusively, so that reads of different files proceed in parallel.
+ */
+public class AloServicer {
+    private static final Logger logger = LogManager.getLogger();
+    /**
+     * Maximum number of file bytes carried in a response, leaving room for the headers.
+     */
+    static final int MAX_DATA_SIZE = Serializer.BUF_SIZE - 64;
+    private static final int NUM_LOCKS = 64;
+    private final Path rootDir;
+    private final DatagramChannel channel;
+    private final ReadWriteLock[] locks = new ReadWriteLock[NUM_LOCKS];
+    // file path --> client address --> subscription
+    private final ConcurrentMap<String, ConcurrentMap<SocketAddress, Subscription>> fileSubscribers =
+            new ConcurrentHashMap<>();
+    // client address --> features negotiated with the client
+    private final ConcurrentMap<SocketAddress, Integer> clientFeatures = new ConcurrentHashMap<>();
+
+    /**
+     * @param rootDir root directory of the files served
+     * @param channel channel the callbacks are sent from
+     */
+    public AloServicer(Path rootDir, DatagramChannel channel) {
+        this.rootDir = rootDir.toAbsolutePath().normalize();
+        this.channel = channel;
+        for (int i = 0; i < NUM_LOCKS; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Handle a request and encode the response to send
+     * Every transmission of the request is handled again.
+     *
+     * @param req  client request
+     * @param addr client address
+     * @return future of the encoded response
+     */
+    public CompletableFuture<byte[]> reply(Request req, SocketAddress addr) {
+        return CompletableFuture.completedFuture(encodeReply(serve(req, addr)));
+    }
+
+    /**
+     * Handle a request and build the response, with the status matching the outcome
+     *
+     * @param req  client request
+     * @param addr client address
+     * @return the response
+     */
+    public Response serve(Request req, SocketAddress addr) {
+        RequestName name = req.getName();
+        try {
+            return new GenericResponse(req.getId(), ResponseStatus.OK, handle(req, addr));
+        } catch (NotModifiedException e) {
+            logger.info(String.format("Not modified for %s: %s", name, e.getMessage()));
+            return new GenericResponse(req.getId(), ResponseStatus.NOT_MODIFIED);
+        } catch (BadRequestException e) {
+            logger.warn(String.format("Bad request for %s: %s", name, e.getMessage()));
+            return errorResponse(req.getId(), ResponseStatus.BAD_REQUEST, e);
+        } catch (NotFoundException e) {
+            logger.warn(String.format("Resources not found for %s: %s", name, e.getMessage()));
+            return errorResponse(req.getId(), ResponseStatus.NOT_FOUND, e);
+        } catch (Exception e) {
+            logger.error("Error handling " + name, e);
+            return errorResponse(req.getId(), ResponseStatus.INTERNAL_ERROR, e);
+        }
+    }
+
+    /**
+     * Handle a request
+     *
+     * @param req  client request
+     * @param addr client address
+     * @return values of the response
+     */
+    public List<Value> handle(Request req, SocketAddress addr)
+            throws BadRequestException, NotFoundException, NotModifiedException, IOException {
+        switch (req.getName()) {
+            case EMPTY:
+                return Collections.emptyList();
+            case READ:
+                return handleRead((ReadRequest) req);
+            case INSERT:
+                return handleInsert((InsertRequest) req);
+            case GET_ATTR:
+                return handleGetAttr((GetAttrRequest) req);
+            case LIST_DIR:
+                return handleListDir((ListDirRequest) req);
+            case TOUCH:
+                return handleTouch((TouchRequest) req);
+            case REGISTER:
+                return handleRegister((RegisterRequest) req, addr);
+            case APPEND:
+                return handleAppend((AppendRequest) req);
+            case READ_RANGE:
+                return handleReadRange((ReadRangeRequest) req, addr);
+            case READ_IF_MODIFIED:
+                return handleReadIfModified((ReadIfModifiedRequest) req, addr);
+            case LIST_DIR_PAGE:
+                return handleListDirPage((ListDirPageRequest) req);
+            case NEGOTIATE:
+                return handleNegotiate((NegotiateRequest) req, addr);
+            case COMPOUND:
+                return handleCompound((CompoundRequest) req, addr);
+            default:
+                throw new BadRequestException("Request name not found.");
+        }
+    }
+
+    private List<Value> handleRead(ReadRequest req) throws BadRequestException, NotFoundException, IOException {
+        String path = req.getPath();
+        Path file = resolve(path);
+        Lock lock = lockOf(file).readLock();
+        lock.lock();
+        try {
+            validateFilePath(path, file);
+            return List.of(new Bytes(Files.readAllBytes(file)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Value> handleReadRange(ReadRangeRequest req, SocketAddress addr)
+            throws BadRequestException, NotFoundException, NotModifiedException, IOException {
+        logger.debug(String.format("Arguments - path: %s, offset: %d, count: %d",
+                req.getPath(), req.getOffset(), req.getCount()));
+        return readRange(req.getPath(), req.getOffset(), req.getCount(), -1,
+                supports(addr, NegotiateRequest.COMPRESSION));
+    }
+
+    private List<Value> handleReadIfModified(ReadIfModifiedRequest req, SocketAddress addr)
+            throws BadRequestException, NotFoundException, NotModifiedException, IOException {
+        logger.debug(String.format("Arguments - path: %s, mtime: %d, offset: %d, count: %d",
+                req.getPath(), req.getMtime(), req.getOffset(), req.getCount()));
+        return readRange(req.getPath(), req.getOffset(), req.getCount(), req.getMtime(),
+                supports(addr, NegotiateRequest.COMPRESSION));
+    }
+
+    /**
+     * Read a range of a file, with the attributes of the file it was read from
+     *
+     * @param ifModifiedSince modification time of the copy of the client, or -1 to read the range anyway
+     * @return the bytes read, the modification time and the size of the file
+     * @throws NotModifiedException if the file has not been modified since ifModifiedSince
+     */
+    private List<Value> readRange(String path, int offset, int count, long ifModifiedSince, boolean compress)
+            throws BadRequestException, NotFoundException, NotModifiedException, IOException {
+        if (offset < 0)
+            throw new BadRequestException("offset < 0");
+        if (count < 0)
+            throw new BadRequestException("count < 0");
+        Path file = resolve(path);
+        Lock lock = lockOf(file).readLock();
+        lock.lock();
+        try {
+            validateFilePath(path, file);
+            long mtime = mtimeOf(file);
+            if (mtime == ifModifiedSince)
+                throw new NotModifiedException(String.format("%s has not been modified since %d", path, mtime));
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                if (offset > fileSize)
+                    throw new BadRequestException(String.format(
+                            "Offset %d exceeds the file length %d", offset, fileSize));
+                // A single response carries at most MAX_DATA_SIZE bytes, after compression if negotiated;
+                // the client continues from where this range ends.
+                int maxLength = compress ? CompressedBytes.MAX_LENGTH : MAX_DATA_SIZE;
+                ByteBuffer content = ByteBuffer.allocate((int) Math.min(Math.min(count, maxLength),
+                        fileSize - offset));
+                readFully(fileChannel, content, offset);
+                Value data = compress ? compressToFit(content.array()) : new Bytes(content.array());
+                return List.of(data, new Int64(mtime), new Int64(fileSize));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compress the longest prefix of the content that fits in a response, which is at least MAX_DATA_SIZE bytes
+     */
+    static Value compressToFit(byte[] content) {
+        int length = content.length;
+        while (true) {
+            Value data = CompressedBytes.of(length == content.length ? content : Arrays.copyOf(content, length));
+            if (data.size() <= MAX_DATA_SIZE || length <= MAX_DATA_SIZE)
+                return data;
+            // Shrink in proportion to the excess, with a margin as the ratio varies along the content.
+            length = Math.max(MAX_DATA_SIZE, (int) ((long) length * MAX_DATA_SIZE / data.size() * 9 / 10));
+        }
+    }
+
+    private List<Value> handleInsert(InsertRequest req) throws BadRequestException, NotFoundException, IOException {
+        String path = req.getPath();
+        int offset = req.getOffset();
+        byte[] data = req.getData();
+        logger.debug(String.format("Arguments - path: %s, offset: %d, data: %d bytes", path, offset, data.length));
+        if (offset < 0)
+            throw new BadRequestException("offset < 0");
+        Path file = resolve(path);
+        Lock lock = lockOf(file).writeLock();
+        lock.lock();
+        try {
+            validateFilePath(path, file);
+            long prevMtime = mtimeOf(file);
+            long fileSize;
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                fileSize = fileChannel.size();
+                // If offset exceeds the file length, returns error
+                if (offset > fileSize)
+                    throw new BadRequestException(String.format(
+                            "Offset %d exceeds the file length %d", offset, fileSize));
+                // Save the content after offset, and write it back after the data.
+                ByteBuffer remainingContent = ByteBuffer.allocate((int) (fileSize - offset));
+                readFully(fileChannel, remainingContent, offset);
+                remainingContent.flip();
+                writeFully(fileChannel, ByteBuffer.wrap(data), offset);
+                writeFully(fileChannel, remainingContent, (long) offset + data.length);
+            }
+            long mtime = mtimeOf(file);
+            sendUpdate(path, offset, data, fileSize + data.length, prevMtime, mtime);
+            // Returns the modified time after and before the write to the client,
+            // so that it can apply the write to its cached copy of the file
+            return List.of(new Int64(mtime), new Int64(prevMtime));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Value> handleAppend(AppendRequest req) throws BadRequestException, NotFoundException, IOException {
+        String path = req.getPath();
+        byte[] data = req.getData();
+        logger.debug(String.format("Arguments - path: %s, data: %d bytes", path, data.length));
+        Path file = resolve(path);
+        Lock lock = lockOf(file).writeLock();
+        lock.lock();
+        try {
+            validateFilePath(path, file);
+            long prevMtime = mtimeOf(file);
+            long fileSize = Files.size(file);
+            Files.write(file, data, StandardOpenOption.APPEND);
+            long mtime = mtimeOf(file);
+            sendUpdate(path, (int) fileSize, data, fileSize + data.length, prevMtime, mtime);
+            return List.of(new Int64(mtime), new Int64(prevMtime));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Value> handleGetAttr(GetAttrRequest req) throws BadRequestException, NotFoundException, IOException {
+        String path = req.getPath();
+        logger.debug("Arguments - path: " + path);
+        Path file = resolve(path);
+        Lock lock = lockOf(file).readLock();
+        lock.lock();
+        try {
+            validateFilePath(path, file);
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return List.of(new Int64(attributes.lastModifiedTime().toMillis()),
+                    new Int64(attributes.lastAccessTime().toMillis()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<String> listDir(String path) throws BadRequestException, NotFoundException, IOException {
+        Path dir = resolve(path);
+        if (!Files.isDirectory(dir))
+            throw new NotFoundException(path + " is not a directory");
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                names.add(Files.isDirectory(entry) ? name + "/" : name);
+            }
+        }
+        return names;
+    }
+
+    private List<Value> handleListDir(ListDirRequest req)
+            throws BadRequestException, NotFoundException, IOException {
+        List<Value> values = new ArrayList<>();
+        for (String name : listDir(req.getPath())) {
+            values.add(new Str(name));
+        }
+        return values;
+    }
+
+    private List<Value> handleListDirPage(ListDirPageRequest req)
+            throws BadRequestException, NotFoundException, IOException {
+        String path = req.getPath();
+        String start = req.getStart();
+        int maxEntries = req.getMaxEntries();
+        logger.debug(String.format("Arguments - path: %s, start: %s, max_entries: %d", path, start, maxEntries));
+        if (maxEntries <= 0)
+            throw new BadRequestException("max_entries <= 0");
+        // Names are listed in order, so that a page continues after the last name
+        // of the previous one even if the directory has changed in between.
+        List<String> names = new ArrayList<>();
+        for (String name : listDir(path)) {
+            if (name.compareTo(start) > 0)
+                names.add(name);
+        }
+        Collections.sort(names);
+        List<String> page = new ArrayList<>();
+        int size = 0;
+        for (String name : names.subList(0, Math.min(maxEntries, names.size()))) {
+            // Each name is sent as a Str value: a type tag and a length before the encoded name.
+            // The last name of the page is sent twice, as the token to continue from.
+            int nameSize = 1 + Integer.BYTES + name.getBytes(StandardCharsets.UTF_8).length;
+            if (!page.isEmpty() && size + 2 * nameSize > MAX_DATA_SIZE)
+                break;
+            size += nameSize;
+            page.add(name);
+        }
+        String nextStart = page.size() < names.size() ? page.get(page.size() - 1) : "";
+        List<Value> values = new ArrayList<>(page.size() + 1);
+        values.add(new Str(nextStart));
+        for (String name : page) {
+            values.add(new Str(name));
+        }
+        return values;
+    }
+
+    private List<Value> handleTouch(TouchRequest req) throws BadRequestException, IOException {
+        String path = req.getPath();
+        logger.debug("Arguments - path: " + path);
+        Path file = resolve(path);
+        Lock lock = lockOf(file).writeLock();
+        lock.lock();
+        try {
+            if (Files.exists(file)) {
+                FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+                Files.getFileAttributeView(file, BasicFileAttributeView.class).setTimes(now, now, null);
+            } else {
+                Files.createFile(file);
+            }
+            // Returns access time (timestamp) to the client upon successful touch
+            return List.of(new Int64(Files.readAttributes(file, BasicFileAttributes.class)
+                    .lastAccessTime().toMillis()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Value> handleRegister(RegisterRequest req, SocketAddress addr)
+            throws BadRequestException, NotFoundException {
+        int monitorInterval = req.getMonitorInterval();
+        if (monitorInterval < 0)
+            throw new BadRequestException("monitor_interval < 0");
+        String path = req.getPath();
+        validateFilePath(path, resolve(path));
+        // If already registered, the time of register and the monitor interval are updated.
+        fileSubscribers.computeIfAbsent(path, key -> new ConcurrentHashMap<>())
+                .put(addr, new Subscription(System.currentTimeMillis(), monitorInterval));
+        return Collections.emptyList();
+    }
+
+    private List<Value> handleNegotiate(NegotiateRequest req, SocketAddress addr) {
+        int features = req.getFeatures();
+        logger.debug("Arguments - features: " + features);
+        // Only the features known to the server are accepted, and used for the client from now on.
+        int accepted = features & (NegotiateRequest.COMPRESSION | NegotiateRequest.COMPOUND);
+        clientFeatures.put(addr, accepted);
+        return List.of(new Int32(accepted));
+    }
+
+    private List<Value> handleCompound(CompoundRequest req, SocketAddress addr) throws BadRequestException {
+        List<Request> subRequests;
+        try {
+            subRequests = req.getRequests();
+        } catch (InvalidObjectException | RuntimeException e) {
+            throw new BadRequestException("Unable to parse sub-requests: " + e.getMessage());
+        }
+        logger.debug(String.format("Arguments - %d sub-requests", subRequests.size()));
+        // Each sub-request is handled on its own, and its response is sent as a Bytes value.
+        List<Value> values = new ArrayList<>(subRequests.size());
+        int size = 0;
+        for (Request subRequest : subRequests) {
+            Response res = serveSubRequest(subRequest, addr);
+            if (size + 1 + Integer.BYTES + sizeOf(res) > CompoundRequest.MAX_COMPOUND_SIZE) {
+                // The client sizes compound requests so that the responses fit, except for error messages.
+                // A response that does not fit is sent without its values, as an error.
+                ResponseStatus status = res.getStatus() == ResponseStatus.OK ?
+                        ResponseStatus.INTERNAL_ERROR : res.getStatus();
+                res = new GenericResponse(subRequest.getId(), status);
+            }
+            byte[] resBytes = encode(res);
+            size += 1 + Integer.BYTES + resBytes.length;
+            values.add(new Bytes(resBytes));
+        }
+        return values;
+    }
+
+    private Response serveSubRequest(Request req, SocketAddress addr) {
+        RequestName name = req.getName();
+        if (name == RequestName.COMPOUND || name == RequestName.REGISTER)
+            return new GenericResponse(req.getId(), ResponseStatus.BAD_REQUEST,
+                    List.of(new Str(name + " is not allowed in a compound request")));
+        return serve(req, addr);
+    }
+
+    /**
+     * Send the change of a file to its subscribers as a delta: the data inserted at offset
+     * A delta that does not fit in a datagram is sent without its data, which invalidates the cached file.
+     */
+    private void sendUpdate(String path, int offset, byte[] data, long length, long baseMtime, long mtime) {
+        Map<SocketAddress, Subscription> subscribers = fileSubscribers.get(path);
+        if (subscribers == null)
+            // No client subscribed to this file
+            return;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<SocketAddress, Subscription> subscriber : subscribers.entrySet()) {
+            SocketAddress addr = subscriber.getKey();
+            if (subscriber.getValue().isExpired(now)) {
+                subscribers.remove(addr, subscriber.getValue());
+                continue;
+            }
+            FileDeltaCallback callback = new FileDeltaCallback(path, offset, data, length, baseMtime, mtime);
+            if (supports(addr, NegotiateRequest.COMPRESSION))
+                callback.compress();
+            if (callback.size() > Serializer.BUF_SIZE)
+                callback = new FileDeltaCallback(path, offset, new byte[0], length, mtime, mtime);
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+                callback.putBytes(buf);
+                buf.flip();
+                channel.send(buf, addr);
+            } catch (IOException | RuntimeException e) {
+                logger.warn(String.format("Error sending callback to %s: %s", addr, e));
+            }
+        }
+    }
+
+    boolean supports(SocketAddress addr, int feature) {
+        return (clientFeatures.getOrDefault(addr, 0) & feature) != 0;
+    }
+
+    /**
+     * Verify that the file exists and is not a directory.
+     */
+    private static void validateFilePath(String path, Path file) throws NotFoundException, BadRequestException {
+        if (!Files.exists(file))
+            throw new NotFoundException(String.format("File %s does not exist on the server", path));
+        if (Files.isDirectory(file))
+            throw new BadRequestException(path + " is a directory");
+    }
+
+    /**
+     * Resolve a path on the server against the root directory
+     *
+     * @throws BadRequestException if the path leads out of the root directory
+     */
+    private Path resolve(String path) throws BadRequestException {
+        Path file = rootDir.resolve(path).normalize();
+        if (!file.startsWith(rootDir))
+            throw new BadRequestException(path + " is outside the root directory");
+        return file;
+    }
+
+    private ReadWriteLock lockOf(Path file) {
+        return locks[Math.floorMod(file.hashCode(), NUM_LOCKS)];
+    }
+
+    private static long mtimeOf(Path file) throws IOException {
+        return Files.getLastModifiedTime(file).toMillis();
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = fileChannel.read(buf, position + buf.position());
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            fileChannel.write(buf, position + buf.position());
+        }
+    }
+
+    private static Response errorResponse(long reqId, ResponseStatus status, Exception e) {
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+        return new GenericResponse(reqId, status, List.of(new Str(message)));
+    }
+
+    /**
+     * Get the byte size of a serialized response
+     */
+    static int sizeOf(Response res) {
+        int size = Response.HEADER_SIZE;
+        for (Value value : res.getValues()) {
+            size += 1 + value.size();
+        }
+        return size;
+    }
+
+    /**
+     * Serialize a response to send, or an error if it does not fit in a datagram
+     */
+    static byte[] encodeReply(Response res) {
+        if (sizeOf(res) > Serializer.BUF_SIZE)
+            res = new GenericResponse(res.getReqId(), ResponseStatus.INTERNAL_ERROR,
+                    List.of(new Str("Response exceeds the maximum datagram size")));
+        return encode(res);
+    }
+
+    /**
+     * Serialize a response without padding
+     */
+    private static byte[] encode(Response res) {
+        ByteBuffer buf = ByteBuffer.allocate(sizeOf(res));
+        try {
+            res.putBytes(buf);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buf.array();
+    }
+
+    private static class Subscription {
+        private final long timeOfRegister;
+        private final int monitorInterval;
+
+        Subscription(long timeOfRegister, int monitorInterval) {
+            this.timeOfRegister = timeOfRegister;
+            this.monitorInterval = monitorInterval;
+        }
+
+        boolean isExpired(long now) {
+            return now > timeOfRegister + monitorInterval;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package nfs.server;
+
+import nfs.common.ReplyCache;
+import nfs.common.requests.Request;
+
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The handlers of the requests, with at-most-once semantics: the encoded response to a request is saved
+ * in the reply cache, and sent again for its retransmissions instead of executing it again.
+ */
+public class AmoServicer extends AloServicer {
+    private final ReplyCache replyCache;
+
+    /**
+     * @param rootDir    root directory of the files served
+     * @param channel    channel the callbacks are sent from
+     * @param replyCache cache of the responses sent
+     */
+    public AmoServicer(Path rootDir, DatagramChannel channel, ReplyCache replyCache) {
+        super(rootDir, channel);
+        this.replyCache = replyCache;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> reply(Request req, SocketAddress addr) {
+        return replyCache.computeIfAbsent(addr, req.getEpoch(), req.getId(), () -> encodeReply(serve(req, addr)));
+    }
+}
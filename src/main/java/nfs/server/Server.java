@@ -0,0 +1,175 @@
+package nfs.server;
+
+import nfs.common.BufferPool;
+import nfs.common.Serializer;
+import nfs.common.requests.Request;
+import nfs.common.responses.GenericResponse;
+import nfs.common.responses.ResponseStatus;
+import nfs.common.values.Str;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The file server.
+ * A single thread receives the datagrams from a non-blocking channel as the selector reports them,
+ * and hands each one to a pool of workers, which parse and handle the request and send the response.
+ * Received datagrams are pooled buffers; responses are sent as encoded by the servicer, which may keep them.
+ * Requests beyond MAX_QUEUED waiting for a worker are dropped, as the client retransmits them.
+ */
+public class Server implements Runnable, Closeable {
+    private static final Logger logger = LogManager.getLogger();
+    static final int MAX_QUEUED = 1 << 12;
+    private static final long SHUTDOWN_TIMEOUT = 1000; // in ms
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final AloServicer servicer;
+    private final ThreadPoolExecutor workers;
+    private final BufferPool pool;
+    private final double lossProb;
+
+    /**
+     * @param channel    bound channel the requests are received from
+     * @param servicer   handlers of the requests
+     * @param numWorkers number of worker threads
+     * @param lossProb   probability of a response loss
+     */
+    public Server(DatagramChannel channel, AloServicer servicer, int numWorkers, double lossProb)
+            throws IOException {
+        if (numWorkers <= 0)
+            throw new IllegalArgumentException("Number of workers should be positive.");
+        this.channel = channel;
+        this.servicer = servicer;
+        this.lossProb = lossProb;
+        this.pool = new BufferPool(Serializer.BUF_SIZE, 2 * numWorkers);
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED), runnable -> {
+            Thread thread = new Thread(runnable, "worker-" + workerId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (task, executor) -> logger.warn("Too many pending requests, dropped a request."));
+    }
+
+    /**
+     * Receive requests until the server is closed
+     */
+    @Override
+    public void run() {
+        ByteBuffer buf = pool.acquire();
+        while (true) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketAddress addr;
+                // Drain the datagrams received so far.
+                while ((addr = channel.receive(buf)) != null) {
+                    buf.flip();
+                    ByteBuffer datagram = buf;
+                    SocketAddress client = addr;
+                    buf = pool.acquire();
+                    workers.execute(() -> serve(datagram, client));
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("Error receiving requests", e);
+            }
+        }
+    }
+
+    /**
+     * Parse and handle a request, and send the response
+     *
+     * @param buf  datagram holding the request, released to the pool once parsed
+     * @param addr client address
+     */
+    private void serve(ByteBuffer buf, SocketAddress addr) {
+        Request req;
+        try {
+            req = Request.Builder.parseFrom(buf);
+        } catch (Exception e) {
+            logger.error("Unable to parse request", e);
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            send(AloServicer.encodeReply(new GenericResponse(-1, ResponseStatus.BAD_REQUEST,
+                    List.of(new Str(message)))), addr);
+            return;
+        } finally {
+            pool.release(buf);
+        }
+        logger.info(String.format("Received %s #%d from %s", req.getName(), req.getId(), addr));
+        // A retransmission of a request still being handled is answered once the request completes,
+        // by the worker handling it.
+        servicer.reply(req, addr).whenComplete((reply, e) -> {
+            if (e != null) {
+                logger.error("Error handling " + req.getName(), e);
+                return;
+            }
+            if (isLossy(reply) && ThreadLocalRandom.current().nextDouble() < lossProb) {
+                logger.info(String.format("[LOST] Response to request #%d is lost", req.getId()));
+                return;
+            }
+            send(reply, addr);
+        });
+    }
+
+    /**
+     * Only responses that change the state of the client are subject to loss, as in the Python server.
+     *
+     * @param reply encoded response
+     */
+    private static boolean isLossy(byte[] reply) {
+        // The status follows the request id.
+        int status = reply[Long.BYTES];
+        return status == ResponseStatus.OK.ordinal() || status == ResponseStatus.NOT_MODIFIED.ordinal();
+    }
+
+    private void send(byte[] reply, SocketAddress addr) {
+        try {
+            if (channel.send(ByteBuffer.wrap(reply), addr) == 0)
+                logger.warn("Dropped a response to " + addr + ": send buffer full");
+        } catch (IOException e) {
+            logger.error(String.format("Error sending response to %s", addr), e);
+        }
+    }
+
+    /**
+     * @return address the server receives requests at
+     */
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Stop receiving requests, finish the requests being handled and close the channel
+     */
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
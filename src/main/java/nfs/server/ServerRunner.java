@@ -0,0 +1,76 @@
+package nfs.server;
+
+import nfs.common.ReplyCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+
+@Command(description = "The server for remote file access.", name = "nfs-server-java", mixinStandardHelpOptions = true)
+public class ServerRunner implements Callable<Integer> {
+    private static final Logger logger = LogManager.getLogger();
+    @Parameters(index = "0", description = "Server port.")
+    private int port;
+    @Parameters(index = "1", description = "Root directory for the server.")
+    private Path path;
+    @Option(names = {"-m", "--mode"}, required = true,
+            description = "Invocation semantic: ${COMPLETION-CANDIDATES}.")
+    private Mode mode;
+    @Option(names = {"-l", "--loss-prob"}, defaultValue = "0",
+            description = "Probability of a response loss. Default value: ${DEFAULT-VALUE}")
+    private double lossProb;
+    @Option(names = {"-t", "--threads"}, defaultValue = "4",
+            description = "Number of worker threads. Default value: ${DEFAULT-VALUE}")
+    private int numWorkers;
+    @Option(names = {"--reply-cache-size"}, defaultValue = "16384",
+            description = "Maximum number of replies kept in AMO mode. Default value: ${DEFAULT-VALUE}")
+    private int replyCacheSize;
+    @Option(names = {"--reply-ttl"}, defaultValue = "60000",
+            description = "Time-to-live of the replies kept in AMO mode (in ms). Default value: ${DEFAULT-VALUE}")
+    private long replyTtl;
+
+    public static void main(String... args) {
+        int exitCode = new CommandLine(new ServerRunner()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        if (!Files.isDirectory(path)) {
+            logger.error(String.format("Path %s is not a directory", path));
+            return 1;
+        }
+        DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+        AloServicer servicer = mode == Mode.AMO
+                ? new AmoServicer(path, channel, new ReplyCache(replyCacheSize, replyTtl))
+                : new AloServicer(path, channel);
+        Server server = new Server(channel, servicer, numWorkers, lossProb);
+        logger.info("Server running at port " + port);
+        logger.info(String.format("Server running in %s mode with %d workers", mode, numWorkers));
+        logger.info("Root directory: " + path.toAbsolutePath());
+        logger.info("Loss probability: " + lossProb);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Shutting down...");
+            try {
+                server.close();
+            } catch (Exception e) {
+                logger.error(e);
+            }
+        }));
+        server.run();
+        return 0;
+    }
+
+    enum Mode {
+        ALO, AMO
+    }
+}
@@ -0,0 +1,48 @@
+package nfs.client;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class AttributeCacheTest {
+    AttributeCache attributeCache = new AttributeCache(1000);
+
+    @Test
+    public void addEntry() {
+        attributeCache.put("textA.txt", 1000, 1200);
+        Optional<long[]> cached = attributeCache.get("textA.txt");
+
+        assertTrue(cached.isPresent());
+        assertArrayEquals(new long[]{1000, 1200}, cached.get());
+        assertFalse(attributeCache.get("textB.txt").isPresent());
+    }
+
+    @Test
+    public void keyByNormalizedPath() {
+        attributeCache.put("dir/../textA.txt", 1000, 1200);
+
+        assertTrue(attributeCache.get("./textA.txt").isPresent());
+        attributeCache.invalidate("textA.txt");
+        assertFalse(attributeCache.get("dir/../textA.txt").isPresent());
+    }
+
+    @Test
+    public void expireAfterTtl() throws InterruptedException {
+        AttributeCache shortLived = new AttributeCache(10);
+        shortLived.put("textA.txt", 1000, 1200);
+        Thread.sleep(20);
+
+        assertFalse(shortLived.get("textA.txt").isPresent());
+        assertEquals(0, shortLived.size());
+    }
+
+    @Test
+    public void disableWithZeroTtl() {
+        AttributeCache disabled = new AttributeCache(0);
+        disabled.put("textA.txt", 1000, 1200);
+
+        assertFalse(disabled.get("textA.txt").isPresent());
+    }
+}
@@ -1,15 +1,21 @@
 package nfs.client;
 
+import nfs.common.Serializer;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import static org.junit.Assert.assertArrayEquals;
-import static org.junit.Assert.assertTrue;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 public class CacheHandlerTest {
     private Proxy stub;
@@ -26,14 +32,14 @@ public class CacheHandlerTest {
         String path = "abc";
         byte[] expected = new byte[]{0xa, 0xb, 0xc};
         long[] expected_attr = new long[]{1, 1};
-        Optional<byte[]> opt_expected = Optional.of(expected);
         Optional<long[]> opt_attr = Optional.of(expected_attr);
 
         try {
-            when(stub.requestFile(path)).thenReturn(opt_expected);
+            when(stub.readFileRange(path, 0, Integer.MAX_VALUE))
+                    .thenReturn(Optional.of(new FileRange(expected, 1, expected.length)));
             when(stub.getAttr(path)).thenReturn(opt_attr);
             Optional<byte[]> actual = cacheHandler.getFile(path);
-            byte[] cached = cacheHandler.getCache().getFile(path).getFileContent();
+            byte[] cached = cacheHandler.getCache().getBlock(path, 0).getFileContent();
 
             assertTrue(actual.isPresent());
             assertArrayEquals(expected, actual.get());
@@ -44,4 +50,221 @@ public class CacheHandlerTest {
         }
     }
 
+    @Test
+    public void insertSplicesCachedBlocks() throws IOException {
+        String path = "abc";
+        for (int i = 0; i < 4; i++) {
+            cacheHandler.getCache().putBlock(path, i, new byte[Serializer.BLOCK_SIZE], 1, 1);
+        }
+        when(stub.insertFile(path, Serializer.BLOCK_SIZE * 2 + 1, new byte[]{0xa}))
+                .thenReturn(Optional.of(new long[]{2, 1}));
+        assertTrue(cacheHandler.insertFile(path, Serializer.BLOCK_SIZE * 2 + 1, new byte[]{0xa}));
+
+        CacheEntry unchanged = cacheHandler.getCache().getBlock(path, 1);
+        assertEquals(2, unchanged.getTmclient());
+        CacheEntry spliced = cacheHandler.getCache().getBlock(path, 2);
+        assertEquals(2, spliced.getTmclient());
+        assertEquals(0xa, spliced.getFileContent()[1]);
+        assertEquals(Serializer.BLOCK_SIZE, cacheHandler.getCache().getBlock(path, 3).getFileContent().length);
+        // The last byte shifted out of the cached blocks is not known.
+        assertNull(cacheHandler.getCache().getBlock(path, 4));
+    }
+
+    @Test
+    public void insertDropsOutdatedBlocks() throws IOException {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, new byte[10], 1, 1);
+        when(stub.insertFile(path, 0, new byte[]{0xa})).thenReturn(Optional.of(new long[]{3, 2}));
+        cacheHandler.insertFile(path, 0, new byte[]{0xa});
+
+        assertFalse(cacheHandler.getCache().exists(path));
+    }
+
+    @Test
+    public void appendSplicesLastBlock() throws IOException {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, new byte[Serializer.BLOCK_SIZE], 1, 1);
+        cacheHandler.getCache().putBlock(path, 1, new byte[10], 1, 1);
+        when(stub.appendFile(path, new byte[]{0xa})).thenReturn(Optional.of(new long[]{2, 1}));
+        cacheHandler.appendFile(path, new byte[]{0xa});
+
+        assertEquals(2, cacheHandler.getCache().getBlock(path, 0).getTmclient());
+        CacheEntry last = cacheHandler.getCache().getBlock(path, 1);
+        assertEquals(2, last.getTmclient());
+        assertEquals(11, last.getFileContent().length);
+        assertEquals(0xa, last.getFileContent()[10]);
+    }
+
+    @Test
+    public void appendFillsLastBlock() throws IOException {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, new byte[Serializer.BLOCK_SIZE - 1], 1, 1);
+        when(stub.appendFile(path, new byte[]{0xa})).thenReturn(Optional.of(new long[]{2, 1}));
+        cacheHandler.appendFile(path, new byte[]{0xa});
+
+        assertEquals(Serializer.BLOCK_SIZE, cacheHandler.getCache().getBlock(path, 0).getFileContent().length);
+        // The file now ends on a block boundary.
+        assertEquals(0, cacheHandler.getCache().getBlock(path, 1).getFileContent().length);
+    }
+
+    @Test
+    public void rereadInconsistentBlocks() throws IOException {
+        String path = "abc";
+        byte[] file = new byte[Serializer.BLOCK_SIZE + 10];
+        long now = System.currentTimeMillis();
+        // Block 0 is still fresh, but was read before the file was modified.
+        cacheHandler.getCache().putBlock(path, 0, new byte[Serializer.BLOCK_SIZE], 1, now);
+        when(stub.getAttr(path)).thenReturn(Optional.of(new long[]{2, 2}));
+        when(stub.readFileRange(eq(path), eq(Serializer.BLOCK_SIZE), anyInt()))
+                .thenReturn(Optional.of(new FileRange(new byte[10], 2, file.length)));
+        when(stub.readFileRange(path, 0, Integer.MAX_VALUE))
+                .thenReturn(Optional.of(new FileRange(file, 2, file.length)));
+
+        Optional<byte[]> actual = cacheHandler.getFile(path);
+
+        assertTrue(actual.isPresent());
+        assertArrayEquals(file, actual.get());
+        assertEquals(2, cacheHandler.getCache().getBlock(path, 0).getTmclient());
+    }
+
+    @Test
+    public void coalesceConcurrentReads() throws Exception {
+        String path = "abc";
+        byte[] expected = new byte[]{0xa, 0xb, 0xc};
+        int numReaders = 8;
+        CountDownLatch started = new CountDownLatch(numReaders);
+        when(stub.readFileRange(path, 0, Integer.MAX_VALUE)).thenAnswer(invocation -> {
+            // Keep the read in progress until all readers have asked for the file.
+            started.await();
+            Thread.sleep(100);
+            return Optional.of(new FileRange(expected, 1, expected.length));
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(numReaders);
+        List<Future<Optional<byte[]>>> results = new ArrayList<>();
+        for (int i = 0; i < numReaders; i++) {
+            results.add(executor.submit(() -> {
+                started.countDown();
+                return cacheHandler.getFile(path);
+            }));
+        }
+        for (Future<Optional<byte[]>> result : results) {
+            assertArrayEquals(expected, result.get().get());
+        }
+        executor.shutdown();
+        verify(stub, times(1)).readFileRange(path, 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void readWaitsForFlushInProgress() throws Exception {
+        String path = "abc";
+        cacheHandler.enableWriteBehind(60000);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch sent = new CountDownLatch(1);
+        when(stub.appendFile(path, "def".getBytes())).thenAnswer(invocation -> {
+            sending.countDown();
+            Thread.sleep(200);
+            sent.countDown();
+            return Optional.of(new long[]{2, 1});
+        });
+        when(stub.readFileRange(anyString(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            // The read must not overtake the buffered write.
+            assertEquals(0, sent.getCount());
+            return Optional.of(new FileRange("abcdef".getBytes(), 2, 6));
+        });
+        cacheHandler.appendFile(path, "def".getBytes());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> flushed = executor.submit(() -> {
+            cacheHandler.flush(path);
+            return null;
+        });
+        assertTrue(sending.await(1, TimeUnit.SECONDS));
+        assertArrayEquals("abcdef".getBytes(), cacheHandler.getFileRange(path, 0, 6).get());
+        flushed.get();
+        executor.shutdown();
+    }
+
+    @Test
+    public void applyDeltaToCachedBlocks() {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, 1);
+        cacheHandler.applyDelta(path, 3, "def".getBytes(), 6, 1, 2);
+
+        CacheEntry updated = cacheHandler.getCache().getBlock(path, 0);
+        assertArrayEquals("abcdef".getBytes(), updated.getFileContent());
+        assertEquals(2, updated.getTmclient());
+    }
+
+    @Test
+    public void applyOwnWriteOnce() throws IOException {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, 1);
+        when(stub.appendFile(path, "def".getBytes())).thenReturn(Optional.of(new long[]{2, 1}));
+        cacheHandler.appendFile(path, "def".getBytes());
+        // The callback of the append arrives after its reply.
+        cacheHandler.applyDelta(path, 3, "def".getBytes(), 6, 1, 2);
+
+        assertArrayEquals("abcdef".getBytes(), cacheHandler.getCache().getBlock(path, 0).getFileContent());
+    }
+
+    @Test
+    public void dropOnDeltaFromOtherVersion() {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, 1);
+        cacheHandler.applyDelta(path, 3, "def".getBytes(), 9, 5, 6);
+
+        assertFalse(cacheHandler.getCache().exists(path));
+    }
+
+    @Test
+    public void dropOnDeltaWithOtherLength() {
+        String path = "abc";
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, 1);
+        cacheHandler.applyDelta(path, 3, "def".getBytes(), 7, 1, 2);
+
+        assertFalse(cacheHandler.getCache().exists(path));
+    }
+
+    @Test
+    public void refreshHotFilesBeforeExpiry() throws IOException {
+        String path = "abc";
+        cacheHandler.enableRefresh(0);
+        long tC = System.currentTimeMillis() - 900;
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, tC);
+        when(stub.getAttrAll(List.of(path))).thenReturn(List.of(Optional.of(new long[]{1, 1})));
+        assertArrayEquals("abc".getBytes(), cacheHandler.getFileRange(path, 0, 3).get());
+
+        cacheHandler.refresh();
+        verify(stub, atLeastOnce()).getAttrAll(List.of(path));
+        assertTrue(cacheHandler.getCache().getBlock(path, 0).getTc() > tC);
+        cacheHandler.close();
+    }
+
+    @Test
+    public void refreshDropsModifiedFiles() throws IOException {
+        String path = "abc";
+        cacheHandler.enableRefresh(0);
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, System.currentTimeMillis() - 900);
+        when(stub.getAttrAll(List.of(path))).thenReturn(List.of(Optional.of(new long[]{2, 1})));
+        cacheHandler.getFileRange(path, 0, 3);
+
+        cacheHandler.refresh();
+        assertFalse(cacheHandler.getCache().exists(path));
+        cacheHandler.close();
+    }
+
+    @Test
+    public void serveStaleWhileRevalidating() throws IOException {
+        String path = "abc";
+        cacheHandler.enableRefresh(1000);
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, System.currentTimeMillis() - 1500);
+        when(stub.getAttrAll(List.of(path))).thenReturn(List.of(Optional.of(new long[]{1, 1})));
+
+        assertArrayEquals("abc".getBytes(), cacheHandler.getFileRange(path, 0, 3).get());
+        verify(stub, timeout(1000)).getAttrAll(List.of(path));
+        verify(stub, never()).readFileRange(anyString(), anyInt(), anyInt());
+        verify(stub, never()).readIfModified(anyString(), anyLong(), anyInt(), anyInt());
+        cacheHandler.close();
+    }
 }
@@ -2,8 +2,7 @@ package nfs.client;
 
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.*;
 
 public class CacheTest {
     Cache cache = new Cache();
@@ -15,17 +14,25 @@ public class CacheTest {
         long t_mclient = 1000;
         long t_c = 1200;
 
-        cache.putFile(file_path, content, t_mclient, t_c);
-        CacheEntry cached = cache.getFile(file_path);
+        cache.putBlock(file_path, 0, content, t_mclient, t_c);
+        CacheEntry cached = cache.getBlock(file_path, 0);
         assertEquals(cached.getFileContent(), content);
         assertEquals(cached.getTmclient(), t_mclient);
         assertEquals(cached.getTc(), t_c);
     }
 
+    @Test
+    public void onlyAdvanceValidationTime() {
+        CacheEntry entry = new CacheEntry("This is text A".getBytes(), 1200, 1000);
+        entry.advanceTc(2000);
+        entry.advanceTc(1500);
+        assertEquals(2000, entry.getTc());
+    }
+
     @Test
     public void getNonCachedFile() {
         String file_path = "textB.txt";
-        CacheEntry cached = cache.getFile(file_path);
+        CacheEntry cached = cache.getBlock(file_path, 0);
         assertNull(cached);
     }
 
@@ -37,9 +44,9 @@ public class CacheTest {
         long t_mclient = 1000;
         long t_c = 1200;
 
-        cache.putFile(file_path, content, t_mclient, t_c);
-        cache.putFile(file_path, new_content, t_mclient, t_c);
-        CacheEntry cached = cache.getFile(file_path);
+        cache.putBlock(file_path, 0, content, t_mclient, t_c);
+        cache.putBlock(file_path, 0, new_content, t_mclient, t_c);
+        CacheEntry cached = cache.getBlock(file_path, 0);
         assertEquals(cached.getFileContent(), new_content);
         assertEquals(cached.getTmclient(), t_mclient);
         assertEquals(cached.getTc(), t_c);
@@ -52,11 +59,100 @@ public class CacheTest {
         long t_mclient = 1000;
         long t_c = 1200;
 
-        cache.putFile(file_path, content, t_mclient, t_c);
-        cache.removeFile(file_path);
-        CacheEntry cached = cache.getFile(file_path);
+        cache.putBlock(file_path, 0, content, t_mclient, t_c);
+        cache.removeBlock(file_path, 0);
+        CacheEntry cached = cache.getBlock(file_path, 0);
         assertNull(cached);
     }
 
+    @Test
+    public void evictWithinCapacity() {
+        Cache bounded = new Cache(1000);
+        for (int i = 0; i < 50; i++) {
+            bounded.putBlock("file" + i, 0, new byte[100], 1000, 1200);
+            assertTrue(bounded.getSize() <= bounded.getCapacity());
+        }
+        assertEquals(5000 - bounded.getSize(), bounded.getEvictionCount() * 100);
+    }
+
+    @Test
+    public void keepFrequentEntryDuringScan() {
+        Cache bounded = new Cache(1000);
+        bounded.putBlock("hot.txt", 0, new byte[100], 1000, 1200);
+        for (int i = 0; i < 5; i++) {
+            bounded.getBlock("hot.txt", 0);
+        }
+        // Files read only once must not flush the frequently read one.
+        for (int i = 0; i < 100; i++) {
+            bounded.putBlock("scan" + i, 0, new byte[100], 1000, 1200);
+        }
+        assertNotNull(bounded.getBlock("hot.txt", 0));
+    }
+
+    @Test
+    public void skipEntryLargerThanCapacity() {
+        Cache bounded = new Cache(10);
+        bounded.putBlock("large.bin", 0, new byte[11], 1000, 1200);
+        assertFalse(bounded.exists("large.bin"));
+        assertEquals(0, bounded.getSize());
+    }
+
+    @Test
+    public void removeBlocksFromIndex() {
+        for (int i = 0; i < 4; i++) {
+            cache.putBlock("textA.txt", i, new byte[10], 1000, 1200);
+        }
+        cache.removeBlocksFrom("textA.txt", 2);
+        assertNotNull(cache.getBlock("textA.txt", 1));
+        assertNull(cache.getBlock("textA.txt", 2));
+        assertEquals(1, cache.nextBlock("textA.txt", 1));
+        assertEquals(-1, cache.nextBlock("textA.txt", 2));
+        assertEquals(2, cache.getNumBlocks());
+
+        cache.removeFile("textA.txt");
+        assertFalse(cache.exists("textA.txt"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void countHitsAndMisses() {
+        cache.putBlock("textA.txt", 0, "This is text A".getBytes(), 1000, 1200);
+        cache.getBlock("textA.txt", 0);
+        cache.getBlock("textB.txt", 0);
+        cache.exists("textA.txt");
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getNumFiles());
+    }
 
+    @Test
+    public void storeEntryOffHeap() {
+        Cache offHeap = new Cache(1 << 20, true);
+        byte[] content = new byte[SlabAllocator.PAGE_SIZE - 10];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        offHeap.putBlock("large.bin", 0, content, 1000, 1200);
+        CacheEntry cached = offHeap.getBlock("large.bin", 0);
+        assertArrayEquals(content, cached.getFileContent());
+        assertEquals(SlabAllocator.PAGE_SIZE, offHeap.getSize());
+    }
+
+    @Test
+    public void reusePagesOfRemovedOffHeapEntry() {
+        Cache offHeap = new Cache(1 << 20, true);
+        offHeap.putBlock("textA.txt", 0, "This is text A".getBytes(), 1000, 1200);
+        CacheEntry removed = offHeap.getBlock("textA.txt", 0);
+        offHeap.removeFile("textA.txt");
+        assertFalse(offHeap.exists("textA.txt"));
+        assertNull(removed.getFileContent());
+
+        long allocated = offHeap.getOffHeapAllocated();
+        for (int i = 0; i < SlabAllocator.PAGES_PER_SLAB * 2; i++) {
+            offHeap.putBlock("textB.txt", 0, ("This is text B" + i).getBytes(), 1000, 1200);
+        }
+        assertEquals(allocated, offHeap.getOffHeapAllocated());
+        assertArrayEquals(("This is text B" + (SlabAllocator.PAGES_PER_SLAB * 2 - 1)).getBytes(),
+                offHeap.getBlock("textB.txt", 0).getFileContent());
+    }
 }
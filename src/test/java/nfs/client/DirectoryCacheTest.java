@@ -0,0 +1,46 @@
+package nfs.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class DirectoryCacheTest {
+    DirectoryCache directoryCache = new DirectoryCache(1000);
+
+    @Test
+    public void addEntry() {
+        List<String> names = Arrays.asList("a.txt", "b/");
+        directoryCache.put("dir/", names);
+        Optional<List<String>> cached = directoryCache.get("./dir");
+
+        assertTrue(cached.isPresent());
+        assertEquals(names, cached.get());
+        assertFalse(directoryCache.get("other").isPresent());
+    }
+
+    @Test
+    public void invalidateParentOfFile() {
+        directoryCache.put("dir", Arrays.asList("a.txt"));
+        directoryCache.put(".", Arrays.asList("dir/"));
+
+        directoryCache.invalidateParent("dir/b.txt");
+        assertFalse(directoryCache.get("dir").isPresent());
+        assertTrue(directoryCache.get(".").isPresent());
+
+        directoryCache.invalidateParent("c.txt");
+        assertFalse(directoryCache.get(".").isPresent());
+    }
+
+    @Test
+    public void expireAfterTtl() throws InterruptedException {
+        DirectoryCache shortLived = new DirectoryCache(10);
+        shortLived.put("dir", Arrays.asList("a.txt"));
+        Thread.sleep(20);
+
+        assertFalse(shortLived.get("dir").isPresent());
+    }
+}
@@ -0,0 +1,108 @@
+package nfs.client;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class DiskCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void addEntry() {
+        DiskCache diskCache = new DiskCache(folder.getRoot().toPath(), 1 << 20);
+        byte[] content = "This is text A".getBytes();
+        diskCache.put("textA.txt", 0, content, 1000, 1200);
+
+        CacheEntry cached = diskCache.get("textA.txt", 0);
+        assertArrayEquals(content, cached.getFileContent());
+        assertEquals(1000, cached.getTmclient());
+        assertEquals(1200, cached.getTc());
+        assertNull(diskCache.get("textB.txt", 0));
+        diskCache.close();
+    }
+
+    @Test
+    public void reloadAfterRestart() {
+        Path dir = folder.getRoot().toPath();
+        DiskCache diskCache = new DiskCache(dir, 1 << 20);
+        diskCache.put("textA.txt", 0, "This is text A".getBytes(), 1000, 1200);
+        diskCache.put("textA.txt", 0, "This is text C".getBytes(), 1100, 1300);
+        diskCache.put("textB.txt", 0, "This is text B".getBytes(), 1000, 1200);
+        diskCache.removeFile("textB.txt");
+        diskCache.close();
+
+        DiskCache reopened = new DiskCache(dir, 1 << 20);
+        CacheEntry cached = reopened.get("textA.txt", 0);
+        assertArrayEquals("This is text C".getBytes(), cached.getFileContent());
+        assertEquals(1100, cached.getTmclient());
+        // Entries of a previous run must be validated before use.
+        assertEquals(0, cached.getTc());
+        assertNull(reopened.get("textB.txt", 0));
+        assertEquals(1, reopened.getNumFiles());
+        reopened.close();
+    }
+
+    @Test
+    public void readEntriesWrittenAfterFirstRead() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DiskCache diskCache = new DiskCache(dir, 1 << 20);
+        for (int i = 0; i < 100; i++) {
+            byte[] content = ("This is block " + i).getBytes();
+            diskCache.put("text.txt", i, content, 1000, 1200);
+            assertArrayEquals(content, diskCache.get("text.txt", i).getFileContent());
+        }
+        assertArrayEquals("This is block 0".getBytes(), diskCache.get("text.txt", 0).getFileContent());
+        diskCache.close();
+        // The segment is trimmed to its contents once closed.
+        assertEquals(diskCache.getSize(), Files.size(dir.resolve("segment-00000000.dat")));
+    }
+
+    @Test
+    public void compactIndexDuringRun() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DiskCache diskCache = new DiskCache(dir, 1 << 24);
+        for (int i = 0; i < 10000; i++) {
+            diskCache.put("textA.txt", i % 10, ("This is text A" + i).getBytes(), 1000 + i, 1200);
+        }
+        assertTrue(diskCache.getNumRecords() < 2048);
+        assertEquals(10, diskCache.getNumBlocks());
+        diskCache.close();
+
+        DiskCache reopened = new DiskCache(dir, 1 << 24);
+        assertArrayEquals("This is text A9999".getBytes(), reopened.get("textA.txt", 9).getFileContent());
+        assertEquals(10, reopened.getNumBlocks());
+        reopened.close();
+    }
+
+    @Test
+    public void dropEntryWithMissingSegment() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DiskCache diskCache = new DiskCache(dir, 1 << 20);
+        diskCache.put("textA.txt", 0, "This is text A".getBytes(), 1000, 1200);
+        diskCache.close();
+        Files.write(dir.resolve("segment-00000000.dat"), new byte[4]);
+
+        DiskCache reopened = new DiskCache(dir, 1 << 20);
+        assertNull(reopened.get("textA.txt", 0));
+        reopened.close();
+    }
+
+    @Test
+    public void deleteOldestSegment() {
+        int fileSize = (int) (DiskCache.SEGMENT_SIZE * 3 / 4);
+        DiskCache diskCache = new DiskCache(folder.getRoot().toPath(), DiskCache.SEGMENT_SIZE);
+        diskCache.put("old.bin", 0, new byte[fileSize], 1000, 1200);
+        diskCache.put("new.bin", 0, new byte[fileSize], 1000, 1200);
+
+        assertNull(diskCache.get("old.bin", 0));
+        assertNotNull(diskCache.get("new.bin", 0));
+        assertTrue(diskCache.getSize() <= diskCache.getCapacity());
+        diskCache.close();
+    }
+}
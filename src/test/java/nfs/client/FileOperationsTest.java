@@ -1,10 +1,12 @@
 package nfs.client;
 
+import nfs.common.Serializer;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.Assert.*;
@@ -28,7 +30,7 @@ public class FileOperationsTest {
         byte[] expected = new byte[]{};
         Optional<byte[]> opt_expected = Optional.of(expected);
 
-        when(stub.requestFile(path)).thenReturn(opt_expected);
+        when(stub.readRange(path, 0, expected.length)).thenReturn(opt_expected);
         Optional<byte[]> actual = fileOps.read(path, 0, expected.length);
 
         assertTrue(actual.isPresent());
@@ -43,15 +45,16 @@ public class FileOperationsTest {
 
         assertFalse(actual.isPresent());
         verify(stub, never()).requestFile(path);
+        verify(stub, never()).readRange(anyString(), anyInt(), anyInt());
     }
 
     @Test
     public void readOutOfRangeOffset() throws IOException {
         String path = "file.txt";
         byte[] expected = "abc".getBytes();
-        Optional<byte[]> opt_expected = Optional.of(expected);
 
-        when(stub.requestFile(path)).thenReturn(opt_expected);
+        when(stub.readFileRange(path, 0, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(new FileRange(expected, 1, expected.length)));
         Optional<byte[]> actual = fileOps.read(path, expected.length + 1, 1);
 
         assertFalse(actual.isPresent());
@@ -61,9 +64,9 @@ public class FileOperationsTest {
     public void readValidOffsetValidCount() throws IOException {
         String path = "file.txt";
         byte[] expected = "abc".getBytes();
-        Optional<byte[]> opt_expected = Optional.of(expected);
 
-        when(stub.requestFile(path)).thenReturn(opt_expected);
+        when(stub.readFileRange(path, 0, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(new FileRange(expected, 1, expected.length)));
         Optional<byte[]> actual = fileOps.read(path, 0, expected.length);
 
         assertTrue(actual.isPresent());
@@ -74,10 +77,10 @@ public class FileOperationsTest {
     public void readValidOffsetInvalidCount() throws IOException {
         String path = "file.txt";
         byte[] expected = "abc".getBytes();
-        Optional<byte[]> opt_expected = Optional.of(expected);
-
 
-        when(stub.requestFile(path)).thenReturn(opt_expected);
+        // The server returns the available bytes only.
+        when(stub.readFileRange(path, 0, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(new FileRange(expected, 1, expected.length)));
         Optional<byte[]> actual = fileOps.read(path, 1, expected.length + 1);
 
         assertTrue(actual.isPresent());
@@ -95,4 +98,237 @@ public class FileOperationsTest {
 
         assertFalse(actual.isPresent());
     }
+
+    @Test
+    public void readCachedFileRange() throws IOException {
+        String path = "file.txt";
+        byte[] content = "abc".getBytes();
+        long now = System.currentTimeMillis();
+        cacheHandler.getCache().putBlock(path, 0, content, 1, now);
+        when(stub.getAttr(path)).thenReturn(Optional.of(new long[]{1, 1}));
+
+        Optional<byte[]> actual = fileOps.read(path, 1, 1);
+
+        assertTrue(actual.isPresent());
+        assertArrayEquals("b".getBytes(), actual.get());
+        verify(stub, never()).readFileRange(anyString(), anyInt(), anyInt());
+        verify(stub, never()).getAttr(anyString());
+    }
+
+    @Test
+    public void readMissWithSingleRequest() throws IOException {
+        String path = "file.txt";
+        byte[] expected = "abc".getBytes();
+        when(stub.readFileRange(path, 0, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(new FileRange(expected, 1, expected.length)));
+
+        Optional<byte[]> actual = fileOps.read(path, 0, expected.length);
+
+        assertTrue(actual.isPresent());
+        assertArrayEquals(expected, actual.get());
+        verify(stub, never()).getAttr(anyString());
+        assertEquals(1, cacheHandler.getCache().getBlock(path, 0).getTmclient());
+    }
+
+    @Test
+    public void validateExpiredCachedFile() throws IOException {
+        String path = "file.txt";
+        byte[] content = "abc".getBytes();
+        cacheHandler.getCache().putBlock(path, 0, content, 1, 0);
+        when(stub.readIfModified(path, 1, 0, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(FileRange.notModified(1)));
+
+        Optional<byte[]> actual = fileOps.read(path, 0, content.length);
+
+        assertTrue(actual.isPresent());
+        assertArrayEquals(content, actual.get());
+        verify(stub, never()).getAttr(anyString());
+        verify(stub, never()).readFileRange(anyString(), anyInt(), anyInt());
+        assertTrue(cacheHandler.getCache().getBlock(path, 0).getTc() > 0);
+    }
+
+    @Test
+    public void readModifiedExpiredCachedFile() throws IOException {
+        String path = "file.txt";
+        byte[] expected = "abcd".getBytes();
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, 0);
+        when(stub.readIfModified(path, 1, 0, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(new FileRange(expected, 2, expected.length)));
+
+        Optional<byte[]> actual = fileOps.read(path, 0, Serializer.BLOCK_SIZE);
+
+        assertTrue(actual.isPresent());
+        assertArrayEquals(expected, actual.get());
+        verify(stub, never()).readFileRange(anyString(), anyInt(), anyInt());
+        assertEquals(2, cacheHandler.getCache().getBlock(path, 0).getTmclient());
+    }
+
+    @Test
+    public void readOnlyTouchedBlocks() throws IOException {
+        String path = "file.txt";
+        byte[] block = new byte[Serializer.BLOCK_SIZE];
+        Arrays.fill(block, (byte) 'b');
+        when(stub.readFileRange(path, Serializer.BLOCK_SIZE, Serializer.BLOCK_SIZE))
+                .thenReturn(Optional.of(new FileRange(block, 1, Serializer.BLOCK_SIZE * 4)));
+
+        Optional<byte[]> actual = fileOps.read(path, Serializer.BLOCK_SIZE + 10, 100);
+
+        assertTrue(actual.isPresent());
+        assertArrayEquals(Arrays.copyOf(block, 100), actual.get());
+        assertEquals(1, cacheHandler.getCache().getNumBlocks());
+        assertNotNull(cacheHandler.getCache().getBlock(path, 1));
+        verify(stub, times(1)).readFileRange(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void readCachedFileOutOfRangeOffset() throws IOException {
+        String path = "file.txt";
+        byte[] content = "abc".getBytes();
+        long now = System.currentTimeMillis();
+        cacheHandler.getCache().putBlock(path, 0, content, 1, now);
+        when(stub.getAttr(path)).thenReturn(Optional.of(new long[]{1, 1}));
+
+        Optional<byte[]> actual = fileOps.read(path, content.length + 1, 1);
+
+        assertFalse(actual.isPresent());
+    }
+
+    @Test
+    public void getCachedAttributes() throws IOException {
+        String path = "file.txt";
+        when(stub.getAttr(path)).thenReturn(Optional.of(new long[]{1, 2}));
+
+        Optional<long[]> first = fileOps.getAttr(path);
+        Optional<long[]> second = fileOps.getAttr("./" + path);
+
+        assertArrayEquals(new long[]{1, 2}, first.get());
+        assertArrayEquals(new long[]{1, 2}, second.get());
+        verify(stub, times(1)).getAttr(path);
+    }
+
+    @Test
+    public void getAttributesTogether() throws IOException {
+        when(stub.getAttr("a.txt")).thenReturn(Optional.of(new long[]{1, 2}));
+        when(stub.getAttrAll(List.of("b.txt", "c.txt")))
+                .thenReturn(List.of(Optional.of(new long[]{3, 4}), Optional.empty()));
+
+        fileOps.getAttr("a.txt");
+        List<Optional<long[]>> attrs = fileOps.getAttrs(List.of("a.txt", "./b.txt", "c.txt"));
+
+        assertArrayEquals(new long[]{1, 2}, attrs.get(0).get());
+        assertArrayEquals(new long[]{3, 4}, attrs.get(1).get());
+        assertFalse(attrs.get(2).isPresent());
+        assertArrayEquals(new long[]{3, 4}, cacheHandler.getAttributeCache().get("b.txt").get());
+        verify(stub, times(1)).getAttrAll(anyList());
+    }
+
+    @Test
+    public void touchInvalidatesAttributes() throws IOException {
+        String path = "file.txt";
+        when(stub.getAttr(path)).thenReturn(Optional.of(new long[]{1, 2}));
+        when(stub.touch(path)).thenReturn(Optional.of(3L));
+
+        fileOps.getAttr(path);
+        Optional<Long> atime = fileOps.touch(path);
+        fileOps.getAttr(path);
+
+        assertEquals(Optional.of(3L), atime);
+        verify(stub, times(2)).getAttr(path);
+    }
+
+    @Test
+    public void validateExpiredBlockWithCachedAttributes() throws IOException {
+        String path = "file.txt";
+        byte[] expected = "abc".getBytes();
+        cacheHandler.getCache().putBlock(path, 0, expected, 1, 0);
+        when(stub.getAttr(path)).thenReturn(Optional.of(new long[]{1, 2}));
+
+        fileOps.getAttr(path);
+        Optional<byte[]> actual = fileOps.read(path, 0, expected.length);
+
+        assertArrayEquals(expected, actual.get());
+        verify(stub, never()).readIfModified(anyString(), anyLong(), anyInt(), anyInt());
+        verify(stub, never()).readFileRange(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void listCachedDirectory() throws IOException {
+        List<String> names = Arrays.asList("a.txt", "b.txt");
+        when(stub.listDir(".")).thenReturn(Optional.of(names));
+
+        fileOps.listDir(".");
+        Optional<List<String>> cached = fileOps.listDir("");
+
+        assertEquals(names, cached.get());
+        verify(stub, times(1)).listDir(".");
+    }
+
+    @Test
+    public void touchInvalidatesDirectory() throws IOException {
+        when(stub.listDir("dir")).thenReturn(Optional.of(Arrays.asList("a.txt")));
+        when(stub.touch("dir/b.txt")).thenReturn(Optional.of(3L));
+
+        fileOps.listDir("dir");
+        fileOps.touch("dir/b.txt");
+        fileOps.listDir("dir");
+
+        verify(stub, times(2)).listDir("dir");
+    }
+
+    @Test
+    public void coalesceBufferedAppends() throws IOException {
+        String path = "log.txt";
+        cacheHandler.enableWriteBehind(60000);
+        when(stub.appendFile(eq(path), any())).thenReturn(Optional.of(new long[]{2, 1}));
+
+        for (int i = 0; i < 10; i++) {
+            fileOps.append(path, "record\n".getBytes());
+        }
+        verify(stub, never()).appendFile(anyString(), any());
+        fileOps.flush();
+
+        verify(stub, times(1)).appendFile(path, "record\n".repeat(10).getBytes());
+    }
+
+    @Test
+    public void readAheadOfSequentialReads() throws IOException {
+        String path = "stream.bin";
+        byte[] file = new byte[Serializer.BLOCK_SIZE * 8];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) i;
+        }
+        when(stub.readFileRange(eq(path), anyInt(), anyInt())).thenAnswer(invocation -> {
+            int offset = invocation.getArgument(1);
+            int count = invocation.getArgument(2);
+            byte[] data = Arrays.copyOfRange(file, offset, Math.min(file.length, offset + count));
+            return Optional.of(new FileRange(data, 1, file.length));
+        });
+        FileOperations readingAhead = new FileOperations(cacheHandler, Serializer.BLOCK_SIZE * 4);
+
+        readingAhead.read(path, 0, 100);
+        // The rest of the first block, and the next blocks, are read in the background.
+        verify(stub, timeout(1000)).readFileRange(path, Serializer.BLOCK_SIZE, Serializer.BLOCK_SIZE * 4);
+        Optional<byte[]> next = readingAhead.read(path, 100, Serializer.BLOCK_SIZE * 2);
+        readingAhead.close();
+
+        assertArrayEquals(Arrays.copyOfRange(file, 100, 100 + Serializer.BLOCK_SIZE * 2), next.get());
+        verify(stub, times(2)).readFileRange(eq(path), anyInt(), anyInt());
+    }
+
+    @Test
+    public void readSeesBufferedWrites() throws IOException {
+        String path = "file.txt";
+        byte[] expected = "abcdef".getBytes();
+        cacheHandler.enableWriteBehind(60000);
+        cacheHandler.getCache().putBlock(path, 0, "abc".getBytes(), 1, System.currentTimeMillis());
+        when(stub.appendFile(path, "def".getBytes())).thenReturn(Optional.of(new long[]{2, 1}));
+
+        fileOps.append(path, "def".getBytes());
+        Optional<byte[]> actual = fileOps.read(path, 0, expected.length);
+
+        assertArrayEquals(expected, actual.get());
+        verify(stub).appendFile(path, "def".getBytes());
+        // The append has been applied to the cached block.
+        verify(stub, never()).readFileRange(anyString(), anyInt(), anyInt());
+    }
 }
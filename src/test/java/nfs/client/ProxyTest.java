@@ -0,0 +1,272 @@
+package nfs.client;
+
+import nfs.common.BufferPool;
+import nfs.common.Serializer;
+import nfs.common.requests.CompoundRequest;
+import nfs.common.requests.GetAttrRequest;
+import nfs.common.requests.ListDirPageRequest;
+import nfs.common.requests.NegotiateRequest;
+import nfs.common.requests.ReadRangeRequest;
+import nfs.common.requests.Request;
+import nfs.common.responses.GenericResponse;
+import nfs.common.responses.Response;
+import nfs.common.responses.ResponseStatus;
+import nfs.common.values.Bytes;
+import nfs.common.values.Int32;
+import nfs.common.values.Int64;
+import nfs.common.values.Str;
+import nfs.common.values.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.SynchronousQueue;
+
+import static org.junit.Assert.*;
+
+public class ProxyTest {
+    private DatagramSocket server;
+    private Proxy stub;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        stub = new Proxy(InetAddress.getLoopbackAddress(), server.getLocalPort(), new DatagramSocket(),
+                new SynchronousQueue<>(), 0, new BufferPool(Serializer.BUF_SIZE, 4));
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+        server.close();
+    }
+
+    private Request receiveRequest(DatagramPacket packet) throws Exception {
+        packet.setData(new byte[Serializer.BUF_SIZE]);
+        server.receive(packet);
+        return Request.Builder.parseFrom(Arrays.copyOf(packet.getData(), packet.getLength()));
+    }
+
+    private void sendResponse(Response response, SocketAddress client) throws Exception {
+        byte[] data = response.toBytes();
+        server.send(new DatagramPacket(data, data.length, client));
+    }
+
+    @Test
+    public void releaseBufferOfOversizedRequest() throws Exception {
+        BufferPool pool = new BufferPool(Serializer.BUF_SIZE, 16);
+        for (int i = 0; i < 10; i++) {
+            pool.release(ByteBuffer.allocate(Serializer.BUF_SIZE));
+        }
+        Proxy proxy = new Proxy(InetAddress.getLoopbackAddress(), server.getLocalPort(), new DatagramSocket(),
+                new SynchronousQueue<>(), 0, pool);
+        try {
+            int available = pool.available();
+            String path = "x".repeat(Serializer.BUF_SIZE);
+            for (int i = 0; i < 8; i++) {
+                try {
+                    proxy.getAttrAsync(path).get();
+                    fail("Sent a request larger than a datagram");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+            // The receiver may have taken one buffer meanwhile.
+            assertTrue(pool.available() >= available - 1);
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void routeOutOfOrderResponses() throws Exception {
+        int numRequests = 8;
+        List<CompletableFuture<Optional<long[]>>> futures = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            futures.add(stub.getAttrAsync("file" + i));
+        }
+
+        // Collect all requests before answering any of them, then answer in reverse order.
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        List<GetAttrRequest> requests = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            requests.add((GetAttrRequest) receiveRequest(packet));
+        }
+        Collections.reverse(requests);
+        for (GetAttrRequest req : requests) {
+            long mtime = Long.parseLong(req.getPath().substring(4));
+            sendResponse(new GenericResponse(req.getId(), ResponseStatus.OK,
+                    Arrays.asList(new Int64(mtime), new Int64(0))), packet.getSocketAddress());
+        }
+
+        for (int i = 0; i < numRequests; i++) {
+            Optional<long[]> attr = futures.get(i).get();
+            assertTrue(attr.isPresent());
+            assertEquals(i, attr.get()[0]);
+        }
+    }
+
+    @Test
+    public void readLargeFileInBlocks() throws Exception {
+        byte[] file = new byte[Serializer.BLOCK_SIZE * 5 + 7];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) i;
+        }
+        Thread fakeServer = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+            try {
+                while (true) {
+                    ReadRangeRequest req = (ReadRangeRequest) receiveRequest(packet);
+                    int from = Math.min(req.getOffset(), file.length);
+                    int to = Math.min(from + req.getCount(), file.length);
+                    sendResponse(new GenericResponse(req.getId(), ResponseStatus.OK, Arrays.asList(
+                            new Bytes(Arrays.copyOfRange(file, from, to)), new Int64(1), new Int64(file.length))),
+                            packet.getSocketAddress());
+                }
+            } catch (Exception e) {
+                // The socket is closed at the end of the test.
+            }
+        });
+        fakeServer.start();
+
+        Optional<byte[]> whole = stub.requestFile("large.bin");
+        assertTrue(whole.isPresent());
+        assertArrayEquals(file, whole.get());
+
+        Optional<byte[]> range = stub.readRange("large.bin", 100, Serializer.BLOCK_SIZE * 2);
+        assertTrue(range.isPresent());
+        assertArrayEquals(Arrays.copyOfRange(file, 100, 100 + Serializer.BLOCK_SIZE * 2), range.get());
+    }
+
+    @Test
+    public void listLargeDirectoryInPages() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            names.add("file" + i);
+        }
+        Thread fakeServer = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+            try {
+                while (true) {
+                    ListDirPageRequest req = (ListDirPageRequest) receiveRequest(packet);
+                    // Pages of at most 4 names, whatever the client asks for.
+                    List<Value> values = new ArrayList<>();
+                    List<String> page = new ArrayList<>();
+                    for (String name : names) {
+                        if (name.compareTo(req.getStart()) > 0 && page.size() < 4)
+                            page.add(name);
+                    }
+                    String last = page.get(page.size() - 1);
+                    values.add(new Str(last.equals(names.get(names.size() - 1)) ? "" : last));
+                    for (String name : page) {
+                        values.add(new Str(name));
+                    }
+                    sendResponse(new GenericResponse(req.getId(), ResponseStatus.OK, values),
+                            packet.getSocketAddress());
+                }
+            } catch (Exception e) {
+                // The socket is closed at the end of the test.
+            }
+        });
+        fakeServer.start();
+
+        Optional<List<String>> listing = stub.listDir("dir");
+        assertTrue(listing.isPresent());
+        assertEquals(names, listing.get());
+    }
+
+    @Test
+    public void getManyAttributesInOneCompound() throws Exception {
+        int numFiles = 50;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < numFiles; i++) {
+            paths.add("file" + i);
+        }
+        Thread fakeServer = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+            try {
+                NegotiateRequest negotiate = (NegotiateRequest) receiveRequest(packet);
+                sendResponse(new GenericResponse(negotiate.getId(), ResponseStatus.OK,
+                        List.of(new Int32(NegotiateRequest.COMPOUND))), packet.getSocketAddress());
+                CompoundRequest req = (CompoundRequest) receiveRequest(packet);
+                List<Value> values = new ArrayList<>();
+                for (Request sub : req.getRequests()) {
+                    String path = ((GetAttrRequest) sub).getPath();
+                    // The last file is missing.
+                    Response res = path.equals("file" + (numFiles - 1)) ?
+                            new GenericResponse(sub.getId(), ResponseStatus.NOT_FOUND, List.of(new Str(path))) :
+                            new GenericResponse(sub.getId(), ResponseStatus.OK, List.of(
+                                    new Int64(Long.parseLong(path.substring(4))), new Int64(0)));
+                    ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+                    res.putBytes(buf);
+                    values.add(new Bytes(Arrays.copyOf(buf.array(), buf.position())));
+                }
+                sendResponse(new GenericResponse(req.getId(), ResponseStatus.OK, values), packet.getSocketAddress());
+            } catch (Exception e) {
+                // The socket is closed at the end of the test.
+            }
+        });
+        fakeServer.start();
+
+        assertEquals(NegotiateRequest.COMPOUND, stub.negotiate(NegotiateRequest.COMPOUND));
+        List<Optional<long[]>> attrs = stub.getAttrAll(paths);
+        assertEquals(numFiles, attrs.size());
+        for (int i = 0; i < numFiles - 1; i++) {
+            assertEquals(i, attrs.get(i).get()[0]);
+        }
+        assertFalse(attrs.get(numFiles - 1).isPresent());
+    }
+
+    @Test
+    public void getManyAttributesWithoutCompound() throws Exception {
+        CompletableFuture<List<Optional<long[]>>> future = stub.getAttrAllAsync(List.of("file1", "file2"));
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        for (int i = 0; i < 2; i++) {
+            GetAttrRequest req = (GetAttrRequest) receiveRequest(packet);
+            sendResponse(new GenericResponse(req.getId(), ResponseStatus.OK, Arrays.asList(
+                    new Int64(Long.parseLong(req.getPath().substring(4))), new Int64(0))),
+                    packet.getSocketAddress());
+        }
+        List<Optional<long[]>> attrs = future.get();
+        assertEquals(1, attrs.get(0).get()[0]);
+        assertEquals(2, attrs.get(1).get()[0]);
+    }
+
+    @Test
+    public void dropResponseWithUnknownId() throws Exception {
+        CompletableFuture<Optional<long[]>> future = stub.getAttrAsync("file");
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        Request req = receiveRequest(packet);
+        sendResponse(new GenericResponse(req.getId() + 1000, ResponseStatus.OK,
+                Arrays.asList(new Int64(2), new Int64(2))), packet.getSocketAddress());
+        sendResponse(new GenericResponse(req.getId(), ResponseStatus.OK,
+                Arrays.asList(new Int64(1), new Int64(1))), packet.getSocketAddress());
+        assertEquals(1, future.get().get()[0]);
+    }
+
+    @Test
+    public void retransmitLostRequest() throws Exception {
+        CompletableFuture<Optional<long[]>> future = stub.getAttrAsync("file");
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        // Ignore the first transmission, as if the request were lost.
+        Request lost = receiveRequest(packet);
+        Request retransmitted = receiveRequest(packet);
+        assertEquals(lost.getId(), retransmitted.getId());
+        sendResponse(new GenericResponse(retransmitted.getId(), ResponseStatus.OK,
+                Arrays.asList(new Int64(3), new Int64(3))), packet.getSocketAddress());
+        assertEquals(3, future.get().get()[0]);
+    }
+}
@@ -0,0 +1,60 @@
+package nfs.client;
+
+import nfs.common.Serializer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadTest {
+    private static final int BLOCK_SIZE = Serializer.BLOCK_SIZE;
+    ReadAhead readAhead = new ReadAhead(16 * BLOCK_SIZE);
+
+    @Test
+    public void readAheadOfSequentialReads() {
+        int[] range = readAhead.onRead("file.txt", 0, 100, 100);
+
+        assertArrayEquals(new int[]{100, ReadAhead.INITIAL_WINDOW + BLOCK_SIZE - 100}, range);
+        assertNull(readAhead.onRead("file.txt", 100, 100, 100));
+    }
+
+    @Test
+    public void growWindowUpToMax() {
+        int offset = 0;
+        int window = 0;
+        int readAheadTo = 0;
+        for (int i = 0; i < 64; i++) {
+            int[] range = readAhead.onRead("file.txt", offset, BLOCK_SIZE, BLOCK_SIZE);
+            offset += BLOCK_SIZE;
+            if (range == null)
+                continue;
+            // Ranges follow each other, and are read ahead before the reader gets there.
+            assertEquals(Math.max(readAheadTo, offset), range[0]);
+            assertTrue(range[0] + range[1] > offset);
+            readAheadTo = range[0] + range[1];
+            window = readAheadTo - offset;
+        }
+        assertEquals(16 * BLOCK_SIZE, window);
+    }
+
+    @Test
+    public void ignoreRandomReads() {
+        assertNull(readAhead.onRead("file.txt", 4096, 100, 100));
+        assertNull(readAhead.onRead("file.txt", 100, 100, 100));
+        assertNotNull(readAhead.onRead("file.txt", 200, 100, 100));
+    }
+
+    @Test
+    public void stopAtEndOfFile() {
+        assertNull(readAhead.onRead("file.txt", 0, 100, 50));
+        assertNotNull(readAhead.onRead("other.txt", 0, 100, 100));
+        readAhead.onReadAhead("other.txt", 100, 8192, 10);
+        assertNull(readAhead.onRead("other.txt", 100, 10, 10));
+    }
+
+    @Test
+    public void startOverAfterWrite() {
+        assertNotNull(readAhead.onRead("file.txt", 0, 100, 100));
+        readAhead.reset("file.txt");
+        assertNull(readAhead.onRead("file.txt", 100, 100, 100));
+    }
+}
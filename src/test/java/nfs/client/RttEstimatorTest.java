@@ -0,0 +1,51 @@
+package nfs.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RttEstimatorTest {
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void initialRtoWithoutSample() {
+        RttEstimator estimator = new RttEstimator(1000, 10, 5000);
+        assertEquals(ms(1000), estimator.getRto());
+        assertEquals(-1, estimator.getSrtt());
+    }
+
+    @Test
+    public void firstSample() {
+        RttEstimator estimator = new RttEstimator(1000, 1, 5000);
+        estimator.addSample(ms(100));
+        // SRTT = R, RTTVAR = R / 2, RTO = SRTT + 4 * RTTVAR
+        assertEquals(ms(100), estimator.getSrtt());
+        assertEquals(ms(300), estimator.getRto());
+    }
+
+    @Test
+    public void convergeToStableRtt() {
+        RttEstimator estimator = new RttEstimator(1000, 10, 5000);
+        for (int i = 0; i < 100; i++) {
+            estimator.addSample(TimeUnit.MICROSECONDS.toNanos(300));
+        }
+        // The variance decays, so the RTO settles at the lower bound on a fast network.
+        assertEquals(ms(10), estimator.getRto());
+        assertTrue(Math.abs(estimator.getSrtt() - TimeUnit.MICROSECONDS.toNanos(300)) < 1000);
+    }
+
+    @Test
+    public void exponentialBackoffIsCapped() {
+        RttEstimator estimator = new RttEstimator(1000, 10, 5000);
+        assertEquals(ms(1000), estimator.getBackoffRto(1));
+        assertEquals(ms(2000), estimator.getBackoffRto(2));
+        assertEquals(ms(4000), estimator.getBackoffRto(3));
+        assertEquals(ms(5000), estimator.getBackoffRto(4));
+        assertEquals(ms(5000), estimator.getBackoffRto(40));
+    }
+}
@@ -0,0 +1,61 @@
+package nfs.client;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteBufferTest {
+    WriteBuffer writeBuffer = new WriteBuffer();
+
+    @Test
+    public void mergeAdjacentAppends() {
+        writeBuffer.append("log.txt", "abc".getBytes());
+        int buffered = writeBuffer.append("log.txt", "def".getBytes());
+        List<WriteBuffer.Write> writes = writeBuffer.take("log.txt");
+
+        assertEquals(6, buffered);
+        assertEquals(1, writes.size());
+        assertTrue(writes.get(0).isAppend());
+        assertArrayEquals("abcdef".getBytes(), writes.get(0).getData());
+        assertFalse(writeBuffer.contains("log.txt"));
+    }
+
+    @Test
+    public void mergeContiguousInserts() {
+        writeBuffer.insert("file.txt", 4, "abc".getBytes());
+        writeBuffer.insert("file.txt", 7, "def".getBytes());
+        writeBuffer.insert("file.txt", 0, "x".getBytes());
+        List<WriteBuffer.Write> writes = writeBuffer.take("file.txt");
+
+        assertEquals(2, writes.size());
+        assertEquals(4, writes.get(0).getOffset());
+        assertArrayEquals("abcdef".getBytes(), writes.get(0).getData());
+        assertEquals(0, writes.get(1).getOffset());
+    }
+
+    @Test
+    public void keepOrderOfInsertsAndAppends() {
+        writeBuffer.append("file.txt", "abc".getBytes());
+        writeBuffer.insert("file.txt", 0, "x".getBytes());
+        writeBuffer.append("file.txt", "def".getBytes());
+        List<WriteBuffer.Write> writes = writeBuffer.take("file.txt");
+
+        assertEquals(3, writes.size());
+        assertTrue(writes.get(0).isAppend());
+        assertFalse(writes.get(1).isAppend());
+        assertTrue(writes.get(2).isAppend());
+    }
+
+    @Test
+    public void splitWriteLargerThanRequest() {
+        byte[] data = new byte[WriteBuffer.MAX_WRITE_SIZE * 2 + 1];
+        writeBuffer.insert("file.txt", 10, data);
+        List<WriteBuffer.Write> writes = writeBuffer.take("file.txt");
+
+        assertEquals(3, writes.size());
+        assertEquals(10 + WriteBuffer.MAX_WRITE_SIZE, writes.get(1).getOffset());
+        assertEquals(1, writes.get(2).getData().length);
+    }
+}
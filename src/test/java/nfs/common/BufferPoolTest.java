@@ -0,0 +1,37 @@
+package nfs.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reuseReleasedBuffer() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer buf = pool.acquire();
+        buf.putInt(1);
+        pool.release(buf);
+        ByteBuffer reused = pool.acquire();
+        assertSame(buf, reused);
+        assertEquals(0, reused.position());
+        assertEquals(16, reused.limit());
+    }
+
+    @Test
+    public void dropBuffersBeyondCapacity() {
+        BufferPool pool = new BufferPool(16, 1);
+        pool.release(pool.acquire());
+        pool.release(ByteBuffer.allocate(16));
+        assertEquals(1, pool.available());
+    }
+
+    @Test
+    public void dropBuffersOfWrongSize() {
+        BufferPool pool = new BufferPool(16, 1);
+        pool.release(ByteBuffer.allocate(8));
+        assertEquals(0, pool.available());
+    }
+}
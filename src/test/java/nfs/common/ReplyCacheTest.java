@@ -0,0 +1,118 @@
+package nfs.common;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplyCacheTest {
+    private final SocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234);
+
+    @Test
+    public void replyToRetransmissionWithoutExecuting() throws Exception {
+        ReplyCache cache = new ReplyCache(1024, 60000);
+        AtomicInteger executions = new AtomicInteger();
+        byte[] reply = cache.computeIfAbsent(client, 1, 1, () -> new byte[]{(byte) executions.incrementAndGet()}).get();
+        assertSame(reply, cache.computeIfAbsent(client, 1, 1, () -> new byte[]{(byte) executions.incrementAndGet()}).get());
+        assertEquals(1, executions.get());
+
+        // Requests of another epoch or client are new requests.
+        cache.computeIfAbsent(client, 2, 1, () -> new byte[0]).get();
+        cache.computeIfAbsent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 4321), 1, 1,
+                () -> new byte[0]).get();
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void retransmissionWaitsForExecution() throws Exception {
+        ReplyCache cache = new ReplyCache(16, 60000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger executions = new AtomicInteger();
+        CompletableFuture<CompletableFuture<byte[]>> first = CompletableFuture.supplyAsync(
+                () -> cache.computeIfAbsent(client, 1, 1, () -> {
+                    executions.incrementAndGet();
+                    started.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return "done".getBytes();
+                }));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        CompletableFuture<byte[]> retransmitted = cache.computeIfAbsent(client, 1, 1, () -> {
+            executions.incrementAndGet();
+            return new byte[0];
+        });
+        assertFalse(retransmitted.isDone());
+        finish.countDown();
+        assertArrayEquals("done".getBytes(), retransmitted.get(1, TimeUnit.SECONDS));
+        assertSame(retransmitted, first.get(1, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    public void evictOldestRepliesBeyondCapacity() throws Exception {
+        ReplyCache cache = new ReplyCache(ReplyCache.NUM_SHARDS, 60000);
+        for (int id = 0; id < 10 * ReplyCache.NUM_SHARDS; id++) {
+            cache.computeIfAbsent(client, 1, id, () -> new byte[0]).get();
+        }
+        assertTrue(cache.size() <= ReplyCache.NUM_SHARDS);
+    }
+
+    @Test
+    public void evictBehindRequestBeingExecuted() throws Exception {
+        ReplyCache cache = new ReplyCache(ReplyCache.NUM_SHARDS, 60000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<CompletableFuture<byte[]>> pending = CompletableFuture.supplyAsync(
+                () -> cache.computeIfAbsent(client, 1, -1, () -> {
+                    started.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return new byte[0];
+                }));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        for (int id = 0; id < 10 * ReplyCache.NUM_SHARDS; id++) {
+            cache.computeIfAbsent(client, 1, id, () -> new byte[0]).get();
+        }
+        // Only the request being executed is kept beyond the capacity.
+        assertTrue(cache.size() <= ReplyCache.NUM_SHARDS + 1);
+        finish.countDown();
+        assertNotNull(pending.get(1, TimeUnit.SECONDS).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void expireReplies() throws Exception {
+        ReplyCache cache = new ReplyCache(16, 10);
+        AtomicInteger executions = new AtomicInteger();
+        cache.computeIfAbsent(client, 1, 1, () -> new byte[]{(byte) executions.incrementAndGet()}).get();
+        Thread.sleep(20);
+        cache.computeIfAbsent(client, 1, 1, () -> new byte[]{(byte) executions.incrementAndGet()}).get();
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void executeAgainAfterFailure() throws Exception {
+        ReplyCache cache = new ReplyCache(16, 60000);
+        CompletableFuture<byte[]> failed = cache.computeIfAbsent(client, 1, 1, () -> {
+            throw new IllegalStateException("failed");
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, cache.size());
+        assertArrayEquals(new byte[]{1}, cache.computeIfAbsent(client, 1, 1, () -> new byte[]{1}).get());
+    }
+}
@@ -1,13 +1,25 @@
 package nfs.common.requests;
 
+import nfs.common.Serializer;
+import nfs.common.values.CompressedBytes;
+import nfs.common.values.ValueType;
 import org.junit.Test;
 
 import java.io.InvalidClassException;
 import java.io.InvalidObjectException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class RequestTest {
 
@@ -18,6 +30,35 @@ public class RequestTest {
         assertEquals(req1.getId() + 1, req2.getId());
     }
 
+    @Test
+    public void uniqueRequestIdsAcrossThreads() throws InterruptedException {
+        int numThreads = 8;
+        int idsPerThread = 10000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < idsPerThread; j++) {
+                    ids.add(new EmptyRequest().getId());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(numThreads * idsPerThread, ids.size());
+    }
+
+    @Test
+    public void sessionEpochInHeader() throws InvalidClassException, InvalidObjectException {
+        Request expected = new EmptyRequest();
+        assertNotEquals(0, expected.getEpoch());
+        Request actual = Request.Builder.parseFrom(expected.toBytes());
+        assertEquals(RequestId.SESSION_EPOCH, actual.getEpoch());
+        assertEquals(expected.getEpoch(), actual.getEpoch());
+    }
+
     @Test(expected = InvalidClassException.class)
     public void shouldNotMarshallMismatchedParam() throws InvalidClassException {
         GetAttrRequest expected = new GetAttrRequest(new RequestId(0));
@@ -29,7 +70,7 @@ public class RequestTest {
         GetAttrRequest expected = new GetAttrRequest("hello.txt");
         ByteBuffer serialized = ByteBuffer.wrap(expected.toBytes());
         // Sets numParams to 2 in serialized message.
-        serialized.putInt(5, 2);
+        serialized.putInt(17, 2);
         GetAttrRequest actual = (GetAttrRequest) Request.Builder.parseFrom(serialized.array());
     }
 
@@ -65,6 +106,36 @@ public class RequestTest {
         assertEquals(path, actual.getPath());
     }
 
+    @Test
+    public void marshallReadRangeRequest() throws InvalidClassException, InvalidObjectException {
+        String path = "world.txt";
+        int offset = 4096;
+        int count = 2048;
+        ReadRangeRequest expected = new ReadRangeRequest(path, offset, count);
+        byte[] serialized = expected.toBytes();
+        ReadRangeRequest actual = (ReadRangeRequest) Request.Builder.parseFrom(serialized);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(RequestName.READ_RANGE, actual.getName());
+        assertEquals(path, actual.getPath());
+        assertEquals(offset, actual.getOffset());
+        assertEquals(count, actual.getCount());
+    }
+
+    @Test
+    public void marshallReadIfModifiedRequest() throws InvalidClassException, InvalidObjectException {
+        String path = "world.txt";
+        long mtime = 1584092400000L;
+        ReadIfModifiedRequest expected = new ReadIfModifiedRequest(path, mtime, 0, 2048);
+        byte[] serialized = expected.toBytes();
+        ReadIfModifiedRequest actual = (ReadIfModifiedRequest) Request.Builder.parseFrom(serialized);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(RequestName.READ_IF_MODIFIED, actual.getName());
+        assertEquals(path, actual.getPath());
+        assertEquals(mtime, actual.getMtime());
+        assertEquals(0, actual.getOffset());
+        assertEquals(2048, actual.getCount());
+    }
+
     @Test
     public void marshallInsertRequest() throws InvalidClassException, InvalidObjectException {
         String path = "abc.txt";
@@ -104,6 +175,19 @@ public class RequestTest {
         assertEquals(path, actual.getPath());
     }
 
+    @Test
+    public void marshallListDirPageRequest() throws InvalidClassException, InvalidObjectException {
+        String path = "/src/test";
+        ListDirPageRequest expected = new ListDirPageRequest(path, "a.txt", 64);
+        byte[] serialized = expected.toBytes();
+        ListDirPageRequest actual = (ListDirPageRequest) Request.Builder.parseFrom(serialized);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(RequestName.LIST_DIR_PAGE, actual.getName());
+        assertEquals(path, actual.getPath());
+        assertEquals("a.txt", actual.getStart());
+        assertEquals(64, actual.getMaxEntries());
+    }
+
     @Test
     public void marshallTouchRequest() throws InvalidClassException, InvalidObjectException {
         String path = "test.txt";
@@ -136,10 +220,135 @@ public class RequestTest {
         FileUpdatedCallback expected = new FileUpdatedCallback(path, mtime, data);
         byte[] serialized = expected.toBytes();
         FileUpdatedCallback actual = (FileUpdatedCallback) Request.Builder.parseFrom(serialized);
+        assertEquals(0, actual.getEpoch());
         assertEquals(expected.getId(), actual.getId());
         assertEquals(RequestName.FILE_UPDATED, actual.getName());
         assertEquals(path, actual.getPath());
         assertEquals(mtime, actual.getMtime());
         assertArrayEquals(data, actual.getData());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void marshallFileDeltaCallback() throws InvalidClassException, InvalidObjectException {
+        String path = "log.txt";
+        byte[] data = new byte[]{(byte) 0xdd, (byte) 0xee, (byte) 0xff};
+        FileDeltaCallback expected = new FileDeltaCallback(path, 10, data, 13, 123, 456);
+        byte[] serialized = expected.toBytes();
+        FileDeltaCallback actual = (FileDeltaCallback) Request.Builder.parseFrom(serialized);
+        assertEquals(0, actual.getEpoch());
+        assertEquals(RequestName.FILE_DELTA, actual.getName());
+        assertEquals(path, actual.getPath());
+        assertEquals(10, actual.getOffset());
+        assertArrayEquals(data, actual.getData());
+        assertEquals(13, actual.getLength());
+        assertEquals(123, actual.getBaseMtime());
+        assertEquals(456, actual.getMtime());
+    }
+
+    @Test
+    public void marshallNegotiateRequest() throws InvalidClassException, InvalidObjectException {
+        NegotiateRequest expected = new NegotiateRequest(NegotiateRequest.COMPRESSION);
+        byte[] serialized = expected.toBytes();
+        NegotiateRequest actual = (NegotiateRequest) Request.Builder.parseFrom(serialized);
+        assertEquals(RequestName.NEGOTIATE, actual.getName());
+        assertEquals(NegotiateRequest.COMPRESSION, actual.getFeatures());
+    }
+
+    @Test
+    public void marshallCompressedInsertRequest() throws InvalidClassException, InvalidObjectException {
+        byte[] data = new byte[Serializer.BLOCK_SIZE];
+        Arrays.fill(data, (byte) 'x');
+        InsertRequest expected = new InsertRequest("abc.txt", 5, data);
+        expected.compress();
+        assertEquals(ValueType.COMPRESSED_BYTES, expected.getParam(2).getType());
+        ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+        expected.putBytes(buf);
+        assertTrue(buf.position() < data.length);
+        InsertRequest actual = (InsertRequest) Request.Builder.parseFrom(buf.flip());
+        assertEquals(5, actual.getOffset());
+        assertArrayEquals(data, actual.getData());
+    }
+
+    @Test
+    public void rejectCompressedLengthOutOfRange() throws InvalidClassException {
+        byte[] data = new byte[Serializer.BLOCK_SIZE];
+        Arrays.fill(data, (byte) 'x');
+        InsertRequest request = new InsertRequest("abc.txt", 5, data);
+        request.compress();
+        ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+        request.putBytes(buf);
+        buf.flip();
+        // Path and offset parameters, then the type of the data.
+        int lengthOffset = Request.HEADER_SIZE + (1 + Integer.BYTES + 7) + (1 + Integer.BYTES) + 1;
+        for (int length : new int[]{Integer.MAX_VALUE, CompressedBytes.MAX_LENGTH + 1, -1}) {
+            ByteBuffer crafted = ByteBuffer.allocate(buf.limit()).put(buf.duplicate()).flip();
+            crafted.putInt(lengthOffset, length);
+            try {
+                Request.Builder.parseFrom(crafted);
+                fail("Parsed a compressed length of " + length);
+            } catch (IllegalArgumentException | InvalidObjectException e) {
+                // Rejected before allocating.
+            }
+            try {
+                CompressedBytes.view(crafted.position(lengthOffset));
+                fail("Parsed a compressed length of " + length);
+            } catch (IllegalArgumentException e) {
+                // Rejected before inflating.
+            }
+        }
+        // A compressed length beyond the datagram is rejected as well.
+        ByteBuffer crafted = ByteBuffer.allocate(buf.limit()).put(buf.duplicate()).flip();
+        crafted.putInt(lengthOffset + Integer.BYTES, Integer.MAX_VALUE);
+        try {
+            Request.Builder.parseFrom(crafted);
+            fail("Parsed a compressed length beyond the datagram");
+        } catch (BufferUnderflowException | InvalidObjectException e) {
+            // Rejected before allocating.
+        }
+    }
+
+    @Test
+    public void compressOnlyWhenSmaller() {
+        AppendRequest small = new AppendRequest("abc.txt", new byte[]{1, 2, 3});
+        small.compress();
+        assertEquals(ValueType.BYTES, small.getParam(1).getType());
+        byte[] random = new byte[Serializer.BLOCK_SIZE];
+        new Random(0).nextBytes(random);
+        AppendRequest incompressible = new AppendRequest("abc.txt", random);
+        incompressible.compress();
+        assertEquals(ValueType.BYTES, incompressible.getParam(1).getType());
+    }
+
+    @Test
+    public void marshallCompoundRequest() throws InvalidClassException, InvalidObjectException {
+        ReadRangeRequest read = new ReadRangeRequest("a.txt", 0, 10);
+        GetAttrRequest getAttr = new GetAttrRequest("b.txt");
+        CompoundRequest expected = new CompoundRequest(List.of(read, getAttr));
+        assertEquals(Request.HEADER_SIZE + 1 + Integer.BYTES + 1 + Integer.BYTES + read.size() + getAttr.size(),
+                expected.size());
+        ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+        expected.putBytes(buf);
+        assertEquals(expected.size(), buf.position());
+        CompoundRequest actual = (CompoundRequest) Request.Builder.parseFrom(buf.flip());
+        List<Request> requests = actual.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals(read.getId(), requests.get(0).getId());
+        assertEquals(10, ((ReadRangeRequest) requests.get(0)).getCount());
+        assertEquals("b.txt", ((GetAttrRequest) requests.get(1)).getPath());
+    }
+
+    @Test
+    public void marshallIntoReusedBuffer() throws InvalidClassException, InvalidObjectException {
+        ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+        for (String path : new String[]{"a-much-longer-path.txt", "b.txt"}) {
+            buf.clear();
+            ReadRequest expected = new ReadRequest(path);
+            expected.putBytes(buf);
+            buf.flip();
+            ReadRequest actual = (ReadRequest) Request.Builder.parseFrom(buf);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(path, actual.getPath());
+            assertEquals(buf.limit(), buf.position());
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package nfs.common.responses;
 
+import nfs.common.Serializer;
+import nfs.common.values.Bytes;
+import nfs.common.values.CompressedBytes;
 import nfs.common.values.Int32;
 import nfs.common.values.Int64;
+import nfs.common.values.Str;
 import nfs.common.values.Value;
 import org.junit.Test;
 
 import java.io.InvalidClassException;
 import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ResponseTest {
 
@@ -37,4 +44,88 @@ public class ResponseTest {
         assertEquals(Long.MIN_VALUE, (long) valueList.get(0).getVal());
         assertEquals(Integer.MIN_VALUE, (int) valueList.get(1).getVal());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void responseMarshallingIntoBuffer() throws InvalidClassException, InvalidObjectException {
+        List<Value> valueList = new ArrayList<>();
+        valueList.add(new Int64(42));
+        Response expected = new GenericResponse(7, ResponseStatus.OK, valueList);
+        ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+        expected.putBytes(buf);
+        buf.flip();
+        Response actual = Response.Builder.parseFrom(buf);
+        assertEquals(7, actual.getReqId());
+        assertEquals(ResponseStatus.OK, actual.getStatus());
+        assertEquals(42L, (long) actual.getValues().get(0).getVal());
+    }
+
+    @Test
+    public void parseResponseView() throws InvalidClassException, InvalidObjectException {
+        List<Value> valueList = new ArrayList<>();
+        valueList.add(new Bytes(new byte[]{1, 2, 3}));
+        valueList.add(new Str("abc"));
+        valueList.add(CompressedBytes.of(new byte[1024]));
+        valueList.add(new Int64(42));
+        Response expected = new GenericResponse(7, ResponseStatus.OK, valueList);
+        ByteBuffer buf = ByteBuffer.wrap(expected.toBytes());
+        Response actual = Response.Builder.parseView(buf);
+
+        assertEquals(7, actual.getReqId());
+        assertEquals(ResponseStatus.OK, actual.getStatus());
+        assertTrue(actual.getValues().get(0).getVal() instanceof byte[]);
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) actual.getValues().get(0).getVal());
+        assertEquals("abc", actual.getValues().get(1).getVal());
+        assertArrayEquals(new byte[1024], (byte[]) actual.getValues().get(2).getVal());
+        assertEquals(42L, (long) actual.getValues().get(3).getVal());
+        assertArrayEquals(expected.toBytes(), actual.toBytes());
+    }
+
+    @Test
+    public void viewDoesNotCopyBytes() throws InvalidClassException, InvalidObjectException {
+        List<Value> valueList = new ArrayList<>();
+        valueList.add(new Bytes(new byte[]{1, 2, 3}));
+        byte[] serialized = new GenericResponse(7, ResponseStatus.OK, valueList).toBytes();
+        Response actual = Response.Builder.parseView(ByteBuffer.wrap(serialized));
+        // The first byte of the value follows the header, the type and the length of the value.
+        serialized[Response.HEADER_SIZE + 1 + Integer.BYTES] = 9;
+
+        ByteBuffer view = ((Bytes) actual.getValues().get(0)).getBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(9, view.get(0));
+        assertArrayEquals(new byte[]{9, 2, 3}, (byte[]) actual.getValues().get(0).getVal());
+        ByteBuffer buffer = actual.getBuffer(0);
+        assertTrue(buffer.isReadOnly());
+        assertEquals(ByteBuffer.wrap(new byte[]{9, 2, 3}), buffer);
+    }
+
+    @Test
+    public void typedAccessors() throws InvalidClassException, InvalidObjectException {
+        List<Value> valueList = new ArrayList<>();
+        valueList.add(new Int32(-1));
+        valueList.add(new Int64(Long.MAX_VALUE));
+        valueList.add(new Bytes(new byte[]{1, 2, 3}));
+        valueList.add(CompressedBytes.of(new byte[1024]));
+        valueList.add(new Str("abc"));
+        Response expected = new GenericResponse(7, ResponseStatus.OK, valueList);
+        Response[] responses = {expected, Response.Builder.parseView(ByteBuffer.wrap(expected.toBytes()))};
+
+        for (Response actual : responses) {
+            assertEquals(5, actual.getNumValues());
+            assertEquals(-1, actual.getInt(0));
+            assertEquals(Long.MAX_VALUE, actual.getLong(1));
+            assertArrayEquals(new byte[]{1, 2, 3}, actual.getBytes(2));
+            assertArrayEquals(new byte[1024], actual.getBytes(3));
+            assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), actual.getBuffer(2));
+            assertEquals(ByteBuffer.wrap(new byte[1024]), actual.getBuffer(3));
+            assertEquals("abc", actual.getString(4));
+        }
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void typedAccessorOfWrongType() throws InvalidClassException, InvalidObjectException {
+        List<Value> valueList = new ArrayList<>();
+        valueList.add(new Int32(1));
+        byte[] serialized = new GenericResponse(7, ResponseStatus.OK, valueList).toBytes();
+        Response.Builder.parseView(ByteBuffer.wrap(serialized)).getLong(0);
+    }
+}
@@ -0,0 +1,208 @@
+package nfs.server;
+
+import nfs.client.FileRange;
+import nfs.client.Proxy;
+import nfs.common.BufferPool;
+import nfs.common.ReplyCache;
+import nfs.common.Serializer;
+import nfs.common.requests.AppendRequest;
+import nfs.common.requests.FileDeltaCallback;
+import nfs.common.requests.NegotiateRequest;
+import nfs.common.requests.ReadRangeRequest;
+import nfs.common.requests.RegisterRequest;
+import nfs.common.requests.Request;
+import nfs.common.requests.TouchRequest;
+import nfs.common.responses.Response;
+import nfs.common.responses.ResponseStatus;
+import nfs.common.values.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.SynchronousQueue;
+
+import static org.junit.Assert.*;
+
+public class ServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path root;
+    private Server server;
+    private Thread serverThread;
+    private Proxy stub;
+
+    @Before
+    public void setUp() throws Exception {
+        root = folder.getRoot().toPath();
+        DatagramChannel channel = DatagramChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server = new Server(channel, new AmoServicer(root, channel, new ReplyCache(16, 60000)), 4, 0);
+        serverThread = new Thread(server);
+        serverThread.start();
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        stub = new Proxy(InetAddress.getLoopbackAddress(), port, new DatagramSocket(),
+                new SynchronousQueue<>(), 0, new BufferPool(Serializer.BUF_SIZE, 4));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stub.close();
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void readAndWriteFiles() throws Exception {
+        Files.write(root.resolve("a"), "held".getBytes());
+        Optional<long[]> mtimes = stub.insertFile("a", 2, "llo wor".getBytes());
+        assertTrue(mtimes.isPresent());
+        assertTrue(stub.appendFile("a", "!".getBytes()).isPresent());
+
+        Optional<FileRange> range = stub.readFileRange("a", 0, Integer.MAX_VALUE);
+        assertTrue(range.isPresent());
+        assertArrayEquals("hello world!".getBytes(), range.get().getData());
+        assertEquals(12, range.get().getSize());
+        assertEquals(Files.getLastModifiedTime(root.resolve("a")).toMillis(), range.get().getMtime());
+        assertArrayEquals("hello world!".getBytes(), Files.readAllBytes(root.resolve("a")));
+    }
+
+    @Test
+    public void readLargeFileInRanges() throws Exception {
+        byte[] content = new byte[3 * AloServicer.MAX_DATA_SIZE + 5];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Files.write(root.resolve("large"), content);
+
+        Optional<FileRange> range = stub.readFileRange("large", 0, Integer.MAX_VALUE);
+        assertTrue(range.isPresent());
+        assertArrayEquals(content, range.get().getData());
+    }
+
+    @Test
+    public void readCompressedRangesBeyondDatagram() throws Exception {
+        byte[] text = "All work and no play makes Jack a dull boy. ".repeat(1000).getBytes();
+        byte[] noise = new byte[3 * AloServicer.MAX_DATA_SIZE + 5];
+        new Random(0).nextBytes(noise);
+        Files.write(root.resolve("text"), text);
+        Files.write(root.resolve("noise"), noise);
+        assertEquals(NegotiateRequest.COMPRESSION, stub.negotiate(NegotiateRequest.COMPRESSION));
+
+        Value chunk = AloServicer.compressToFit(Arrays.copyOf(text, Proxy.COMPRESSED_CHUNK_SIZE));
+        assertTrue(chunk.size() <= AloServicer.MAX_DATA_SIZE);
+        assertEquals(Proxy.COMPRESSED_CHUNK_SIZE, ((byte[]) chunk.getVal()).length);
+        assertArrayEquals(text, stub.readFileRange("text", 0, Integer.MAX_VALUE).get().getData());
+        // Chunks that do not fit compressed are read in parts.
+        assertArrayEquals(noise, stub.readFileRange("noise", 0, Integer.MAX_VALUE).get().getData());
+    }
+
+    @Test
+    public void readIfModified() throws Exception {
+        Files.write(root.resolve("a"), "abc".getBytes());
+        long mtime = Files.getLastModifiedTime(root.resolve("a")).toMillis();
+
+        Optional<FileRange> range = stub.readIfModified("a", mtime, 0, 3);
+        assertTrue(range.isPresent());
+        assertFalse(range.get().isModified());
+        range = stub.readIfModified("a", mtime - 1, 0, 3);
+        assertTrue(range.isPresent());
+        assertArrayEquals("abc".getBytes(), range.get().getData());
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        assertFalse(stub.getAttr("missing").isPresent());
+        assertFalse(stub.readFileRange("missing", 0, 1).isPresent());
+    }
+
+    @Test
+    public void listDirectory() throws Exception {
+        Files.createDirectory(root.resolve("dir"));
+        Files.write(root.resolve("b"), new byte[0]);
+        assertTrue(stub.touch("a").isPresent());
+
+        assertEquals(Optional.of(List.of("a", "b", "dir/")), stub.listDir("."));
+    }
+
+    @Test
+    public void getAttributesInCompound() throws Exception {
+        Files.write(root.resolve("a"), new byte[0]);
+        Files.write(root.resolve("b"), new byte[0]);
+        assertEquals(NegotiateRequest.COMPOUND, stub.negotiate(NegotiateRequest.COMPOUND));
+
+        List<Optional<long[]>> attributes = stub.getAttrAll(List.of("a", "missing", "b"));
+        assertEquals(Files.getLastModifiedTime(root.resolve("a")).toMillis(), attributes.get(0).get()[0]);
+        assertFalse(attributes.get(1).isPresent());
+        assertEquals(Files.getLastModifiedTime(root.resolve("b")).toMillis(), attributes.get(2).get()[0]);
+    }
+
+    @Test
+    public void rejectPathsOutsideRoot() throws Exception {
+        Path served = Files.createDirectory(root.resolve("served"));
+        Files.write(root.resolve("secret"), "secret".getBytes());
+        Files.write(served.resolve("a"), "abc".getBytes());
+        AloServicer servicer = new AloServicer(served, null);
+        SocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234);
+
+        for (String path : List.of("../secret", "dir/../../secret", root.resolve("secret").toString())) {
+            assertEquals(ResponseStatus.BAD_REQUEST,
+                    servicer.serve(new ReadRangeRequest(path, 0, 10), client).getStatus());
+            assertEquals(ResponseStatus.BAD_REQUEST,
+                    servicer.serve(new AppendRequest(path, "!".getBytes()), client).getStatus());
+        }
+        assertEquals(ResponseStatus.BAD_REQUEST,
+                servicer.serve(new TouchRequest("../created"), client).getStatus());
+        assertFalse(Files.exists(root.resolve("created")));
+        assertArrayEquals("secret".getBytes(), Files.readAllBytes(root.resolve("secret")));
+        assertEquals(ResponseStatus.OK, servicer.serve(new ReadRangeRequest("dir/../a", 0, 10), client).getStatus());
+    }
+
+    @Test
+    public void invalidateWithDeltaBeyondDatagram() throws Exception {
+        Files.write(root.resolve("a"), "abc".getBytes());
+        DatagramChannel subscriber = DatagramChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        AloServicer servicer = new AloServicer(root, DatagramChannel.open());
+        SocketAddress client = subscriber.getLocalAddress();
+        assertEquals(ResponseStatus.OK, servicer.serve(new RegisterRequest("a", 60000), client).getStatus());
+
+        byte[] data = new byte[Serializer.BUF_SIZE];
+        new Random(0).nextBytes(data);
+        assertEquals(ResponseStatus.OK, servicer.serve(new AppendRequest("a", data), client).getStatus());
+        ByteBuffer buf = ByteBuffer.allocate(Serializer.BUF_SIZE);
+        subscriber.receive(buf);
+        buf.flip();
+        FileDeltaCallback callback = (FileDeltaCallback) Request.Builder.parseFrom(buf);
+        assertEquals(0, callback.getData().length);
+        assertEquals(callback.getMtime(), callback.getBaseMtime());
+        assertEquals(3 + data.length, callback.getLength());
+        subscriber.close();
+    }
+
+    @Test
+    public void executeRetransmittedRequestOnce() throws Exception {
+        Files.write(root.resolve("a"), "abc".getBytes());
+        AmoServicer servicer = new AmoServicer(root, null, new ReplyCache(16, 60000));
+        SocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234);
+        AppendRequest request = new AppendRequest("a", "def".getBytes());
+
+        byte[] reply = servicer.reply(request, client).get();
+        assertEquals(ResponseStatus.OK, Response.Builder.parseFrom(ByteBuffer.wrap(reply)).getStatus());
+        assertArrayEquals(reply, servicer.reply(request, client).get());
+        assertArrayEquals("abcdef".getBytes(), Files.readAllBytes(root.resolve("a")));
+    }
+}